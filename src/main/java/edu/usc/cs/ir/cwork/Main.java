@@ -6,6 +6,7 @@ import edu.usc.cs.ir.cwork.nutch.LastModifiedUpdater;
 import edu.usc.cs.ir.cwork.nutch.OutlinkUpdater;
 import edu.usc.cs.ir.cwork.relevance.GraphGenerator;
 import edu.usc.cs.ir.cwork.relevance.SparkPageRanker;
+import edu.usc.cs.ir.cwork.solr.DeadLetterReplayer;
 import edu.usc.cs.ir.cwork.solr.Phase2Indexer;
 import edu.usc.cs.ir.cwork.solr.SolrIndexer;
 import edu.usc.cs.ir.cwork.solr.SolrPageRankUpdater;
@@ -38,6 +39,7 @@ public class Main {
         lastmodified("Retrieves last-modified HTTP header value from nutch segments and updates it to Solr", LastModifiedUpdater.class),
         cdrindex("Index Nutch Segments to CDR (Elastic Search)", EsIndexer.class),
         updaterank("Updates Page rank", SolrPageRankUpdater.class),
+        replay("Posts the docs rejected by solr, from a dead letter file, again", DeadLetterReplayer.class),
         parsecheck("Checks the parser output (input a config and a file )",Parser.class);
 
         private final String description;
@@ -0,0 +1,73 @@
+package edu.usc.cs.ir.cwork.dedup;
+
+import org.kohsuke.args4j.ClassParser;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * CLI options for dropping the duplicate docs, shared by the indexing commands.
+ * Use {@link #addTo(CmdLineParser)} to add these options to the command's parser.
+ */
+public class DedupOptions {
+
+    public static final Logger LOG = LoggerFactory.getLogger(DedupOptions.class);
+
+    @Option(name = "-dedup", usage = "What to do with the exact and near duplicate docs: none (index them)," +
+            " skip, or link (index them without content, with duplicateOf set to the first doc seen)")
+    private Deduplicator.Mode mode = Deduplicator.Mode.NONE;
+
+    @Option(name = "-dedupDistance", usage = "Max bits in which the SimHashes of near duplicates differ," +
+            " -1 to find only the exact duplicates")
+    private int maxDistance = Deduplicator.DEF_MAX_DISTANCE;
+
+    @Option(name = "-dedupIndex", usage = "File keeping the fingerprints across runs. Read at start when it" +
+            " exists and written at the end", depends = "-dedup")
+    private File indexFile;
+
+    /**
+     * Adds these options to a command line parser
+     * @param parser the parser of command
+     * @return this options
+     */
+    public DedupOptions addTo(CmdLineParser parser) {
+        new ClassParser().parse(this, parser);
+        return this;
+    }
+
+    /**
+     * Creates the deduplicator, loading the fingerprints of -dedupIndex
+     * @return the deduplicator, null when -dedup is none
+     * @throws IOException when the index can't be read
+     */
+    public Deduplicator newDeduplicator() throws IOException {
+        if (mode == Deduplicator.Mode.NONE) {
+            return null;
+        }
+        Deduplicator dedup = new Deduplicator(mode, maxDistance);
+        if (indexFile != null && indexFile.exists()) {
+            dedup.load(indexFile);
+            LOG.info("Loaded the fingerprints of {}", indexFile);
+        }
+        return dedup;
+    }
+
+    /**
+     * Logs the savings of the run and writes the fingerprints to -dedupIndex
+     * @param dedup the deduplicator, may be null
+     * @throws IOException when the index can't be written
+     */
+    public void finish(Deduplicator dedup) throws IOException {
+        if (dedup == null) {
+            return;
+        }
+        LOG.info(dedup.report());
+        if (indexFile != null) {
+            dedup.save(indexFile);
+        }
+    }
+}
@@ -0,0 +1,428 @@
+package edu.usc.cs.ir.cwork.dedup;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import edu.usc.cs.ir.cwork.solr.ContentBean;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * Finds the documents seen before, so that they aren't parsed and indexed again.
+ * The exact duplicates are found by a digest of the raw content, which is checked before parsing,
+ * and by a digest of the extracted words, which catches the pages differing only in their markup.
+ * The near duplicates are found by the {@link SimHash} of the extracted text: the hashes within
+ * maxDistance bits of each other are looked up by splitting the hash into maxDistance + 1 bands,
+ * at least one of which is the same in both.
+ * <p>
+ * The first document seen is the canonical one; the duplicates are dropped or replaced by a link
+ * to it, as per the {@link Mode}. The fingerprints can be saved and loaded, to find the duplicates
+ * across runs. The methods are thread safe, the hashes are computed outside the lock.
+ * </p>
+ */
+public class Deduplicator {
+
+    /**
+     * What to do with the duplicates
+     */
+    public enum Mode {
+        /** index them all */
+        NONE,
+        /** drop the duplicates */
+        SKIP,
+        /** index the duplicates without content, along with the id of their canonical doc */
+        LINK
+    }
+
+    public enum Kind {UNIQUE, EXACT, NEAR}
+
+    /**
+     * The texts having fewer words are not checked, their SimHash is not stable
+     * and many of them are alike, such as the text of images
+     */
+    public static final int MIN_TOKENS = 20;
+    public static final int DEF_MAX_DISTANCE = 3;
+
+    private static final HashFunction DIGEST = Hashing.murmur3_128();
+    private static final int FORMAT_VERSION = 1;
+    private static final byte CONTENT_DIGEST = 1, TEXT_DIGEST = 2, SIM_HASH = 3;
+
+    /**
+     * Outcome of a check
+     */
+    public static class Verdict {
+
+        public static final Verdict UNIQUE = new Verdict(Kind.UNIQUE, null);
+
+        private final Kind kind;
+        private final String canonicalId;
+
+        private Verdict(Kind kind, String canonicalId) {
+            this.kind = kind;
+            this.canonicalId = canonicalId;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        /**
+         * @return id of the doc this one duplicates, null when unique
+         */
+        public String getCanonicalId() {
+            return canonicalId;
+        }
+
+        public boolean isDuplicate() {
+            return kind != Kind.UNIQUE;
+        }
+    }
+
+    private static class Fingerprint {
+        private final long hash;
+        private final String id;
+
+        private Fingerprint(long hash, String id) {
+            this.hash = hash;
+            this.id = id;
+        }
+    }
+
+    private final Mode mode;
+    private final int maxDistance;
+    private final Map<HashCode, String> contentDigests = new HashMap<>();
+    private final Map<HashCode, String> textDigests = new HashMap<>();
+    private final List<Map<Long, List<Fingerprint>>> bands = new ArrayList<>();
+    private long numFingerprints = 0;
+
+    private long numDocs = 0;
+    private long numExact = 0;
+    private long numNear = 0;
+    private long savedBytes = 0;
+
+    /**
+     * @param mode what to do with the duplicates
+     * @param maxDistance max bits in which the SimHashes of near duplicates differ, -1 to find the exact ones only
+     */
+    public Deduplicator(Mode mode, int maxDistance) {
+        if (maxDistance > 15) {
+            throw new IllegalArgumentException("maxDistance should be at most 15");
+        }
+        this.mode = mode;
+        this.maxDistance = maxDistance;
+        for (int i = 0; i <= maxDistance; i++) {
+            bands.add(new HashMap<>());
+        }
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Checks the raw content of a doc for an exact duplicate, before it is parsed
+     * @param id id of the doc
+     * @param content the raw content
+     * @return the verdict, the content is remembered when unique
+     */
+    public Verdict checkContent(String id, byte[] content) {
+        if (content == null || content.length == 0) {
+            return Verdict.UNIQUE;
+        }
+        HashCode digest = DIGEST.hashBytes(content);
+        synchronized (this) {
+            String canonical = contentDigests.putIfAbsent(digest, id);
+            if (canonical == null) {
+                return Verdict.UNIQUE;
+            }
+            numDocs++;
+            numExact++;
+            savedBytes += content.length;
+            return new Verdict(Kind.EXACT, canonical);
+        }
+    }
+
+    /**
+     * Checks the extracted text of a doc for an exact or a near duplicate
+     * @param id id of the doc
+     * @param text the text, may be null
+     * @return the verdict, the text is remembered when unique
+     */
+    public Verdict checkText(String id, String text) {
+        List<String> tokens = text == null ? null : SimHash.tokenize(text);
+        if (tokens == null || tokens.size() < MIN_TOKENS) {
+            synchronized (this) {
+                numDocs++;
+            }
+            return Verdict.UNIQUE;
+        }
+        HashCode digest = DIGEST.hashString(String.join(" ", tokens), StandardCharsets.UTF_8);
+        long simHash = maxDistance >= 0 ? SimHash.hash(tokens) : 0;
+        synchronized (this) {
+            numDocs++;
+            String canonical = textDigests.putIfAbsent(digest, id);
+            if (canonical != null) {
+                numExact++;
+                savedBytes += text.length();
+                return new Verdict(Kind.EXACT, canonical);
+            }
+            if (maxDistance < 0) {
+                return Verdict.UNIQUE;
+            }
+            canonical = findNear(simHash);
+            if (canonical != null) {
+                numNear++;
+                savedBytes += text.length();
+                return new Verdict(Kind.NEAR, canonical);
+            }
+            addSimHash(simHash, id);
+            return Verdict.UNIQUE;
+        }
+    }
+
+    private long bandKey(long hash, int band) {
+        int start = band * 64 / bands.size();
+        int width = (band + 1) * 64 / bands.size() - start;
+        long mask = width == 64 ? -1L : (1L << width) - 1;
+        return (hash >>> start) & mask;
+    }
+
+    private String findNear(long hash) {
+        for (int band = 0; band < bands.size(); band++) {
+            List<Fingerprint> candidates = bands.get(band).get(bandKey(hash, band));
+            if (candidates != null) {
+                for (Fingerprint candidate : candidates) {
+                    if (SimHash.distance(hash, candidate.hash) <= maxDistance) {
+                        return candidate.id;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    private void addSimHash(long hash, String id) {
+        Fingerprint fingerprint = new Fingerprint(hash, id);
+        for (int band = 0; band < bands.size(); band++) {
+            bands.get(band).computeIfAbsent(bandKey(hash, band), k -> new ArrayList<>(1)).add(fingerprint);
+        }
+        numFingerprints++;
+    }
+
+    /**
+     * Applies the mode to a checked bean
+     * @param bean the bean
+     * @param verdict its verdict
+     * @return the bean when unique, null to drop it or a link to its canonical doc
+     */
+    public ContentBean resolve(ContentBean bean, Verdict verdict) {
+        if (!verdict.isDuplicate() || mode == Mode.NONE) {
+            return bean;
+        }
+        if (mode == Mode.SKIP) {
+            return null;
+        }
+        ContentBean link = new ContentBean();
+        link.setId(bean.getId());
+        if (bean.getContentType() != null) {
+            link.setContentType(bean.getContentType());
+        }
+        if (bean.getUrl() != null) {
+            link.setUrl(bean.getUrl());
+        }
+        link.setMetadata(new HashMap<>());
+        link.setDuplicateOf(verdict.getCanonicalId());
+        return link;
+    }
+
+    /**
+     * Checks the text of a parsed bean and applies the mode
+     * @param bean the bean, may be null
+     * @return the bean when unique, null to drop it or a link to its canonical doc
+     */
+    public ContentBean dedup(ContentBean bean) {
+        return bean == null ? null : resolve(bean, checkText(bean.getId(), bean.getContent()));
+    }
+
+    /**
+     * Checks the raw content of a doc before parsing it, and its text after, so that the exact
+     * duplicates aren't parsed at all
+     * @param id id of the doc
+     * @param contentType content type of the doc, may be null
+     * @param content the raw content
+     * @param parser parses the doc
+     * @return the parsed bean when unique, null to drop the doc or a link to its canonical doc
+     * @throws Exception when the parser fails, the content is then forgotten
+     */
+    public ContentBean dedup(String id, String contentType, byte[] content,
+                             Callable<ContentBean> parser) throws Exception {
+        return dedup(id, null, contentType, content, parser);
+    }
+
+    /**
+     * Checks the raw content of a doc before parsing it, and its text after, so that the exact
+     * duplicates aren't parsed at all
+     * @param id id of the doc, the same as the parser gives it
+     * @param url url of the doc, may be null
+     * @param contentType content type of the doc, may be null
+     * @param content the raw content
+     * @param parser parses the doc
+     * @return the parsed bean when unique, null to drop the doc or a link to its canonical doc
+     * @throws Exception when the parser fails, the content is then forgotten
+     */
+    public ContentBean dedup(String id, String url, String contentType, byte[] content,
+                             Callable<ContentBean> parser) throws Exception {
+        Verdict verdict = checkContent(id, content);
+        if (verdict.isDuplicate()) {
+            ContentBean bean = new ContentBean();
+            bean.setId(id);
+            if (url != null) {
+                bean.setUrl(url);
+            }
+            if (contentType != null) {
+                bean.setContentType(contentType);
+            }
+            return resolve(bean, verdict);
+        }
+        boolean parsed = false;
+        try {
+            ContentBean bean = parser.call();
+            parsed = true;
+            return dedup(bean);
+        } finally {
+            if (!parsed) {
+                // the doc isn't indexed, the next copy of it should be parsed
+                forgetContent(id, content);
+            }
+        }
+    }
+
+    /**
+     * Forgets the raw content remembered by {@link #checkContent(String, byte[])}
+     * @param id id of the doc
+     * @param content the raw content
+     */
+    private void forgetContent(String id, byte[] content) {
+        if (content == null || content.length == 0) {
+            return;
+        }
+        HashCode digest = DIGEST.hashBytes(content);
+        synchronized (this) {
+            contentDigests.remove(digest, id);
+        }
+    }
+
+    /**
+     * Writes the fingerprints to a file. They are written to a temp file first and moved in place,
+     * so that a failed save leaves the previous file as it was
+     * @param file the file
+     * @throws IOException when the file can't be written
+     */
+    public synchronized void save(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream stream = new FileOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream))) {
+            out.writeInt(FORMAT_VERSION);
+            writeDigests(out, CONTENT_DIGEST, contentDigests);
+            writeDigests(out, TEXT_DIGEST, textDigests);
+            if (!bands.isEmpty()) {
+                for (List<Fingerprint> fingerprints : bands.get(0).values()) {
+                    for (Fingerprint fingerprint : fingerprints) {
+                        out.writeByte(SIM_HASH);
+                        out.writeLong(fingerprint.hash);
+                        out.writeUTF(fingerprint.id);
+                    }
+                }
+            }
+            out.flush();
+            stream.getFD().sync();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void writeDigests(DataOutputStream out, byte type, Map<HashCode, String> digests)
+            throws IOException {
+        for (Map.Entry<HashCode, String> entry : digests.entrySet()) {
+            out.writeByte(type);
+            out.write(entry.getKey().asBytes());
+            out.writeUTF(entry.getValue());
+        }
+    }
+
+    /**
+     * Reads the fingerprints saved by {@link #save(File)}, the docs seen in an earlier run
+     * remain the canonical ones
+     * @param file the file
+     * @throws IOException when the file can't be read
+     */
+    public synchronized void load(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            int version = in.readInt();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("Unknown format " + version + " of " + file);
+            }
+            byte[] digest = new byte[DIGEST.bits() / 8];
+            while (true) {
+                int type = in.read();
+                if (type < 0) {
+                    break;
+                }
+                if (type == SIM_HASH) {
+                    long hash = in.readLong();
+                    String id = in.readUTF();
+                    if (maxDistance >= 0) {
+                        addSimHash(hash, id);
+                    }
+                } else if (type == CONTENT_DIGEST || type == TEXT_DIGEST) {
+                    in.readFully(digest);
+                    (type == CONTENT_DIGEST ? contentDigests : textDigests)
+                            .put(HashCode.fromBytes(digest.clone()), in.readUTF());
+                } else {
+                    throw new IOException("Corrupt record " + type + " in " + file);
+                }
+            }
+        }
+    }
+
+    public synchronized long getNumDocs() {
+        return numDocs;
+    }
+
+    public synchronized long getNumExact() {
+        return numExact;
+    }
+
+    public synchronized long getNumNear() {
+        return numNear;
+    }
+
+    public synchronized long getSavedBytes() {
+        return savedBytes;
+    }
+
+    /**
+     * @return the savings of the run
+     */
+    public synchronized String report() {
+        long dups = numExact + numNear;
+        return String.format("Dedup : %d docs, %d exact and %d near duplicates (%.1f%%), %d KB of content" +
+                        " %s, %d fingerprints", numDocs, numExact, numNear,
+                numDocs == 0 ? 0.0 : 100.0 * dups / numDocs, savedBytes / 1024,
+                mode == Mode.LINK ? "linked" : "skipped", contentDigests.size() + textDigests.size() + numFingerprints);
+    }
+}
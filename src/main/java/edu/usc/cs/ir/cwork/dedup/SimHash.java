@@ -0,0 +1,75 @@
+package edu.usc.cs.ir.cwork.dedup;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * 64 bit SimHash of text over the shingles of its words. Texts which share most of their shingles,
+ * such as the pages of a site differing in a session id or a date, have hashes which differ in a few
+ * bits only, see {@link #distance(long, long)}.
+ */
+public class SimHash {
+
+    public static final int SHINGLE_SIZE = 3;
+
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    /**
+     * Splits the text into lower case words
+     * @param text the text
+     * @return the words
+     */
+    public static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        for (String token : text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+            if (!token.isEmpty()) {
+                tokens.add(token);
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Computes the SimHash of words
+     * @param tokens the words
+     * @return the hash, 0 when there are no words
+     */
+    public static long hash(List<String> tokens) {
+        int[] votes = new int[64];
+        int shingles = Math.max(1, tokens.size() - SHINGLE_SIZE + 1);
+        StringBuilder shingle = new StringBuilder();
+        for (int i = 0; i < shingles && i < tokens.size(); i++) {
+            shingle.setLength(0);
+            for (int j = i; j < i + SHINGLE_SIZE && j < tokens.size(); j++) {
+                shingle.append(tokens.get(j)).append(' ');
+            }
+            long h = HASH.hashString(shingle, StandardCharsets.UTF_8).asLong();
+            for (int bit = 0; bit < 64; bit++) {
+                votes[bit] += ((h >>> bit) & 1) == 1 ? 1 : -1;
+            }
+        }
+        long hash = 0;
+        for (int bit = 0; bit < 64; bit++) {
+            if (votes[bit] > 0) {
+                hash |= 1L << bit;
+            }
+        }
+        return hash;
+    }
+
+    public static long hash(String text) {
+        return hash(tokenize(text));
+    }
+
+    /**
+     * @return number of bits in which the hashes differ
+     */
+    public static int distance(long hash1, long hash2) {
+        return Long.bitCount(hash1 ^ hash2);
+    }
+}
@@ -53,6 +53,9 @@ public class ESMapper  {
         doc.put("parsed_at", System.currentTimeMillis());
 
         doc.put("raw_content", contentBean.getRawContent());
+        if (contentBean.getDuplicateOf() != null) {
+            doc.put("duplicate_of", contentBean.getDuplicateOf());
+        }
         return doc;
     }
 
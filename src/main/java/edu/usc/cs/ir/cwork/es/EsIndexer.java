@@ -1,16 +1,18 @@
 package edu.usc.cs.ir.cwork.es;
 
+import edu.usc.cs.ir.cwork.dedup.DedupOptions;
+import edu.usc.cs.ir.cwork.dedup.Deduplicator;
 import edu.usc.cs.ir.cwork.nutch.NutchDumpPathBuilder;
 import edu.usc.cs.ir.cwork.nutch.RecordIterator;
 import edu.usc.cs.ir.cwork.nutch.SegContentReader;
+import edu.usc.cs.ir.cwork.sink.BatchOptions;
 import edu.usc.cs.ir.cwork.solr.ContentBean;
 import edu.usc.cs.ir.cwork.tika.Parser;
+import edu.usc.cs.ir.cwork.util.DeadlineManager;
+import edu.usc.cs.ir.cwork.util.Pipeline;
 import io.searchbox.client.JestClient;
 import io.searchbox.client.JestClientFactory;
-import io.searchbox.client.JestResult;
 import io.searchbox.client.config.HttpClientConfig;
-import io.searchbox.core.Bulk;
-import io.searchbox.core.Index;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.math3.util.Pair;
 import org.apache.nutch.protocol.Content;
@@ -26,9 +28,10 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.URL;
-import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.Callable;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 
@@ -56,9 +59,24 @@ public class EsIndexer {
             required = false)
     private int batchSize = 1000;
 
+    @Option(name = "-threads", usage = "Number of threads parsing the records")
+    private int nThreads = 1;
+
+    @Option(name = "-timeout", usage = "Time out for parsing a record in millis")
+    private long threadTimeout = 15 * 1000;
+
+    @Option(name = "-inflight", usage = "Number of bulk requests posted in background" +
+            " while the next one is being filled")
+    private int maxInFlight = 1;
+
+    @Option(name = "-queue", usage = "Capacity of the queues between the pipeline stages")
+    private int queueSize = Pipeline.DEF_QUEUE_SIZE;
+
     @Option(name= "-cdrcreds", usage = "CDR credentials properties file.", required = true)
     private File cdrCredsFile;
 
+    private BatchOptions batchOptions = new BatchOptions();
+    private DedupOptions dedupOptions = new DedupOptions();
     private CDRCreds creds;
     private Function<URL, String> pathMapper;
 
@@ -79,6 +97,38 @@ public class EsIndexer {
             this.indexName = props.getProperty("memex.cdr.index");
             this.indexType = props.getProperty("memex.cdr.type");
         }
+
+        /**
+         * Reads the credentials from a properties file
+         * @param file the properties file
+         * @return credentials
+         * @throws IOException when the file can't be read
+         */
+        public static CDRCreds load(File file) throws IOException {
+            LOG.info("Getting cdr details from {}", file);
+            Properties props = new Properties();
+            try (FileInputStream stream = new FileInputStream(file)) {
+                props.load(stream);
+            }
+            return new CDRCreds(props);
+        }
+
+        /**
+         * Opens a client to the CDR cluster
+         * @return jest client
+         */
+        public JestClient openClient() {
+            LOG.info("CDR name:type = {}:{}", indexName, indexType);
+            JestClientFactory factory = new JestClientFactory();
+            factory.setHttpClientConfig(new HttpClientConfig.Builder(clusterUri)
+                    .discoveryEnabled(false)
+                    .discoveryFrequency(1l, TimeUnit.MINUTES)
+                    .multiThreaded(true)
+                    .defaultCredentials(username, password)
+                    .connTimeout(300000).readTimeout(300000)
+                    .build());
+            return factory.getObject();
+        }
     }
     /**
      * runs the solr index command
@@ -94,12 +144,9 @@ public class EsIndexer {
         this.pathMapper = new NutchDumpPathBuilder(this.dumpPath);
 
         //Step
-        LOG.info("Getting cdr details from {}", cdrCredsFile);
-        Properties props = new Properties();
-        props.load(new FileInputStream(cdrCredsFile));
-        this.creds = new CDRCreds(props);
+        this.creds = CDRCreds.load(cdrCredsFile);
 
-        JestClient client = openCDRClient();
+        JestClient client = creds.openClient();
         try {
             //Step
             FileInputStream stream = new FileInputStream(segsFile);
@@ -118,80 +165,93 @@ public class EsIndexer {
         }
     }
 
-    private JestClient openCDRClient(){
-        LOG.info("CDR name:type = {}:{}", creds.indexName, creds.indexType);
-        JestClientFactory factory = new JestClientFactory();
-        factory.setHttpClientConfig(new HttpClientConfig.Builder(creds.clusterUri)
-                .discoveryEnabled(false)
-                .discoveryFrequency(1l, TimeUnit.MINUTES)
-                .multiThreaded(true)
-                .defaultCredentials(creds.username, creds.password)
-                .connTimeout(300000).readTimeout(300000)
-                .build());
-        return factory.getObject();
-    }
-
-    private void index(RecordIterator recs, JestClient elastic)
-            throws IOException, SolrServerException {
+    /**
+     * Parses the records on {@link #nThreads} workers and posts them in bulk requests,
+     * up to {@link #maxInFlight} of which are outstanding
+     * @param recs the records
+     * @param elastic the client
+     * @throws IOException when the sink can't be closed
+     * @throws InterruptedException when interrupted
+     */
+    private void index(Iterator<Pair<String, Content>> recs, JestClient elastic)
+            throws IOException, InterruptedException {
 
-        long st = System.currentTimeMillis();
-        long count = 0;
-        long delay = 2 * 1000;
         Parser parser = Parser.getInstance();
-        List<JSONObject> buffer = new ArrayList<>(batchSize);
-        while (recs.hasNext()) {
-            Pair<String, Content> rec = recs.next();
-            Content content = rec.getValue();
-            ContentBean bean = new ContentBean();
-            try {
-                parser.loadMetadataBean(content, pathMapper, bean);
-                buffer.add(ESMapper.toCDRSchema(bean));
-                count++;
-                if (buffer.size() >= batchSize) {
-                    try {
-                        indexAll(buffer, elastic);
-                        buffer.clear();
-                    } catch (Exception e) {
-                        throw new RuntimeException(e);
-                    }
-                }
-                if (System.currentTimeMillis() - st > delay) {
-                    LOG.info("Num Docs : {}", count);
-                    st = System.currentTimeMillis();
-                }
-            } catch (Exception e){
-                LOG.error("Error processing {}", content.getUrl());
-                LOG.error(e.getMessage(), e);
-            }
+        DeadlineManager deadlines = new DeadlineManager(threadTimeout);
+        Deduplicator dedup = dedupOptions.newDeduplicator();
+        DocPoster poster;
+        try (EsSink sink = new EsSink(elastic, creds.indexName, creds.indexType,
+                batchOptions.toPolicy(batchSize), maxInFlight, null)) {
+            poster = new DocPoster(sink);
+            Pipeline.from(recs)
+                    .queueSize(queueSize)
+                    .listener(new Pipeline.Listener() {
+                        @Override
+                        public void onError(String stage, Object item, Throwable e) {
+                            Object url = item instanceof Pair ? ((Pair) item).getKey() : item;
+                            LOG.error("Error processing {}", url);
+                            LOG.error(e.getMessage(), e);
+                        }
+                    })
+                    .then("parse", nThreads, rec -> toCDRDoc(rec.getValue(), pathMapper, parser, dedup),
+                            rec -> deadlines.start(rec.getValue().getContentType(),
+                                    rec.getValue().getContent().length))
+                    .to("post", 1, poster);
+            // left out batch is posted while closing the sink
         }
+        LOG.info("Num Docs = {}", poster.count);
+        dedupOptions.finish(dedup);
+    }
 
-        //left out
-        if (!buffer.isEmpty()) {
-            indexAll(buffer, elastic);
-            buffer.clear();
+    /**
+     * Parses a record to a CDR doc, skipping or linking the duplicates
+     * @param content the record
+     * @param pathMapper maps the urls to the dump paths, which are the ids of the docs
+     * @param parser the parser
+     * @param dedup finds the duplicates, null to index them all
+     * @return the CDR doc, null to drop it
+     * @throws Exception when the record can't be parsed
+     */
+    static JSONObject toCDRDoc(Content content, Function<URL, String> pathMapper, Parser parser,
+                               Deduplicator dedup) throws Exception {
+        Callable<ContentBean> parse = () -> {
+            ContentBean bean = new ContentBean();
+            parser.loadMetadataBean(content, pathMapper, bean);
+            return bean;
+        };
+        ContentBean bean;
+        if (dedup == null) {
+            bean = parse.call();
+        } else {
+            // the same id as the parsed docs, so that the links point to the ids in the index
+            String id = pathMapper.apply(new URL(content.getBaseUrl()));
+            bean = dedup.dedup(id, content.getUrl(), content.getContentType(), content.getContent(), parse);
         }
-        LOG.info("Num Docs = {}", count);
+        return bean == null ? null : ESMapper.toCDRSchema(bean);
     }
 
-    private void indexAll(List<JSONObject> docs, JestClient client) throws IOException {
+    /**
+     * Hands over the CDR docs to the elastic search sink and logs the progress
+     */
+    private static class DocPoster implements Pipeline.Sink<JSONObject> {
 
-        List<Index> inputDocs = new ArrayList<>();
-        for (JSONObject doc : docs) {
-            String id = (String) doc.remove("obj_id");
-            if (id == null) {
-                LOG.warn("No ID set to document. Skipped");
-                continue;
-            }
-            inputDocs.add(new Index.Builder(doc.toString()).id(id).build());
+        private final EsSink sink;
+        private long count = 0;
+        private long st = System.currentTimeMillis();
+        private final long delay = 2 * 1000;
+
+        public DocPoster(EsSink sink) {
+            this.sink = sink;
         }
-        Bulk bulk = new Bulk.Builder()
-                .defaultIndex(creds.indexName)
-                .defaultType(creds.indexType)
-                .addAction(inputDocs)
-                .build();
-        JestResult result = client.execute(bulk);
-        if (!result.isSucceeded()){
-            LOG.error("Failure in bulk commit: {}", result.getErrorMessage());
+
+        @Override
+        public void accept(JSONObject doc) throws IOException {
+            sink.add(doc);
+            count++;
+            if (System.currentTimeMillis() - st > delay) {
+                LOG.info("Num Docs : {}", count);
+                st = System.currentTimeMillis();
+            }
         }
     }
 
@@ -200,6 +260,8 @@ public class EsIndexer {
             SolrServerException, IOException {
         EsIndexer indexer = new EsIndexer();
         CmdLineParser cmdLineParser = new CmdLineParser(indexer);
+        indexer.batchOptions.addTo(cmdLineParser);
+        indexer.dedupOptions.addTo(cmdLineParser);
         try {
             cmdLineParser.parseArgument(args);
         } catch (CmdLineException e) {
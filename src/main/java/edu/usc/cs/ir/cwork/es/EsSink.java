@@ -0,0 +1,174 @@
+package edu.usc.cs.ir.cwork.es;
+
+import edu.usc.cs.ir.cwork.sink.AsyncBatchSink;
+import edu.usc.cs.ir.cwork.sink.BatchListener;
+import edu.usc.cs.ir.cwork.sink.BatchPolicy;
+import edu.usc.cs.ir.cwork.sink.PartialBatchException;
+import edu.usc.cs.ir.cwork.sink.SizeEstimator;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestResult;
+import io.searchbox.core.Bulk;
+import io.searchbox.core.Index;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Posts documents to elastic search with bulk requests from background threads.
+ * The documents are expected to have their id in {@code obj_id} field.
+ * The items of the bulk response are checked, so the failed documents are retried one by one
+ * and the rest of the batch is not sent again.
+ */
+public class EsSink extends AsyncBatchSink<JSONObject> {
+
+    public static final Logger LOG = LoggerFactory.getLogger(EsSink.class);
+    public static final String ID_FIELD = "obj_id";
+    public static final String ITEMS = "items";
+    public static final String STATUS = "status";
+    public static final String ERROR = "error";
+
+    private final JestClient client;
+    private final String indexName;
+    private final String indexType;
+
+    /**
+     * @param client the jest client
+     * @param indexName name of the index
+     * @param indexType type of the documents
+     * @param policy decides when a batch is full
+     * @param maxInFlight number of batches that can be posted concurrently
+     * @param listener listener for the outcome of batches, null to log the errors
+     */
+    public EsSink(JestClient client, String indexName, String indexType,
+                  BatchPolicy policy, int maxInFlight, BatchListener<JSONObject> listener) {
+        super("elastic", policy, EsSink::estimateSize, maxInFlight, listener);
+        this.client = client;
+        this.indexName = indexName;
+        this.indexType = indexType;
+    }
+
+    @Override
+    protected void send(List<JSONObject> docs) throws Exception {
+        List<Index> inputDocs = new ArrayList<>();
+        // position of each action in the batch, the docs without id are not sent
+        List<Integer> positions = new ArrayList<>();
+        for (int i = 0; i < docs.size(); i++) {
+            JSONObject doc = docs.get(i);
+            Object id = doc.remove(ID_FIELD);
+            if (id == null) {
+                LOG.warn("No ID set to document. Skipped");
+                continue;
+            }
+            inputDocs.add(new Index.Builder(doc.toString()).id(id.toString()).build());
+            positions.add(i);
+            // put it back, so the doc is intact if the batch is retried
+            doc.put(ID_FIELD, id);
+        }
+        if (inputDocs.isEmpty()) {
+            return;
+        }
+        Bulk bulk = new Bulk.Builder()
+                .defaultIndex(indexName)
+                .defaultType(indexType)
+                .addAction(inputDocs)
+                .build();
+        JestResult result = client.execute(bulk);
+        if (result.getJsonObject() == null || !result.getJsonObject().has(ITEMS)) {
+            // the request as a whole failed, such as on an overloaded or unreachable cluster
+            throw new IOException("Failure in bulk commit: " + result.getErrorMessage());
+        }
+        Map<Integer, Integer> failedItems = getFailedItems(result.getJsonObject());
+        if (!failedItems.isEmpty()) {
+            Set<Integer> failed = new HashSet<>();
+            boolean allTransient = true;
+            for (Map.Entry<Integer, Integer> item : failedItems.entrySet()) {
+                failed.add(positions.get(item.getKey()));
+                allTransient &= isTransientStatus(item.getValue());
+            }
+            throw new PartialBatchException(failed, allTransient, failed.size() + " of "
+                    + inputDocs.size() + " bulk items failed, statuses " + failedItems.values());
+        }
+    }
+
+    @Override
+    protected boolean isTransient(Exception e) {
+        if (e instanceof PartialBatchException) {
+            return ((PartialBatchException) e).isTransient();
+        }
+        return super.isTransient(e);
+    }
+
+    /**
+     * Finds the failed items of a bulk response
+     * @param response the bulk response
+     * @return status code of each failed item by its position in the bulk request
+     */
+    public static Map<Integer, Integer> getFailedItems(JsonObject response) {
+        Map<Integer, Integer> failed = new TreeMap<>();
+        JsonArray items = response.getAsJsonArray(ITEMS);
+        for (int i = 0; i < items.size(); i++) {
+            // each item is keyed by its action, such as {"index": {"_id": .., "status": ..}}
+            for (Map.Entry<String, JsonElement> action : items.get(i).getAsJsonObject().entrySet()) {
+                JsonObject item = action.getValue().getAsJsonObject();
+                int status = item.has(STATUS) ? item.get(STATUS).getAsInt() : 200;
+                if (status >= 300 || item.has(ERROR)) {
+                    failed.put(i, status);
+                }
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * @param status status code of a bulk item
+     * @return true for the rejections on a busy node and the server errors
+     */
+    public static boolean isTransientStatus(int status) {
+        return status == 429 || status >= 500;
+    }
+
+    @Override
+    protected JSONObject toJson(JSONObject doc) {
+        return doc;
+    }
+
+    /**
+     * Estimates the size of a JSON document from its keys and values
+     * @param doc the document
+     * @return approximate number of bytes
+     */
+    public static long estimateSize(JSONObject doc) {
+        long size = 2;
+        for (Object key : doc.keySet()) {
+            size += key.toString().length() + 4 + estimateJson(doc.opt(key.toString()));
+        }
+        return size;
+    }
+
+    private static long estimateJson(Object value) {
+        if (value instanceof JSONObject) {
+            return estimateSize((JSONObject) value);
+        }
+        if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            long size = 2;
+            for (int i = 0; i < array.length(); i++) {
+                size += estimateJson(array.opt(i)) + 1;
+            }
+            return size;
+        }
+        return SizeEstimator.estimateValue(value) + 2;
+    }
+}
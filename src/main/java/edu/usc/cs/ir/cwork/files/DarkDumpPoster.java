@@ -5,7 +5,6 @@ import com.google.common.collect.Iterators;
 import edu.usc.cs.ir.cwork.nutch.OutlinkUpdater;
 import edu.usc.cs.ir.cwork.solr.ContentBean;
 import edu.usc.cs.ir.cwork.tika.Parser;
-import edu.usc.cs.ir.cwork.util.GroupedIterator;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVParser;
 import org.apache.commons.csv.CSVRecord;
@@ -18,11 +17,6 @@ import org.apache.nutch.parse.ParseResult;
 import org.apache.nutch.parse.ParseUtil;
 import org.apache.nutch.protocol.Content;
 import org.apache.nutch.util.NutchConfiguration;
-import org.apache.solr.client.solrj.SolrServer;
-import org.apache.solr.client.solrj.impl.HttpSolrServer;
-import org.apache.solr.client.solrj.response.UpdateResponse;
-import org.apache.solr.common.SolrException;
-import org.apache.solr.common.SolrInputDocument;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
@@ -36,17 +30,11 @@ import java.io.IOException;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.nio.file.Files;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
 
 /**
  * Created by tg on 12/11/15.
@@ -74,8 +62,8 @@ public class DarkDumpPoster extends DumpPoster {
         }
 
         @Override
-        public ContentBean call() throws Exception {
-            ContentBean bean = super.call();
+        protected ContentBean parse() throws Exception {
+            ContentBean bean = super.parse();
             File file = new File(rec.path);
             bean.setId(file.toURI().toString());
             bean.setUrl(rec.url);
@@ -118,7 +106,6 @@ public class DarkDumpPoster extends DumpPoster {
     @Option(name="-nutch", usage = "Path to nutch home directory. Hint: path to nutch/runtime/local", required = true)
     private File nutchHome;
 
-    private SolrServer solr;
     private ParseUtil parseUtil;
     private Configuration nutchConf;
     private Function<String, String> pathFunction;
@@ -127,7 +114,7 @@ public class DarkDumpPoster extends DumpPoster {
 
     private void init(){
         try {
-            this.solr = new HttpSolrServer(this.solrUrl.toString());
+            openOutputs();
             //Step 1: Nutch initialization
             nutchConf = NutchConfiguration.create();
             nutchConf.set("plugin.folders", new File(nutchHome, "plugins").getAbsolutePath());
@@ -194,116 +181,30 @@ public class DarkDumpPoster extends DumpPoster {
 
     @Override
     public void run() {
-        long st = System.currentTimeMillis();
-        long count = 0;
-        long delay = 2 * 1000;
-
-        Iterator<LinkRecord> records = getRecords();
-        GroupedIterator<LinkRecord> groupedDocs = new GroupedIterator<>(records, nThreads);
-        List<Future<ContentBean>> futures = new ArrayList<>(nThreads);
-        List<ContentBean> buffer = new ArrayList<>();
         Parser parser = Parser.getInstance();
-        while (groupedDocs.hasNext()) {
-            try {
-                List<LinkRecord> group = groupedDocs.next();
-                futures.clear();
-                for (LinkRecord doc : group) {
-                    LinkRecParseTask task = new LinkRecParseTask(doc, parser);
-                    Future<ContentBean> future = getExecutors().submit(task);
-                    futures.add(future);
-                    count++;
-                }
-
-                // collect results
-                for (Future<ContentBean> future : futures) {
-                    try {
-                        ContentBean result = future.get(threadTimeout, TimeUnit.MILLISECONDS);
-                        if (result != null) {
-                            buffer.add(result);
-                        }
-                    } catch (InterruptedException | ExecutionException e) {
-                        LOG.error(e.getMessage(), e);
-                    } catch (TimeoutException e) {
-                        // didnt finish
-                        future.cancel(true);
-                        LOG.warn("Cancelled a parse task, it didnt complete in time");
-                    }
-                }
-
-                if (buffer.size() >= batchSize) {
-                    solr.addBeans(buffer);
-                    buffer.clear();
-                }
-
-                if (System.currentTimeMillis() - st > delay) {
-                    String lastPath = group.isEmpty() ? "EMPTY" : group.get(group.size() - 1).path;
-                    LOG.info("Num Docs : {}, Last file: {}", count, lastPath);
-                    st = System.currentTimeMillis();
-                }
-            } catch (SolrException e) {
-                LOG.error(e.getMessage(), e);
-                try {
-                    LOG.warn("Going to sleep for sometime");
-                    Thread.sleep(10000);
-                } catch (InterruptedException e1) {
-                    e1.printStackTrace();
-                }
-                LOG.warn("Woke Up! Going to add docs one by one");
-                int errCount = 0;
-                for (ContentBean bean : buffer) {
-                    try {
-                        solr.addBean(bean);
-                    } catch (Exception e1) {
-                        errCount++;
-                        e1.printStackTrace();
-                    }
-                }
-                LOG.info("Clearing the buffer. Errors :{}", errCount);
-                //possibly an error in documents
-                buffer.clear();
-            } catch (Exception e){
-                LOG.error(e.getMessage(), e);
-                try {
-                    Thread.sleep(4000);
-                } catch (InterruptedException e1) {
-                    e1.printStackTrace();
-                }
-            }
-        }
-        try {
-            //left out
-            if (!buffer.isEmpty()) {
-                solr.addBeans(buffer);
-            }
-            LOG.info("Committing before exit. Num Docs = {}", count);
-            UpdateResponse response = solr.commit();
-            LOG.info("Commit response : {}", response);
-        } catch (Exception e) {
-            e.printStackTrace();
-        } finally {
-            if (service != null) {
-                System.out.println("Shutting down the thread pool");
-                service.shutdown();
-            }
-        }
+        parseAndPost(getRecords(), rec -> new LinkRecParseTask(rec, parser).parse(),
+                rec -> getDeadlines().start(LinkRecParseTask.TEXT_HTML, new File(rec.path).length()));
     }
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
         //args = "-solr http://localhost:8983/solr/collection3 -in /home/tg/tmp/committer-index.html -batch 10".split(" ");
 
-        DarkDumpPoster poster = new DarkDumpPoster();
-        CmdLineParser parser = new CmdLineParser(poster);
-        try {
-            parser.parseArgument(args);
-            if (poster.listFile == null) {
-                throw new CmdLineException(parser, "-list is required.");
+        try (DarkDumpPoster poster = new DarkDumpPoster()) {
+            CmdLineParser parser = new CmdLineParser(poster);
+            poster.sinkOptions.addTo(parser);
+            poster.dedupOptions.addTo(parser);
+            try {
+                parser.parseArgument(args);
+                if (poster.listFile == null) {
+                    throw new CmdLineException(parser, "-list is required.");
+                }
+            } catch (CmdLineException e) {
+                System.out.println(e.getMessage());
+                parser.printUsage(System.out);
+                return;
             }
-        } catch (CmdLineException e) {
-            System.out.println(e.getMessage());
-            parser.printUsage(System.out);
-            return;
+            poster.init();
+            poster.run();
         }
-        poster.init();
-        poster.run();
     }
 }
@@ -1,15 +1,24 @@
 package edu.usc.cs.ir.cwork.files;
 
+import edu.usc.cs.ir.cwork.dedup.DedupOptions;
+import edu.usc.cs.ir.cwork.dedup.Deduplicator;
+import edu.usc.cs.ir.cwork.es.ESMapper;
+import edu.usc.cs.ir.cwork.es.EsIndexer;
+import edu.usc.cs.ir.cwork.es.EsSink;
+import edu.usc.cs.ir.cwork.sink.FanOutSink;
+import edu.usc.cs.ir.cwork.sink.JsonLinesSink;
+import edu.usc.cs.ir.cwork.sink.ShardedJsonLinesSink;
 import edu.usc.cs.ir.cwork.solr.ContentBean;
+import edu.usc.cs.ir.cwork.solr.SolrSink;
+import edu.usc.cs.ir.cwork.solr.SolrSinkOptions;
 import edu.usc.cs.ir.cwork.tika.Parser;
+import edu.usc.cs.ir.cwork.util.DeadlineManager;
 import edu.usc.cs.ir.cwork.util.FileIterator;
-import edu.usc.cs.ir.cwork.util.GroupedIterator;
+import edu.usc.cs.ir.cwork.util.Pipeline;
+import io.searchbox.client.JestClient;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.LineIterator;
-import org.apache.solr.client.solrj.SolrServerException;
-import org.apache.solr.client.solrj.impl.HttpSolrServer;
-import org.apache.solr.client.solrj.response.UpdateResponse;
-import org.apache.solr.common.SolrException;
+import org.apache.solr.client.solrj.SolrServer;
 import org.json.JSONObject;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
@@ -19,10 +28,8 @@ import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.net.URL;
-import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.List;
-import java.util.concurrent.*;
+import java.util.function.Function;
 
 /**
  * Created by tg on 12/11/15.
@@ -44,6 +51,21 @@ public class DumpPoster implements Runnable, Closeable {
     @Option(name = "-out", usage = "Output File where the output should be stored. Ignore if no file dump required.")
     protected File outputFile;
 
+    @Option(name = "-outShards", usage = "Write -out as a directory of this many JSON lines files," +
+            " written in parallel, along with a manifest. 0 for a single file", depends = "-out")
+    protected int outShards = 0;
+
+    @Option(name = "-rollBytes", usage = "Bytes of JSON after which a shard file of -out is rolled over," +
+            " 0 to never roll", depends = "-outShards")
+    protected long rollBytes = ShardedJsonLinesSink.DEF_ROLL_BYTES;
+
+    @Option(name = "-outGzip", usage = "Gzip the shard files of -out", depends = "-outShards")
+    protected boolean outGzip = false;
+
+    @Option(name = "-cdrcreds", usage = "CDR credentials properties file, to also index the docs to" +
+            " the CDR elastic search. Ignore if not required.")
+    protected File cdrCredsFile;
+
 
     @Option(name = "-threads", usage = "Number of Threads")
     protected int nThreads = 5;
@@ -51,18 +73,34 @@ public class DumpPoster implements Runnable, Closeable {
     @Option(name = "-timeout", usage = "task timeout. The parser should finish within this time millis")
     protected long threadTimeout = 15 * 1000;
 
+    @Option(name = "-adaptive", usage = "Learn the parse deadlines per MIME type and size as the run goes." +
+            " The -timeout is used until enough samples are seen")
+    protected boolean adaptiveTimeout = false;
+
+    @Option(name = "-minTimeout", usage = "Lower bound for the adaptive parse deadline in millis")
+    protected long minTimeout = 1000;
+
+    @Option(name = "-maxTimeout", usage = "Upper bound for the adaptive parse deadline in millis")
+    protected long maxTimeout = 2 * 60 * 1000;
+
     @Option(name = "-batch", usage = "Batch size for buffering solr postings")
     protected int batchSize = 500;
 
-    protected ExecutorService service;
+    @Option(name = "-queue", usage = "Capacity of the queues between the pipeline stages")
+    protected int queueSize = Pipeline.DEF_QUEUE_SIZE;
 
-    private HttpSolrServer solr;
-    private BufferedWriter out;
+    protected SolrSinkOptions sinkOptions = new SolrSinkOptions();
+    protected DedupOptions dedupOptions = new DedupOptions();
+    protected DeadlineManager deadlines;
+
+    private final FanOutSink<ContentBean> outputs = new FanOutSink<>();
+    private SolrSink sink;
+    private JestClient esClient;
 
     /**
      * task for parsing docs
      */
-    protected class ParseTask implements Callable<ContentBean> {
+    protected class ParseTask {
 
         private final Parser parser;
         private File inDoc;
@@ -72,181 +110,144 @@ public class DumpPoster implements Runnable, Closeable {
             this.parser = parser;
         }
 
-        @Override
-        public ContentBean call() throws Exception {
+        protected ContentBean parse() throws Exception {
             ContentBean outDoc = new ContentBean();
             parser.loadMetadataBean(inDoc, outDoc);
             return outDoc;
         }
     }
 
-    public synchronized ExecutorService getExecutors(){
-        if (service == null) {
-            this.service = Executors.newFixedThreadPool(nThreads);
+    /**
+     * Hands over the parsed beans to the outputs, the solr and elastic search sinks post them in batches
+     */
+    protected class BeanPoster implements Pipeline.Sink<ContentBean> {
+
+        private long count = 0;
+        private long st = System.currentTimeMillis();
+        private final long delay = 2 * 1000;
+
+        @Override
+        public void accept(ContentBean bean) throws IOException {
+            addBean(bean);
+            count++;
+            if (System.currentTimeMillis() - st > delay) {
+                LOG.info("Num Docs : {}, Last doc: {}", count, bean.getId());
+                st = System.currentTimeMillis();
+            }
+        }
+
+        public long getCount() {
+            return count;
         }
-        return service;
     }
 
+    public synchronized DeadlineManager getDeadlines(){
+        if (deadlines == null) {
+            this.deadlines = adaptiveTimeout
+                    ? new DeadlineManager(threadTimeout, minTimeout, maxTimeout)
+                    : new DeadlineManager(threadTimeout);
+        }
+        return deadlines;
+    }
 
-    private void init(){
+    /**
+     * Opens the solr sink, the CDR elastic search sink and the output file, whichever are requested.
+     * Each parsed bean goes to all of them
+     */
+    protected void openOutputs(){
         if (solrUrl != null) {
-            solr = new HttpSolrServer(this.solrUrl.toString());
-            solr.setConnectionTimeout(5*1000);
+            SolrServer solr = sinkOptions.createServer(this.solrUrl.toString());
+            sink = sinkOptions.newSink(solr, batchSize, null);
+            outputs.to(sink.getName(), sink, sink::toDocument);
         }
-        if (outputFile != null){
-            if (outputFile.exists()){
-                throw new IllegalArgumentException("File " + outputFile + " already exists");
+        try {
+            if (cdrCredsFile != null) {
+                EsIndexer.CDRCreds creds = EsIndexer.CDRCreds.load(cdrCredsFile);
+                esClient = creds.openClient();
+                EsSink esSink = new EsSink(esClient, creds.indexName, creds.indexType,
+                        sinkOptions.getBatchOptions().toPolicy(batchSize), sinkOptions.getMaxInFlight(), null);
+                outputs.to(esSink.getName(), esSink, ESMapper::toCDRSchema);
             }
-            try {
-                out = new BufferedWriter(new FileWriter(outputFile));
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+            if (outputFile != null && outShards > 0) {
+                outputs.to("files", new ShardedJsonLinesSink(outputFile, outShards, rollBytes, outGzip),
+                        JSONObject::new);
+            } else if (outputFile != null){
+                outputs.to("file", new JsonLinesSink(outputFile), JSONObject::new);
             }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
     }
 
     @Override
     public void close() throws IOException {
-
-        if (solr != null){
-            try {
-                LOG.info("Committing before exit");
-                UpdateResponse response = solr.commit();
-                LOG.info("Commit response : {}", response);
-            } catch (SolrServerException e) {
-                e.printStackTrace();
+        try {
+            outputs.close();
+        } finally {
+            if (sink != null) {
+                sink.getServer().shutdown();
+            }
+            if (esClient != null) {
+                esClient.shutdownClient();
             }
-            solr.shutdown();
-        }
-
-        if (out != null) {
-            out.close();
         }
     }
 
 
-    public void addBeans(List<ContentBean> buffer)
-        throws IOException, SolrServerException {
-        if (solr != null) {
-            solr.addBeans(buffer);
-        }
-        if (out != null){
-            for (ContentBean bean : buffer) {
-                out.write(new JSONObject(bean).toString());
-                out.write("\n");
-            }
-        }
+    public void addBean(ContentBean bean) throws IOException {
+        outputs.add(bean);
     }
 
-
-    public void addBean(ContentBean bean)
-        throws IOException, SolrServerException {
-        if (solr != null) {
-            solr.addBean(bean);
+    /**
+     * Runs the items through a pipeline of parse and post stages.
+     * The parse stage runs on {@link #nThreads} workers, each task is interrupted when it misses its deadline.
+     * With -dedup, the duplicates of the text parsed before are dropped or linked
+     * @param items the items to be parsed
+     * @param parseStep the parser
+     * @param deadlineFn starts the deadline of an item
+     * @param <T> type of item
+     * @return number of docs posted
+     */
+    protected <T> long parseAndPost(Iterator<T> items, Pipeline.Step<T, ContentBean> parseStep,
+                                    Function<T, DeadlineManager.Deadline> deadlineFn) {
+        BeanPoster poster = new BeanPoster();
+        Deduplicator dedup;
+        try {
+            dedup = dedupOptions.newDeduplicator();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        try {
+            Pipeline.from(items)
+                    .queueSize(queueSize)
+                    .then("parse", nThreads, dedup == null ? parseStep
+                            : item -> dedup.dedup(parseStep.process(item)), deadlineFn)
+                    .to("post", 1, poster);
+        } catch (InterruptedException e) {
+            LOG.error(e.getMessage(), e);
+            Thread.currentThread().interrupt();
         }
-        if (out != null){
-            out.write(new JSONObject(bean).toString());
-            out.write("\n");
+        try {
+            outputs.flush();
+        } catch (IOException e) {
+            LOG.error(e.getMessage(), e);
+        }
+        LOG.info("Num Docs = {}", poster.getCount());
+        LOG.info(getDeadlines().report());
+        try {
+            dedupOptions.finish(dedup);
+        } catch (IOException e) {
+            LOG.error(e.getMessage(), e);
         }
+        return poster.getCount();
     }
 
     @Override
     public void run() {
-        init();
-        Iterator<File> files = getInputFiles();
-        long st = System.currentTimeMillis();
-        long count = 0;
-        long delay = 2 * 1000;
-
-
-        GroupedIterator<File> groupedDocs = new GroupedIterator<>(files, nThreads);
-        List<Future<ContentBean>> futures = new ArrayList<>(nThreads);
-        List<ContentBean> buffer = new ArrayList<>();
+        openOutputs();
         Parser parser = Parser.getInstance();
-        while (groupedDocs.hasNext()) {
-            try {
-                List<File> group = groupedDocs.next();
-                futures.clear();
-                for (File doc : group) {
-                    ParseTask task = new ParseTask(doc, parser);
-                    Future<ContentBean> future = getExecutors().submit(task);
-                    futures.add(future);
-                    count++;
-                }
-
-                // collect results
-                for (Future<ContentBean> future : futures) {
-                    try {
-                        ContentBean result = future.get(threadTimeout, TimeUnit.MILLISECONDS);
-                        if (result != null) {
-                            buffer.add(result);
-                        }
-                    } catch (InterruptedException e) {
-                        LOG.error(e.getMessage());
-                    } catch (ExecutionException e) {
-                        LOG.error(e.getMessage(), e);
-                    } catch (TimeoutException e) {
-                        // didnt finish
-                        future.cancel(true);
-                        LOG.warn("Cancelled a parse task, it didnt complete in time");
-                    }
-                }
-
-                if (buffer.size() >= batchSize) {
-                    addBeans(buffer);
-                    buffer.clear();
-                }
-
-                if (System.currentTimeMillis() - st > delay) {
-                    String lastPath = group.isEmpty() ? "EMPTY" : group.get(group.size() - 1).getPath();
-                    LOG.info("Num Docs : {}, Last file: {}", count, lastPath);
-                    st = System.currentTimeMillis();
-                }
-            } catch (SolrException e) {
-                LOG.error(e.getMessage(), e);
-                try {
-                    LOG.warn("Going to sleep for sometime");
-                    Thread.sleep(10000);
-                } catch (InterruptedException e1) {
-                    e1.printStackTrace();
-                }
-                LOG.warn("Woke Up! Going to add docs one by one");
-                int errCount = 0;
-                for (ContentBean bean : buffer) {
-                    try {
-                        addBean(bean);
-                    } catch (Exception e1) {
-                        errCount++;
-                        e1.printStackTrace();
-                    }
-                }
-                LOG.info("Clearing the buffer. Errors :{}", errCount);
-                //possibly an error in documents
-                buffer.clear();
-            } catch (Exception e){
-                LOG.error(e.getMessage(), e);
-                try {
-                    Thread.sleep(4000);
-                } catch (InterruptedException e1) {
-                    e1.printStackTrace();
-                }
-            }
-        }
-        try {
-            //left out
-            if (!buffer.isEmpty()) {
-                addBeans(buffer);
-            }
-            LOG.info("Num Docs = {}", count);
-
-        } catch (Exception e) {
-            e.printStackTrace();
-        } finally {
-            if (service != null) {
-                System.out.println("Shutting down the thread pool");
-                service.shutdown();
-            }
-        }
+        parseAndPost(getInputFiles(), file -> new ParseTask(file, parser).parse(),
+                file -> getDeadlines().start(Parser.detectByName(file.getName()), file.length()));
     }
 
     private Iterator<File> getInputFiles() {
@@ -286,15 +287,17 @@ public class DumpPoster implements Runnable, Closeable {
 
         try(DumpPoster poster = new DumpPoster()) {
             CmdLineParser parser = new CmdLineParser(poster);
+            poster.sinkOptions.addTo(parser);
+            poster.dedupOptions.addTo(parser);
             try {
                 parser.parseArgument(args);
                 if (poster.file == null && poster.listFile == null) {
                     throw new CmdLineException(parser,
                         "Either -in or -list is required.");
                 }
-                if (poster.solrUrl == null && poster.outputFile == null) {
+                if (poster.solrUrl == null && poster.outputFile == null && poster.cdrCredsFile == null) {
                     throw new CmdLineException(parser,
-                        "Either -solr or -out is required.");
+                        "At least one of -solr, -cdrcreds or -out is required.");
                 }
             } catch (CmdLineException e) {
                 System.out.println(e.getMessage());
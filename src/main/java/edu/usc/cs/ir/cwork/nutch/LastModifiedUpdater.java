@@ -1,12 +1,13 @@
 package edu.usc.cs.ir.cwork.nutch;
 
 import edu.usc.cs.ir.cwork.solr.SolrDocUpdates;
+import edu.usc.cs.ir.cwork.solr.SolrSink;
+import edu.usc.cs.ir.cwork.solr.SolrSinkOptions;
 import org.apache.commons.lang.time.DateUtils;
 import org.apache.nutch.net.protocols.HttpDateFormat;
 import org.apache.nutch.net.protocols.Response;
 import org.apache.nutch.protocol.Content;
 import org.apache.solr.client.solrj.SolrServer;
-import org.apache.solr.client.solrj.impl.HttpSolrServer;
 import org.apache.solr.common.SolrInputDocument;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
@@ -54,11 +55,12 @@ public class LastModifiedUpdater implements Runnable, Function<Content, SolrInpu
     @Option(name = "-batch", usage = "Batch size")
     private int batchSize = 1000;
 
+    private SolrSinkOptions sinkOptions = new SolrSinkOptions();
     private SolrServer solrServer;
     private Function<URL, String> pathFunction;
 
     private void init() throws MalformedURLException {
-        solrServer = new HttpSolrServer(solrUrl.toString());
+        solrServer = sinkOptions.createServer(solrUrl.toString());
         pathFunction = new NutchDumpPathBuilder(dumpDir);
     }
 
@@ -119,7 +121,10 @@ public class LastModifiedUpdater implements Runnable, Function<Content, SolrInpu
         try {
             this.init();
             SolrDocUpdates updates = new SolrDocUpdates(this, this.segmentListFile);
-            long count = OutlinkUpdater.indexAll(solrServer, updates, batchSize);
+            long count;
+            try (SolrSink sink = sinkOptions.newSink(solrServer, batchSize, null)) {
+                count = OutlinkUpdater.indexAll(sink, updates);
+            }
             System.out.println("Skipped : " + updates.getSkipCount());
             System.out.println("Count : " + count);
         } catch (Exception e) {
@@ -132,6 +137,7 @@ public class LastModifiedUpdater implements Runnable, Function<Content, SolrInpu
         //args = "-list /home/tg/tmp/seg.list -dumpRoot /data2/ -solr http://locahost:8983/solr/collection3".split(" ");
         LastModifiedUpdater generator = new LastModifiedUpdater();
         CmdLineParser parser = new CmdLineParser(generator);
+        generator.sinkOptions.addTo(parser);
         try {
             parser.parseArgument(args);
         } catch (CmdLineException e) {
@@ -1,6 +1,8 @@
 package edu.usc.cs.ir.cwork.nutch;
 
 import edu.usc.cs.ir.cwork.solr.SolrDocUpdates;
+import edu.usc.cs.ir.cwork.solr.SolrSink;
+import edu.usc.cs.ir.cwork.solr.SolrSinkOptions;
 import org.apache.commons.io.IOUtils;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.nutch.parse.Outlink;
@@ -11,8 +13,6 @@ import org.apache.nutch.parse.ParseUtil;
 import org.apache.nutch.protocol.Content;
 import org.apache.nutch.util.NutchConfiguration;
 import org.apache.solr.client.solrj.SolrServer;
-import org.apache.solr.client.solrj.SolrServerException;
-import org.apache.solr.client.solrj.impl.HttpSolrServer;
 import org.apache.solr.common.SolrInputDocument;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
@@ -55,6 +55,7 @@ public class OutlinkUpdater implements Runnable, Function<Content, SolrInputDocu
     @Option(name = "-batch", usage = "Batch size")
     private int batchSize = 1000;
 
+    private SolrSinkOptions sinkOptions = new SolrSinkOptions();
     private Configuration nutchConf;
     private ParseUtil parseUtil;
     private SolrServer solrServer;
@@ -72,7 +73,7 @@ public class OutlinkUpdater implements Runnable, Function<Content, SolrInputDocu
         parseUtil = new ParseUtil(nutchConf);
 
         //Step 2: initialize solr
-        solrServer = new HttpSolrServer(solrUrl.toString());
+        solrServer = sinkOptions.createServer(solrUrl.toString());
 
         //step 3: path function
         pathFunction = new NutchDumpPathBuilder(dumpDir);
@@ -157,75 +158,26 @@ public class OutlinkUpdater implements Runnable, Function<Content, SolrInputDocu
 
     /**
      * Indexes all the documents in the stream to solr
-     * @param solr the solr server
+     * @param sink the solr sink
      * @param docsStream input doc stream
-     * @param bufferSize buffer size
      * @return number of documents indexed
+     * @throws IOException when the sink fails
      */
-    public static long indexAll(SolrServer solr,
-                         Iterator<SolrInputDocument> docsStream,
-                         int bufferSize) {
-        List<SolrInputDocument> buffer = new ArrayList<>(bufferSize);
-
+    public static long indexAll(SolrSink sink,
+                         Iterator<SolrInputDocument> docsStream) throws IOException {
         long count = 0;
         int printDelay = 2 * 1000;
         long t1 = System.currentTimeMillis();
         while(docsStream.hasNext()) {
-
-            buffer.add(docsStream.next());
+            sink.add(docsStream.next());
             count++;
-
-            if (buffer.size() >= bufferSize) {
-                // process
-                try {
-                    solr.add(buffer);
-                } catch (SolrServerException e) {
-                    try {
-                        Thread.sleep(10*1000);
-                    } catch (InterruptedException e1) {
-                        e1.printStackTrace();
-                    }
-                    //One more attempt: add one by one
-                    for (SolrInputDocument document : buffer) {
-                        try {
-                            solr.add(document);
-                        } catch (Exception e1) {
-                            e1.printStackTrace();
-                        }
-                    }
-                } catch (IOException e) {
-                    LOG.error(e.getMessage(), e);
-                    try {
-                        Thread.sleep(10*1000);
-                    } catch (InterruptedException e1) {
-                        e1.printStackTrace();
-                    }
-                }
-
-                //empty the buffer.
-                buffer.clear();
-            }
-
             if (System.currentTimeMillis() - t1 > printDelay) {
                 t1 = System.currentTimeMillis();
                 LOG.info("Num docs : {}", count);
             }
         }
-
-        if (!buffer.isEmpty()) {
-            //process left out docs in buffer
-            try {
-                solr.add(buffer);
-            } catch (SolrServerException | IOException e) {
-                e.printStackTrace();
-            }
-        }
-        try {
-            LOG.info("End || Count:: {}", count);
-            LOG.info("Committing:: {}", solr.commit());
-        } catch (SolrServerException | IOException e) {
-            e.printStackTrace();
-        }
+        sink.flush();
+        LOG.info("End || Count:: {}", count);
         return count;
     }
 
@@ -235,7 +187,9 @@ public class OutlinkUpdater implements Runnable, Function<Content, SolrInputDocu
             this.init();
             SolrDocUpdates updates = new SolrDocUpdates(this, this.segmentListFile);
             updates.setSkipImages(true); //because images wont have outlinks
-            indexAll(solrServer, updates, batchSize);
+            try (SolrSink sink = sinkOptions.newSink(solrServer, batchSize, null)) {
+                indexAll(sink, updates);
+            }
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -246,6 +200,7 @@ public class OutlinkUpdater implements Runnable, Function<Content, SolrInputDocu
         //args = "-list /home/tg/tmp/seg.list -dumpRoot /data2 -nutch /home/tg/work/coursework/cs572/nutch -solr http://locahost:8983/solr/collection3".split(" ");
         OutlinkUpdater generator = new OutlinkUpdater();
         CmdLineParser parser = new CmdLineParser(generator);
+        generator.sinkOptions.addTo(parser);
         try {
             parser.parseArgument(args);
         } catch (CmdLineException e) {
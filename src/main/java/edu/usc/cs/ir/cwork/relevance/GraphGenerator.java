@@ -1,10 +1,11 @@
 package edu.usc.cs.ir.cwork.relevance;
 
+import edu.usc.cs.ir.cwork.solr.ExportDocIterator;
 import edu.usc.cs.ir.cwork.solr.SolrDocIterator;
 import org.apache.commons.math3.util.Pair;
-import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.impl.HttpSolrServer;
 import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.params.CursorMarkParams;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
@@ -19,6 +20,7 @@ import java.net.URL;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.Iterator;
 
 /**
  * This class offers functionality for graph creation and also provides command line interface.
@@ -50,6 +52,9 @@ public class GraphGenerator {
     @Option(name = "-edge", usage = "Edge type. This should be a field in solr docs.", required = true)
     private EdgeType edgeType;
 
+    @Option(name = "-export", usage = "Read the vertices in one stream from the /export handler of solr." +
+            " Needs docValues on the id field")
+    private boolean export = false;
 
     public static final String RANGE_QRY = "[%s TO %s]";
     public static final String SOLR_DATE_FMT = "YYYY-MM-dd'T'HH:mm:ss.SSS'Z'";
@@ -72,14 +77,17 @@ public class GraphGenerator {
         long edgeCount = 0;
         long vertexCount = 0;
         long st = System.currentTimeMillis();
-        SolrServer solr = new HttpSolrServer(solrUrl.toString());
+        HttpSolrServer solr = new HttpSolrServer(solrUrl.toString());
 
         try (BufferedWriter writer = new BufferedWriter(new FileWriter(outputFile))){
             String idField = "id";
 
             String fieldValueJoin = "{!join from="+ field +" to=" + field + "}";
             // for each doc that has locations
-            SolrDocIterator iterator = new SolrDocIterator(solr, field + ":*", idField);
+            Iterator<SolrDocument> iterator = export
+                    ? new ExportDocIterator(solr, field + ":*", null, idField)
+                    : SolrDocIterator.withCursor(solr, field + ":*", SolrDocIterator.DEF_ROWS, null,
+                            CursorMarkParams.CURSOR_MARK_START, idField);
             while (iterator.hasNext()){
                 SolrDocument doc = iterator.next();
                 String id1 = (String) doc.getFieldValue(idField);
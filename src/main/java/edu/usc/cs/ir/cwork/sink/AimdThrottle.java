@@ -0,0 +1,185 @@
+package edu.usc.cs.ir.cwork.sink;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Limits the batches in flight and the rate at which they are submitted.
+ * In adaptive mode the limits follow AIMD: the in-flight limit grows by one batch per window
+ * of healthy acknowledgements, and is halved, at most once per window, when the destination
+ * fails with a transient error or its latency per doc grows well over the best seen. A delay
+ * between submissions is added under congestion, doubling each time, and is taken away
+ * gradually as the destination recovers.
+ * The callers of {@link #acquire()} block meanwhile, which slows down whatever feeds them.
+ */
+public class AimdThrottle {
+
+    public static final Logger LOG = LoggerFactory.getLogger(AimdThrottle.class);
+
+    public static final double DEF_TOLERANCE = 2.0;
+    public static final long MIN_DELAY = 100;
+    public static final long DEF_MAX_DELAY = 10 * 1000;
+    private static final double ALPHA = 0.2;
+    private static final double BASELINE_DECAY = 1.01;
+
+    private final boolean adaptive;
+    private final int minInFlight;
+    private final int maxInFlight;
+    private final long maxDelay;
+    private double tolerance = DEF_TOLERANCE;
+
+    private double limit;
+    private long delay = 0;
+    private int active = 0;
+    private long lastSubmit = 0;
+    private double latency = -1;
+    private double baseline = -1;
+    private long numDecreases = 0;
+    private int sinceDecrease;
+
+    /**
+     * Creates a throttle with a fixed limit
+     * @param maxInFlight number of batches in flight
+     */
+    public AimdThrottle(int maxInFlight) {
+        this(maxInFlight, maxInFlight, 0, false);
+    }
+
+    /**
+     * Creates an adaptive throttle, which starts with the max limit
+     * @param minInFlight lower bound for the batches in flight
+     * @param maxInFlight upper bound for the batches in flight
+     * @param maxDelay upper bound for the delay between submissions in millis
+     */
+    public AimdThrottle(int minInFlight, int maxInFlight, long maxDelay) {
+        this(minInFlight, maxInFlight, maxDelay, true);
+    }
+
+    private AimdThrottle(int minInFlight, int maxInFlight, long maxDelay, boolean adaptive) {
+        if (minInFlight < 1 || minInFlight > maxInFlight) {
+            throw new IllegalArgumentException("in flight limits should be 1 <= min <= max");
+        }
+        this.minInFlight = minInFlight;
+        this.maxInFlight = maxInFlight;
+        this.maxDelay = maxDelay;
+        this.adaptive = adaptive;
+        this.limit = maxInFlight;
+        this.sinceDecrease = maxInFlight;
+    }
+
+    /**
+     * @param tolerance how many times the best latency is taken as congestion
+     */
+    public void setTolerance(double tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * Waits until a batch can be submitted
+     * @throws InterruptedException when interrupted
+     */
+    public synchronized void acquire() throws InterruptedException {
+        while (true) {
+            if (active < (int) limit) {
+                long wait = lastSubmit + delay - System.currentTimeMillis();
+                if (wait <= 0) {
+                    break;
+                }
+                wait(wait);
+            } else {
+                wait();
+            }
+        }
+        active++;
+        lastSubmit = System.currentTimeMillis();
+    }
+
+    /**
+     * Releases the slot of a batch which is done with
+     */
+    public synchronized void release() {
+        active--;
+        notifyAll();
+    }
+
+    /**
+     * Waits until no batch is in flight
+     * @throws InterruptedException when interrupted
+     */
+    public synchronized void awaitIdle() throws InterruptedException {
+        while (active > 0) {
+            wait();
+        }
+    }
+
+    /**
+     * Records an acknowledged batch
+     * @param docs number of docs in the batch
+     * @param millis time taken by the batch
+     */
+    public synchronized void onSuccess(int docs, long millis) {
+        if (!adaptive || docs == 0) {
+            return;
+        }
+        sinceDecrease++;
+        double perDoc = (double) millis / docs;
+        latency = latency < 0 ? perDoc : ALPHA * perDoc + (1 - ALPHA) * latency;
+        // the baseline creeps up, so that an old best doesn't hold the limit down forever
+        baseline = baseline < 0 ? latency : Math.min(latency, baseline * BASELINE_DECAY);
+        if (latency > baseline * tolerance) {
+            decrease("latency " + (long) latency + "ms/doc, best " + (long) baseline + "ms/doc");
+        } else {
+            limit = Math.min(maxInFlight, limit + 1.0 / limit);
+            if (sinceDecrease > (int) limit) {
+                // the delay holds for a window, else a flaky destination would never see it grow
+                delay = delay <= MIN_DELAY ? 0 : delay - MIN_DELAY;
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * Records a transient failure of the destination
+     */
+    public synchronized void onFailure() {
+        if (adaptive) {
+            decrease("transient error");
+            notifyAll();
+        }
+    }
+
+    private void decrease(String reason) {
+        if (sinceDecrease < (int) limit) {
+            // once per window, the batches in flight were sent before the last decrease
+            return;
+        }
+        sinceDecrease = 0;
+        limit = Math.max(minInFlight, limit / 2);
+        delay = Math.min(maxDelay, Math.max(MIN_DELAY, delay * 2));
+        numDecreases++;
+        LOG.warn("Backing off on {} : in flight limit={}, delay={}ms", reason, (int) limit, delay);
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized long getDelay() {
+        return delay;
+    }
+
+    public synchronized long getNumDecreases() {
+        return numDecreases;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return adaptive
+                ? "inFlightLimit=" + (int) limit + ", delay=" + delay + "ms, backoffs=" + numDecreases
+                : "inFlightLimit=" + (int) limit;
+    }
+}
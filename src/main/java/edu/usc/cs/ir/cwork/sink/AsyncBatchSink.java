@@ -0,0 +1,385 @@
+package edu.usc.cs.ir.cwork.sink;
+
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * A sink which fills a batch while the background senders post the previous ones.
+ * At most {@code maxInFlight} batches are posted at a time, when all of them are busy
+ * the {@link #add(Object)} blocks until one of them is acknowledged. With an adaptive
+ * {@link AimdThrottle}, the limit and the rate of batches follow the latency and errors of the
+ * destination, and the blocked {@link #add(Object)} slows down the stages feeding this sink.
+ * A batch is closed when the {@link BatchPolicy} says so, on docs, estimated bytes or age.
+ * Failed batches are retried or split by the {@link BatchRetrier}, and the outcome is reported to
+ * the {@link BatchListener}: the parts of the batch which made it, and the documents which were
+ * rejected or couldn't be sent.
+ * @param <T> type of document
+ */
+public abstract class AsyncBatchSink<T> implements DocSink<T> {
+
+    public static final Logger LOG = LoggerFactory.getLogger(AsyncBatchSink.class);
+
+    private final String name;
+    private final BatchPolicy policy;
+    private final SizeEstimator<T> estimator;
+    private final int maxInFlight;
+    private AimdThrottle throttle;
+    private final ExecutorService senders;
+    private final ScheduledExecutorService timer;
+    private final BatchListener<T> listener;
+    private final BatchRetrier<T> retrier;
+    private DeadLetterStore deadLetters;
+    private volatile boolean deferredOutcome = false;
+    private final BatchStats batchStats = new BatchStats();
+    private List<T> batch;
+    private long batchBytes;
+    private long batchStart;
+    private boolean closed = false;
+
+    private final AtomicLong numDocs = new AtomicLong();
+    private final AtomicLong numBatches = new AtomicLong();
+    private final AtomicLong numFailedDocs = new AtomicLong();
+    private final AtomicLong numFailedBatches = new AtomicLong();
+    private final AtomicLong sendMillis = new AtomicLong();
+
+    /**
+     * @param name name of the sink, used for logging and thread names
+     * @param batchSize number of docs in a batch
+     * @param maxInFlight number of batches that can be posted concurrently
+     * @param listener listener for the outcome of batches, null to log the errors
+     */
+    protected AsyncBatchSink(String name, int batchSize, int maxInFlight,
+                             BatchListener<T> listener) {
+        this(name, BatchPolicy.ofDocs(batchSize), null, maxInFlight, listener);
+    }
+
+    /**
+     * @param name name of the sink, used for logging and thread names
+     * @param policy decides when a batch is full
+     * @param estimator estimates the size of docs, null when the bytes are not limited
+     * @param maxInFlight number of batches that can be posted concurrently
+     * @param listener listener for the outcome of batches, null to log the errors
+     */
+    protected AsyncBatchSink(String name, BatchPolicy policy, SizeEstimator<T> estimator,
+                             int maxInFlight, BatchListener<T> listener) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("max in flight should be positive");
+        }
+        if (policy.getMaxBytes() > 0 && estimator == null) {
+            throw new IllegalArgumentException("size estimator is required to limit the bytes");
+        }
+        this.name = name;
+        this.policy = policy;
+        this.estimator = estimator;
+        this.maxInFlight = maxInFlight;
+        this.throttle = new AimdThrottle(maxInFlight);
+        this.listener = listener != null ? listener
+                : (docs, e) -> LOG.error("{} : lost a batch of {} docs : {}", name, docs.size(), e.getMessage(), e);
+        this.retrier = new BatchRetrier<>(this::send, this::isTransient);
+        retrier.setTransientErrorHook(e -> throttle.onFailure());
+        this.batch = new ArrayList<>();
+        AtomicInteger threadCount = new AtomicInteger();
+        this.senders = Executors.newFixedThreadPool(maxInFlight, r -> {
+            Thread thread = new Thread(r, name + "-sender-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (policy.getMaxMillis() > 0) {
+            this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, name + "-timer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long period = Math.max(10, policy.getMaxMillis() / 4);
+            timer.scheduleWithFixedDelay(this::dispatchIfDue, period, period, TimeUnit.MILLISECONDS);
+        } else {
+            this.timer = null;
+        }
+    }
+
+    /**
+     * Posts a batch to the destination
+     * @param batch the documents
+     * @throws Exception when the batch is not acknowledged
+     */
+    protected abstract void send(List<T> batch) throws Exception;
+
+    /**
+     * Tells if an error is transient, so that the same batch is worth retrying.
+     * Any other error is taken as a rejection of some documents of the batch.
+     * @param e the error
+     * @return true for I/O errors
+     */
+    protected boolean isTransient(Exception e) {
+        return BatchRetrier.isIOError(e);
+    }
+
+    /**
+     * Converts a document to JSON for the dead letter store
+     * @param doc the document
+     * @return JSON form of the document
+     */
+    protected JSONObject toJson(T doc) {
+        return new JSONObject().put("value", String.valueOf(doc));
+    }
+
+    /**
+     * Sets a store for the rejected documents, the store is closed along with this sink
+     * @param deadLetters the store
+     */
+    public void setDeadLetters(DeadLetterStore deadLetters) {
+        this.deadLetters = deadLetters;
+    }
+
+    /**
+     * Replaces the fixed in-flight limit, such as with an adaptive one.
+     * Should be set before adding any document
+     * @param throttle the throttle, its max in flight should not be over the one of this sink
+     */
+    public void setThrottle(AimdThrottle throttle) {
+        if (throttle.getMaxInFlight() > maxInFlight) {
+            throw new IllegalArgumentException("throttle allows more than " + maxInFlight + " in flight");
+        }
+        this.throttle = throttle;
+    }
+
+    /**
+     * Called while flushing, once the batches of this sink are done. A destination which queues
+     * the batches, see {@link #setDeferredOutcome(boolean)}, should wait here until they are sent
+     * @throws IOException when an error occurs
+     */
+    protected void onFlush() throws IOException {
+    }
+
+    /**
+     * Called after all the batches are acknowledged, while closing the sink
+     * @throws IOException when an error occurs
+     */
+    protected void onClose() throws IOException {
+    }
+
+    @Override
+    public synchronized void add(T doc) throws IOException {
+        if (closed) {
+            throw new IOException(name + " is closed");
+        }
+        long docBytes = estimator == null ? 0 : estimator.estimate(doc);
+        if (policy.overflows(batch.size(), batchBytes, docBytes)) {
+            dispatch(BatchPolicy.Trigger.BYTES);
+        }
+        if (batch.isEmpty()) {
+            batchStart = System.currentTimeMillis();
+        }
+        batch.add(doc);
+        batchBytes += docBytes;
+        BatchPolicy.Trigger trigger = policy.isFull(batch.size(), batchBytes);
+        if (trigger != null) {
+            dispatch(trigger);
+        }
+    }
+
+    private synchronized void dispatchIfDue() {
+        if (!closed && !batch.isEmpty() && policy.isDue(System.currentTimeMillis() - batchStart)) {
+            try {
+                dispatch(BatchPolicy.Trigger.TIME);
+            } catch (IOException e) {
+                LOG.warn("{} : {}", name, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Hands over the current batch to a sender, waits if all the senders are busy
+     * @param trigger the reason for closing the batch
+     * @throws IOException when interrupted
+     */
+    private void dispatch(BatchPolicy.Trigger trigger) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        List<T> full = batch;
+        batchStats.record(full.size(), batchBytes, trigger);
+        batch = new ArrayList<>(full.size());
+        batchBytes = 0;
+        AimdThrottle throttle = this.throttle;
+        try {
+            throttle.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + name);
+        }
+        senders.execute(() -> {
+            try {
+                retrier.send(full, deferredOutcome ? queued : outcome);
+            } catch (InterruptedException e) {
+                outcome.onFailure(full, e);
+            } finally {
+                throttle.release();
+            }
+        });
+    }
+
+    /**
+     * Counts the outcome and passes it on to the listener
+     */
+    private final BatchListener<T> outcome = new BatchListener<T>() {
+        @Override
+        public void onSuccess(List<T> docs, long millis) {
+            numDocs.addAndGet(docs.size());
+            numBatches.incrementAndGet();
+            sendMillis.addAndGet(millis);
+            throttle.onSuccess(docs.size(), millis);
+            try {
+                listener.onSuccess(docs, millis);
+            } catch (Exception e) {
+                LOG.error(e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public void onFailure(List<T> docs, Exception e) {
+            numFailedDocs.addAndGet(docs.size());
+            numFailedBatches.incrementAndGet();
+            DeadLetterStore deadLetters = AsyncBatchSink.this.deadLetters;
+            if (deadLetters != null) {
+                deadLetters.write(name, docs.stream().map(AsyncBatchSink.this::toJson)
+                        .collect(Collectors.toList()), e);
+            }
+            try {
+                listener.onFailure(docs, e);
+            } catch (Exception e1) {
+                LOG.error(e1.getMessage(), e1);
+            }
+        }
+    };
+
+    /**
+     * The outcome of a batch which was only queued by the destination: its success is reported later
+     */
+    private final BatchListener<T> queued = new BatchListener<T>() {
+        @Override
+        public void onSuccess(List<T> docs, long millis) {
+        }
+
+        @Override
+        public void onFailure(List<T> docs, Exception e) {
+            outcome.onFailure(docs, e);
+        }
+    };
+
+    /**
+     * Leaves the success of the batches to be reported by {@link #reportSuccess(List, long)}, for a
+     * destination which returns once a batch is queued and sends it later. Else the queued batches
+     * would be counted as acknowledged, and the time in the queue would drive the throttle
+     * @param deferred true when the destination reports the success of the batches
+     */
+    public void setDeferredOutcome(boolean deferred) {
+        this.deferredOutcome = deferred;
+    }
+
+    /**
+     * Reports documents which were acknowledged after they left this sink, such as from a queue of
+     * the server, see {@link #setDeferredOutcome(boolean)}
+     * @param docs the documents
+     * @param millis time taken to send them
+     */
+    public void reportSuccess(List<T> docs, long millis) {
+        outcome.onSuccess(docs, millis);
+    }
+
+    /**
+     * Reports documents which failed after they left this sink, such as in a queue of the server
+     * @param docs the documents
+     * @param e the error
+     */
+    public void reportFailure(List<T> docs, Exception e) {
+        if (isTransient(e)) {
+            throttle.onFailure();
+        }
+        outcome.onFailure(docs, e);
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        dispatch(BatchPolicy.Trigger.FLUSH);
+        try {
+            throttle.awaitIdle();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while flushing " + name);
+        }
+        onFlush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            flush();
+            onClose();
+        } finally {
+            closed = true;
+            if (timer != null) {
+                timer.shutdownNow();
+            }
+            senders.shutdown();
+            try {
+                senders.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            LOG.info("{}", this);
+            LOG.info("{} batch sizes : {}", name, batchStats);
+            if (deadLetters != null) {
+                deadLetters.close();
+            }
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getNumDocs() {
+        return numDocs.get();
+    }
+
+    public long getNumFailedDocs() {
+        return numFailedDocs.get();
+    }
+
+    public BatchRetrier<T> getRetrier() {
+        return retrier;
+    }
+
+    public AimdThrottle getThrottle() {
+        return throttle;
+    }
+
+    public BatchStats getBatchStats() {
+        return batchStats;
+    }
+
+    @Override
+    public String toString() {
+        long batches = numBatches.get();
+        return String.format("%s[docs=%d, batches=%d, failedDocs=%d, failedBatches=%d, avgBatchTime=%dms, %s, %s]",
+                name, numDocs.get(), batches, numFailedDocs.get(), numFailedBatches.get(),
+                batches == 0 ? 0 : sendMillis.get() / batches, retrier, throttle);
+    }
+}
@@ -0,0 +1,26 @@
+package edu.usc.cs.ir.cwork.sink;
+
+import java.util.List;
+
+/**
+ * Gets notified when a batch of documents is acknowledged or rejected by the destination.
+ * The callbacks are invoked from the background sender threads.
+ * @param <T> type of document
+ */
+public interface BatchListener<T> {
+
+    /**
+     * Called after the batch is acknowledged
+     * @param batch the documents
+     * @param millis time taken to post the batch
+     */
+    default void onSuccess(List<T> batch, long millis) {
+    }
+
+    /**
+     * Called when the batch could not be posted
+     * @param batch the documents
+     * @param e the error
+     */
+    void onFailure(List<T> batch, Exception e);
+}
@@ -0,0 +1,37 @@
+package edu.usc.cs.ir.cwork.sink;
+
+import org.kohsuke.args4j.ClassParser;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+/**
+ * CLI options for the byte and time limits of batches, the doc limit is the command's -batch.
+ * Use {@link #addTo(CmdLineParser)} to add these options to the command's parser.
+ */
+public class BatchOptions {
+
+    @Option(name = "-batchBytes", usage = "Max estimated payload bytes in a batch, 0 for no limit")
+    private long maxBytes = 32 * 1024 * 1024;
+
+    @Option(name = "-batchMillis", usage = "Max time in millis a batch waits to be filled, 0 for no limit")
+    private long maxMillis = 60 * 1000;
+
+    /**
+     * Adds these options to a command line parser
+     * @param parser the parser of command
+     * @return this options
+     */
+    public BatchOptions addTo(CmdLineParser parser) {
+        new ClassParser().parse(this, parser);
+        return this;
+    }
+
+    /**
+     * Creates a batch policy
+     * @param maxDocs max number of docs in a batch
+     * @return batch policy
+     */
+    public BatchPolicy toPolicy(int maxDocs) {
+        return new BatchPolicy(maxDocs, maxBytes, maxMillis);
+    }
+}
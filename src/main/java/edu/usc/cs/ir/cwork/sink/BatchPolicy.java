@@ -0,0 +1,97 @@
+package edu.usc.cs.ir.cwork.sink;
+
+/**
+ * Decides when a batch is full. A batch is closed on whichever comes first among
+ * the number of docs, the estimated payload bytes and the age of the batch.
+ */
+public class BatchPolicy {
+
+    /**
+     * The reason for closing a batch
+     */
+    public enum Trigger {
+        DOCS,
+        BYTES,
+        TIME,
+        FLUSH
+    }
+
+    private final int maxDocs;
+    private final long maxBytes;
+    private final long maxMillis;
+
+    /**
+     * @param maxDocs max number of docs in a batch
+     * @param maxBytes max estimated payload bytes in a batch, 0 for no limit
+     * @param maxMillis max age of a batch in millis, 0 for no limit
+     */
+    public BatchPolicy(int maxDocs, long maxBytes, long maxMillis) {
+        if (maxDocs < 1 || maxBytes < 0 || maxMillis < 0) {
+            throw new IllegalArgumentException("max docs should be positive and the limits non negative");
+        }
+        this.maxDocs = maxDocs;
+        this.maxBytes = maxBytes;
+        this.maxMillis = maxMillis;
+    }
+
+    /**
+     * Creates a policy which only counts the docs
+     * @param maxDocs max number of docs in a batch
+     * @return the policy
+     */
+    public static BatchPolicy ofDocs(int maxDocs) {
+        return new BatchPolicy(maxDocs, 0, 0);
+    }
+
+    public int getMaxDocs() {
+        return maxDocs;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getMaxMillis() {
+        return maxMillis;
+    }
+
+    /**
+     * Checks if a batch is full
+     * @param docs number of docs in the batch
+     * @param bytes estimated bytes of the batch
+     * @return the trigger if the batch is full, null otherwise
+     */
+    public Trigger isFull(int docs, long bytes) {
+        if (docs >= maxDocs) {
+            return Trigger.DOCS;
+        }
+        if (maxBytes > 0 && bytes >= maxBytes) {
+            return Trigger.BYTES;
+        }
+        return null;
+    }
+
+    /**
+     * Checks if a doc should go to the next batch, so that this batch stays under the byte limit
+     * @param docs number of docs in the batch
+     * @param bytes estimated bytes of the batch
+     * @param docBytes estimated bytes of the doc
+     * @return true if the batch should be closed before adding the doc
+     */
+    public boolean overflows(int docs, long bytes, long docBytes) {
+        return maxBytes > 0 && docs > 0 && bytes + docBytes > maxBytes;
+    }
+
+    /**
+     * @param ageMillis time since the first doc of batch was added
+     * @return true if the batch is old enough to be closed
+     */
+    public boolean isDue(long ageMillis) {
+        return maxMillis > 0 && ageMillis >= maxMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "BatchPolicy[docs=" + maxDocs + ", bytes=" + maxBytes + ", millis=" + maxMillis + "]";
+    }
+}
@@ -0,0 +1,195 @@
+package edu.usc.cs.ir.cwork.sink;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Sends a batch and isolates the documents which make it fail.
+ * Transient errors (see {@link #isIOError(Throwable)}) are retried on the whole batch with exponential
+ * backoff. Any other error is taken as a rejection of some documents, so the batch is split in half
+ * and each half is sent again, recursively. A single bad document in a batch of n is thus found
+ * in about 2 log(n) requests, and only the bad documents are reported as failed.
+ * When the destination tells which documents failed with a {@link PartialBatchException}, which
+ * may be the cause of its error, the
+ * rest of the batch is taken as sent and the failed documents are retried one by one.
+ * @param <T> type of document
+ */
+public class BatchRetrier<T> {
+
+    public static final Logger LOG = LoggerFactory.getLogger(BatchRetrier.class);
+
+    public static final int DEF_MAX_RETRIES = 5;
+    public static final long DEF_INITIAL_BACKOFF = 500;
+    public static final long DEF_MAX_BACKOFF = 30 * 1000;
+
+    /**
+     * Sends a batch to the destination
+     * @param <T> type of document
+     */
+    @FunctionalInterface
+    public interface Sender<T> {
+        void send(List<T> batch) throws Exception;
+    }
+
+    private final Sender<T> sender;
+    private final Predicate<Exception> isTransient;
+    private int maxRetries = DEF_MAX_RETRIES;
+    private long initialBackoff = DEF_INITIAL_BACKOFF;
+    private long maxBackoff = DEF_MAX_BACKOFF;
+    private Consumer<Exception> transientErrorHook = e -> {};
+
+    private final AtomicLong numRequests = new AtomicLong();
+    private final AtomicLong numRetries = new AtomicLong();
+    private final AtomicLong numSplits = new AtomicLong();
+    private final AtomicLong numItemRetries = new AtomicLong();
+
+    /**
+     * @param sender sends the batches
+     * @param isTransient tells if an error is transient and the same batch is worth retrying
+     */
+    public BatchRetrier(Sender<T> sender, Predicate<Exception> isTransient) {
+        this.sender = sender;
+        this.isTransient = isTransient;
+    }
+
+    /**
+     * @param maxRetries max number of retries of a batch on transient errors
+     * @param initialBackoff wait time in millis before the first retry, doubled on each retry
+     * @param maxBackoff upper bound for the wait time in millis
+     */
+    public void setBackoff(int maxRetries, long initialBackoff, long maxBackoff) {
+        this.maxRetries = maxRetries;
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = maxBackoff;
+    }
+
+    /**
+     * @param hook called on every transient error, such as to slow down the submissions
+     */
+    public void setTransientErrorHook(Consumer<Exception> hook) {
+        this.transientErrorHook = hook;
+    }
+
+    /**
+     * Sends a batch, the listener is notified of each part of the batch which succeeded, and of each
+     * document which was rejected. A batch which keeps failing with transient errors is reported as
+     * failed as a whole.
+     * @param batch the documents
+     * @param listener listener for the outcome
+     * @throws InterruptedException when interrupted while backing off
+     */
+    public void send(List<T> batch, BatchListener<T> listener) throws InterruptedException {
+        long st = System.currentTimeMillis();
+        Exception error = attempt(batch);
+        PartialBatchException partial = PartialBatchException.find(error);
+        if (error == null) {
+            listener.onSuccess(batch, System.currentTimeMillis() - st);
+        } else if (partial != null && batch.size() > 1) {
+            Set<Integer> failed = partial.getFailed();
+            List<T> sent = new ArrayList<>();
+            List<T> retry = new ArrayList<>();
+            for (int i = 0; i < batch.size(); i++) {
+                (failed.contains(i) ? retry : sent).add(batch.get(i));
+            }
+            if (!sent.isEmpty()) {
+                listener.onSuccess(sent, System.currentTimeMillis() - st);
+            }
+            numItemRetries.addAndGet(retry.size());
+            LOG.warn("{} of {} docs failed, retrying them one by one : {}",
+                    retry.size(), batch.size(), error.getMessage());
+            for (T doc : retry) {
+                send(Collections.singletonList(doc), listener);
+            }
+        } else if (batch.size() == 1 || isTransient.test(error)) {
+            listener.onFailure(batch, error);
+        } else {
+            numSplits.incrementAndGet();
+            int mid = batch.size() / 2;
+            LOG.warn("Batch of {} docs rejected, splitting : {}", batch.size(), error.getMessage());
+            send(new ArrayList<>(batch.subList(0, mid)), listener);
+            send(new ArrayList<>(batch.subList(mid, batch.size())), listener);
+        }
+    }
+
+    /**
+     * Sends the batch, retries on transient errors
+     * @param batch the documents
+     * @return null when the batch is sent, the last error otherwise
+     * @throws InterruptedException when interrupted while backing off
+     */
+    private Exception attempt(List<T> batch) throws InterruptedException {
+        long backoff = initialBackoff;
+        for (int retry = 0; ; retry++) {
+            try {
+                numRequests.incrementAndGet();
+                sender.send(batch);
+                return null;
+            } catch (Exception e) {
+                if (PartialBatchException.find(e) != null && batch.size() > 1) {
+                    // the rest went through, only the failed docs are retried
+                    if (isTransient.test(e)) {
+                        transientErrorHook.accept(e);
+                    }
+                    return e;
+                }
+                if (!isTransient.test(e)) {
+                    return e;
+                }
+                transientErrorHook.accept(e);
+                if (retry >= maxRetries) {
+                    return e;
+                }
+                numRetries.incrementAndGet();
+                LOG.warn("Transient error, retry {} of {} docs in {}ms : {}",
+                        retry + 1, batch.size(), backoff, e.getMessage());
+                Thread.sleep(backoff);
+                backoff = Math.min(maxBackoff, backoff * 2);
+            }
+        }
+    }
+
+    /**
+     * Checks if an I/O error caused this error, which means the destination couldn't be reached
+     * @param e the error
+     * @return true if an {@link IOException} is in the cause chain
+     */
+    public static boolean isIOError(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof IOException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public long getNumRequests() {
+        return numRequests.get();
+    }
+
+    public long getNumRetries() {
+        return numRetries.get();
+    }
+
+    public long getNumSplits() {
+        return numSplits.get();
+    }
+
+    public long getNumItemRetries() {
+        return numItemRetries.get();
+    }
+
+    @Override
+    public String toString() {
+        return "requests=" + numRequests.get() + ", retries=" + numRetries.get()
+                + ", splits=" + numSplits.get() + ", itemRetries=" + numItemRetries.get();
+    }
+}
@@ -0,0 +1,94 @@
+package edu.usc.cs.ir.cwork.sink;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Distribution of the batch sizes, in docs and in estimated bytes.
+ * The sizes are counted in power of two buckets, so the reported percentiles are upper bounds.
+ */
+public class BatchStats {
+
+    private static final int NUM_BUCKETS = 64;
+
+    private final long[] docBuckets = new long[NUM_BUCKETS];
+    private final long[] byteBuckets = new long[NUM_BUCKETS];
+    private final Map<BatchPolicy.Trigger, Long> triggers = new EnumMap<>(BatchPolicy.Trigger.class);
+    private long count;
+    private long maxDocs;
+    private long maxBytes;
+    private long totalBytes;
+
+    /**
+     * Records a batch
+     * @param docs number of docs
+     * @param bytes estimated bytes
+     * @param trigger the reason for closing the batch
+     */
+    public synchronized void record(int docs, long bytes, BatchPolicy.Trigger trigger) {
+        count++;
+        docBuckets[bucket(docs)]++;
+        byteBuckets[bucket(bytes)]++;
+        maxDocs = Math.max(maxDocs, docs);
+        maxBytes = Math.max(maxBytes, bytes);
+        totalBytes += bytes;
+        triggers.merge(trigger, 1L, Long::sum);
+    }
+
+    /**
+     * @param value a size
+     * @return the bucket, values in [2^(b-1), 2^b) go to bucket b
+     */
+    static int bucket(long value) {
+        return value <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(value);
+    }
+
+    private static long percentile(long[] buckets, long count, double p) {
+        long rank = (long) Math.ceil(p * count);
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank && seen > 0) {
+                return i == 0 ? 0 : (1L << i) - 1;
+            }
+        }
+        return 0;
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized long getTriggerCount(BatchPolicy.Trigger trigger) {
+        return triggers.getOrDefault(trigger, 0L);
+    }
+
+    /**
+     * @param p the percentile in (0, 1]
+     * @return upper bound of the batch size in docs at the percentile
+     */
+    public synchronized long docsPercentile(double p) {
+        return Math.min(maxDocs, percentile(docBuckets, count, p));
+    }
+
+    /**
+     * @param p the percentile in (0, 1]
+     * @return upper bound of the batch size in bytes at the percentile
+     */
+    public synchronized long bytesPercentile(double p) {
+        return Math.min(maxBytes, percentile(byteBuckets, count, p));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("batches=%d, docs[p50<=%d, p90<=%d, max=%d], " +
+                        "bytes[avg=%d, p50<=%d, p90<=%d, max=%d], closedBy=%s",
+                count, docsPercentile(0.5), docsPercentile(0.9), maxDocs,
+                count == 0 ? 0 : totalBytes / count, bytesPercentile(0.5), bytesPercentile(0.9),
+                maxBytes, triggers);
+    }
+}
@@ -0,0 +1,127 @@
+package edu.usc.cs.ir.cwork.sink;
+
+import org.apache.commons.io.LineIterator;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * An append only store of the documents which were rejected by a sink.
+ * Each rejected document is a line of JSON having the document along with the error,
+ * the sink, the source of the run and the time, so it can be replayed once the problem is fixed.
+ */
+public class DeadLetterStore implements Closeable {
+
+    public static final Logger LOG = LoggerFactory.getLogger(DeadLetterStore.class);
+
+    public static final String TIME = "time";
+    public static final String SINK = "sink";
+    public static final String SOURCE = "source";
+    public static final String ERROR = "error";
+    public static final String DOC = "doc";
+
+    private final File file;
+    private final String source;
+    private final Writer writer;
+    private long count = 0;
+
+    /**
+     * Opens the store for appending
+     * @param file the file, created if it doesn't exist
+     * @param source the source of documents, such as the command and its input
+     * @throws IOException when the file can't be opened
+     */
+    public DeadLetterStore(File file, String source) throws IOException {
+        this.file = file;
+        this.source = source;
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        this.writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file, true), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Appends the rejected documents
+     * @param sink name of the sink
+     * @param docs the documents in JSON
+     * @param error the error
+     */
+    public synchronized void write(String sink, List<JSONObject> docs, Exception error) {
+        String time = Instant.now().toString();
+        try {
+            for (JSONObject doc : docs) {
+                JSONObject record = new JSONObject();
+                record.put(TIME, time);
+                record.put(SINK, sink);
+                record.put(SOURCE, source);
+                record.put(ERROR, String.valueOf(error));
+                record.put(DOC, doc);
+                writer.write(record.toString());
+                writer.write('\n');
+                count++;
+            }
+            // the run may not finish well, the records written so far shouldn't be lost
+            writer.flush();
+        } catch (IOException e) {
+            LOG.error("Couldn't write {} docs to {} : {}", docs.size(), file, e.getMessage(), e);
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+        if (count > 0) {
+            LOG.warn("{} rejected docs are in {}", count, file);
+        }
+    }
+
+    /**
+     * Reads the records of a store
+     * @param file the store file
+     * @return iterator of records, see the constants for the keys
+     * @throws IOException when the file can't be read
+     */
+    public static Iterator<JSONObject> read(File file) throws IOException {
+        LineIterator lines = new LineIterator(new InputStreamReader(
+                Files.newInputStream(file.toPath()), StandardCharsets.UTF_8));
+        return new Iterator<JSONObject>() {
+            @Override
+            public boolean hasNext() {
+                boolean hasNext = lines.hasNext();
+                if (!hasNext) {
+                    lines.close();
+                }
+                return hasNext;
+            }
+
+            @Override
+            public JSONObject next() {
+                return new JSONObject(lines.next());
+            }
+        };
+    }
+}
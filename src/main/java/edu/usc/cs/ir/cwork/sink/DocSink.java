@@ -0,0 +1,24 @@
+package edu.usc.cs.ir.cwork.sink;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A destination to which documents are written
+ * @param <T> type of document
+ */
+public interface DocSink<T> extends Closeable {
+
+    /**
+     * Adds a document. The document may be buffered and written later
+     * @param doc the document
+     * @throws IOException when the sink is closed or the write fails
+     */
+    void add(T doc) throws IOException;
+
+    /**
+     * Writes the buffered documents and waits until they are acknowledged
+     * @throws IOException when an error occurs
+     */
+    void flush() throws IOException;
+}
@@ -0,0 +1,128 @@
+package edu.usc.cs.ir.cwork.sink;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Writes each document to several sinks, so that one parse pass feeds all the outputs,
+ * such as solr, elastic search and a JSON lines file.
+ * Each sink maps the document to its own form, and keeps its own batching and failure handling.
+ * An error of one sink doesn't keep the document from the others, it is thrown after all of
+ * them have seen the document.
+ * @param <T> type of document
+ */
+public class FanOutSink<T> implements DocSink<T> {
+
+    public static final Logger LOG = LoggerFactory.getLogger(FanOutSink.class);
+
+    /**
+     * A sink along with the mapping of documents to its type
+     */
+    private static class Branch<T, U> {
+        private final String name;
+        private final DocSink<U> sink;
+        private final Function<? super T, ? extends U> mapper;
+        private long numErrors = 0;
+
+        private Branch(String name, DocSink<U> sink, Function<? super T, ? extends U> mapper) {
+            this.name = name;
+            this.sink = sink;
+            this.mapper = mapper;
+        }
+
+        private void add(T doc) throws IOException {
+            U mapped = mapper.apply(doc);
+            if (mapped != null) {
+                sink.add(mapped);
+            }
+        }
+    }
+
+    private final List<Branch<T, ?>> branches = new ArrayList<>();
+
+    /**
+     * Adds a sink
+     * @param name name of the sink, for logging
+     * @param sink the sink, closed along with this one
+     * @param mapper maps the documents to the type of sink, may return null to skip a document
+     * @param <U> type of the documents of the sink
+     * @return this sink
+     */
+    public synchronized <U> FanOutSink<T> to(String name, DocSink<U> sink,
+                                             Function<? super T, ? extends U> mapper) {
+        branches.add(new Branch<>(name, sink, mapper));
+        return this;
+    }
+
+    /**
+     * @return true when no sink is added
+     */
+    public synchronized boolean isEmpty() {
+        return branches.isEmpty();
+    }
+
+    @Override
+    public synchronized void add(T doc) throws IOException {
+        IOException error = null;
+        for (Branch<T, ?> branch : branches) {
+            try {
+                branch.add(doc);
+            } catch (IOException | RuntimeException e) {
+                branch.numErrors++;
+                LOG.error("{} : couldn't add {} : {}", branch.name, doc, e.getMessage());
+                error = error == null ? asIOException(e) : error;
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        IOException error = null;
+        for (Branch<T, ?> branch : branches) {
+            try {
+                branch.sink.flush();
+            } catch (IOException | RuntimeException e) {
+                LOG.error("{} : flush failed : {}", branch.name, e.getMessage(), e);
+                error = error == null ? asIOException(e) : error;
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Closes all the sinks, even when some of them fail
+     * @throws IOException the first error
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        IOException error = null;
+        for (Branch<T, ?> branch : branches) {
+            try {
+                branch.sink.close();
+            } catch (IOException | RuntimeException e) {
+                LOG.error("{} : close failed : {}", branch.name, e.getMessage(), e);
+                error = error == null ? asIOException(e) : error;
+            }
+            if (branch.numErrors > 0) {
+                LOG.warn("{} : {} docs couldn't be added", branch.name, branch.numErrors);
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private static IOException asIOException(Exception e) {
+        return e instanceof IOException ? (IOException) e : new IOException(e);
+    }
+}
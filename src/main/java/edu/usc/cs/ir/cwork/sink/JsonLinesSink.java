@@ -0,0 +1,59 @@
+package edu.usc.cs.ir.cwork.sink;
+
+import org.json.JSONObject;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes the documents to a file, one JSON object per line
+ */
+public class JsonLinesSink implements DocSink<JSONObject> {
+
+    private final File file;
+    private final Writer writer;
+    private long count = 0;
+
+    /**
+     * @param file the output file, which should not exist
+     * @throws IOException when the file exists or can't be created
+     */
+    public JsonLinesSink(File file) throws IOException {
+        if (file.exists()) {
+            throw new IllegalArgumentException("File " + file + " already exists");
+        }
+        this.file = file;
+        this.writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file), StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public synchronized void add(JSONObject doc) throws IOException {
+        writer.write(doc.toString());
+        writer.write('\n');
+        count++;
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        writer.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+}
@@ -0,0 +1,62 @@
+package edu.usc.cs.ir.cwork.sink;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Thrown by a sender when the destination took a batch but rejected some of its documents,
+ * such as the failed items of an elastic search bulk response.
+ * The {@link BatchRetrier} takes the rest of the batch as sent and retries the failed documents
+ * one by one.
+ */
+public class PartialBatchException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Set<Integer> failed;
+    private final boolean isTransient;
+
+    /**
+     * @param failed positions of the failed documents in the batch
+     * @param isTransient true when all the failures are worth retrying, such as rejections on a full queue
+     * @param message description of the failures
+     */
+    public PartialBatchException(Set<Integer> failed, boolean isTransient, String message) {
+        this(failed, isTransient, message, null);
+    }
+
+    /**
+     * @param failed positions of the failed documents in the batch
+     * @param isTransient true when all the failures are worth retrying
+     * @param message description of the failures
+     * @param cause the error of the failed documents
+     */
+    public PartialBatchException(Set<Integer> failed, boolean isTransient, String message, Throwable cause) {
+        super(message, cause);
+        this.failed = Collections.unmodifiableSet(failed);
+        this.isTransient = isTransient;
+    }
+
+    /**
+     * Finds a partial failure in the cause chain of an error, such as one wrapped in a
+     * SolrServerException by a solr server
+     * @param e the error
+     * @return the partial failure, null when the error isn't one
+     */
+    public static PartialBatchException find(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof PartialBatchException) {
+                return (PartialBatchException) t;
+            }
+        }
+        return null;
+    }
+
+    public Set<Integer> getFailed() {
+        return failed;
+    }
+
+    public boolean isTransient() {
+        return isTransient;
+    }
+}
@@ -0,0 +1,267 @@
+package edu.usc.cs.ir.cwork.sink;
+
+import org.apache.commons.io.FileUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes the documents as JSON lines to a directory of shard files, each shard on its own thread,
+ * so the serialization and the compression run in parallel. The documents are dealt to the shards
+ * in turn. A shard file is rolled over to the next one once it has the given bytes of JSON.
+ * On close, a {@link #MANIFEST} lists the files along with their docs and bytes, so that the
+ * readers can pick the files up concurrently.
+ * The files are named {@code part-<shard>-<seq>.jsonl[.gz]}.
+ */
+public class ShardedJsonLinesSink implements DocSink<JSONObject> {
+
+    public static final Logger LOG = LoggerFactory.getLogger(ShardedJsonLinesSink.class);
+
+    public static final String MANIFEST = "manifest.json";
+    public static final long DEF_ROLL_BYTES = 256 * 1024 * 1024;
+    public static final int QUEUE_SIZE = 1000;
+
+    private static final Object END = new Object();
+
+    private final File dir;
+    private final long rollBytes;
+    private final boolean gzip;
+    private final List<ShardWriter> writers = new ArrayList<>();
+    private volatile IOException error;
+    private long count = 0;
+    private boolean closed = false;
+
+    /**
+     * @param dir the output directory, which should not have a manifest yet
+     * @param shards number of shards written in parallel
+     * @param rollBytes bytes of JSON after which a shard file is rolled, 0 to never roll
+     * @param gzip true to gzip the files
+     * @throws IOException when the directory can't be created
+     */
+    public ShardedJsonLinesSink(File dir, int shards, long rollBytes, boolean gzip) throws IOException {
+        if (shards < 1) {
+            throw new IllegalArgumentException("shards should be positive");
+        }
+        if (new File(dir, MANIFEST).exists()) {
+            throw new IllegalArgumentException("Directory " + dir + " already has an output");
+        }
+        FileUtils.forceMkdir(dir);
+        this.dir = dir;
+        this.rollBytes = rollBytes;
+        this.gzip = gzip;
+        for (int i = 0; i < shards; i++) {
+            ShardWriter writer = new ShardWriter(i);
+            writers.add(writer);
+            writer.start();
+        }
+    }
+
+    /**
+     * Writes the files of a shard, one after the other
+     */
+    private class ShardWriter extends Thread {
+
+        private final int shard;
+        private final BlockingQueue<Object> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+        private final List<JSONObject> files = new ArrayList<>();
+        private OutputStream out;
+        private File file;
+        private long fileDocs;
+        private long fileBytes;
+
+        private ShardWriter(int shard) {
+            super("jsonl-shard-" + shard);
+            this.shard = shard;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Object item = queue.take();
+                    if (item == END) {
+                        break;
+                    }
+                    try {
+                        if (item instanceof CountDownLatch) {
+                            try {
+                                if (out != null && error == null) {
+                                    out.flush();
+                                }
+                            } finally {
+                                // released even when failing, or the flush would wait forever
+                                ((CountDownLatch) item).countDown();
+                            }
+                        } else if (error == null) {
+                            write((JSONObject) item);
+                        } // else drain, the sink is failing
+                    } catch (IOException e) {
+                        LOG.error("Shard {} failed : {}", shard, e.getMessage(), e);
+                        error = e;
+                    }
+                }
+                closeFile();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                LOG.error("Shard {} failed : {}", shard, e.getMessage(), e);
+                error = e;
+            }
+        }
+
+        private void write(JSONObject doc) throws IOException {
+            if (out == null) {
+                openFile();
+            }
+            byte[] line = (doc.toString() + '\n').getBytes(StandardCharsets.UTF_8);
+            out.write(line);
+            fileDocs++;
+            fileBytes += line.length;
+            if (rollBytes > 0 && fileBytes >= rollBytes) {
+                closeFile();
+            }
+        }
+
+        private void openFile() throws IOException {
+            String name = String.format("part-%05d-%05d.jsonl%s", shard, files.size(), gzip ? ".gz" : "");
+            file = new File(dir, name);
+            out = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+            if (gzip) {
+                out = new GZIPOutputStream(out, 64 * 1024);
+            }
+            fileDocs = 0;
+            fileBytes = 0;
+        }
+
+        private void closeFile() throws IOException {
+            if (out == null) {
+                return;
+            }
+            out.close();
+            JSONObject entry = new JSONObject();
+            entry.put("file", file.getName());
+            entry.put("shard", shard);
+            entry.put("docs", fileDocs);
+            entry.put("bytes", fileBytes);
+            entry.put("size", file.length());
+            files.add(entry);
+            out = null;
+        }
+    }
+
+    private void checkError() throws IOException {
+        if (error != null) {
+            throw new IOException("Couldn't write to " + dir, error);
+        }
+    }
+
+    private void put(ShardWriter writer, Object item) throws IOException {
+        try {
+            writer.queue.put(item);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing to " + dir);
+        }
+    }
+
+    @Override
+    public synchronized void add(JSONObject doc) throws IOException {
+        if (closed) {
+            throw new IOException(dir + " is closed");
+        }
+        checkError();
+        put(writers.get((int) (count++ % writers.size())), doc);
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        if (closed) {
+            return;
+        }
+        CountDownLatch latch = new CountDownLatch(writers.size());
+        for (ShardWriter writer : writers) {
+            put(writer, latch);
+        }
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while flushing " + dir);
+        }
+        checkError();
+    }
+
+    /**
+     * Closes the shards and writes the manifest
+     * @throws IOException when a shard or the manifest couldn't be written
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (ShardWriter writer : writers) {
+            put(writer, END);
+        }
+        JSONArray files = new JSONArray();
+        for (ShardWriter writer : writers) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while closing " + dir);
+            }
+            writer.files.forEach(files::put);
+        }
+        checkError();
+        JSONObject manifest = new JSONObject();
+        manifest.put("created", Instant.now().toString());
+        manifest.put("shards", writers.size());
+        manifest.put("gzip", gzip);
+        manifest.put("docs", count);
+        manifest.put("files", files);
+        // the readers may poll for the manifest, it should appear whole
+        File tmp = new File(dir, MANIFEST + ".tmp");
+        FileUtils.write(tmp, manifest.toString(2), StandardCharsets.UTF_8);
+        Files.move(tmp.toPath(), new File(dir, MANIFEST).toPath(), StandardCopyOption.ATOMIC_MOVE);
+        LOG.info("Wrote {} docs to {} files in {}", count, files.length(), dir);
+    }
+
+    /**
+     * Reads the manifest of an output directory
+     * @param dir the directory
+     * @return the manifest, its "files" have the "file", "shard", "docs", "bytes" and "size" of each file
+     * @throws IOException when the manifest can't be read
+     */
+    public static JSONObject readManifest(File dir) throws IOException {
+        return new JSONObject(FileUtils.readFileToString(new File(dir, MANIFEST), StandardCharsets.UTF_8));
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+}
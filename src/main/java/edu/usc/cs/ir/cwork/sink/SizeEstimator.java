@@ -0,0 +1,59 @@
+package edu.usc.cs.ir.cwork.sink;
+
+import java.util.Map;
+
+/**
+ * Estimates the payload size of a document, it needs to be cheap rather than exact
+ * @param <T> type of document
+ */
+@FunctionalInterface
+public interface SizeEstimator<T> {
+
+    /**
+     * @param doc the document
+     * @return approximate number of bytes of the document on the wire
+     */
+    long estimate(T doc);
+
+    /**
+     * Estimates the size of a field value, the collections and maps are summed up
+     * @param value the value
+     * @return approximate number of bytes
+     */
+    static long estimateValue(Object value) {
+        if (value == null) {
+            return 0;
+        }
+        if (value instanceof CharSequence) {
+            return ((CharSequence) value).length();
+        }
+        if (value instanceof byte[]) {
+            return ((byte[]) value).length;
+        }
+        if (value instanceof Number || value instanceof Boolean) {
+            return 8;
+        }
+        if (value instanceof Iterable) {
+            long size = 0;
+            for (Object item : (Iterable<?>) value) {
+                size += estimateValue(item) + 2;
+            }
+            return size;
+        }
+        if (value instanceof Map) {
+            long size = 0;
+            for (Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) {
+                size += estimateValue(e.getKey()) + estimateValue(e.getValue()) + 4;
+            }
+            return size;
+        }
+        if (value instanceof Object[]) {
+            long size = 0;
+            for (Object item : (Object[]) value) {
+                size += estimateValue(item) + 2;
+            }
+            return size;
+        }
+        return value.toString().length();
+    }
+}
@@ -0,0 +1,308 @@
+package edu.usc.cs.ir.cwork.solr;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.solr.common.SolrDocument;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Supplier;
+
+/**
+ * Durable progress of a run which reads its docs with cursorMarks, so that another run can resume
+ * where it stopped. A doc is done once the destination acknowledged or rejected its batch, or it was
+ * dropped on the way; the rejected docs are left to the dead letters.
+ * <p>
+ * The position of a stream, which is the query or a slice of it, is the cursorMark of the oldest page
+ * having a doc not yet done. As the docs are done out of order, the ids of the done docs of the pages
+ * from there on are kept as well, and are skipped when the stream is read again. So a resumed run
+ * goes through each doc once, but for the docs whose batch was acknowledged after the last save.
+ * </p>
+ */
+public class Checkpoint {
+
+    /**
+     * Name of the stream of a query read without slices
+     */
+    public static final String QUERY_STREAM = "query";
+
+    /**
+     * The docs read in this run, of a stream
+     */
+    private static class Stream {
+        /** seq of the first doc of each page to its cursorMark */
+        private final TreeMap<Long, String> pages = new TreeMap<>();
+        /** seq of the docs not done yet */
+        private final TreeSet<Long> pending = new TreeSet<>();
+        /** ids of the done docs from the oldest page on, by seq */
+        private final TreeMap<Long, String> done = new TreeMap<>();
+        private String lastPosition;
+    }
+
+    private final File file;
+    private final String query;
+    private final String slices;
+    private final Map<String, String> positions = new LinkedHashMap<>();
+    /** done ids of an earlier run which are not read again yet */
+    private final Set<String> skipIds = new HashSet<>();
+    private final Map<String, Stream> streams = new HashMap<>();
+    /** the docs not done yet, by id */
+    private final Map<String, Long> seqs = new HashMap<>();
+    private final Map<Long, Stream> seqStreams = new HashMap<>();
+    private long nextSeq = 0;
+    private long acked = 0;
+    private long failed = 0;
+    private long dropped = 0;
+    private boolean complete = false;
+
+    /**
+     * Creates an empty checkpoint
+     * @param file the file it is saved to
+     * @param query the query of the run
+     * @param slices the slices of the query, null when read as a whole
+     */
+    public Checkpoint(File file, String query, String slices) {
+        this.file = file;
+        this.query = query;
+        this.slices = slices;
+    }
+
+    /**
+     * Reads a checkpoint saved by an earlier run
+     * @param file the file
+     * @return the checkpoint
+     * @throws IOException when the file can't be read
+     */
+    public static Checkpoint load(File file) throws IOException {
+        JSONObject json = new JSONObject(FileUtils.readFileToString(file, StandardCharsets.UTF_8));
+        Checkpoint checkpoint = new Checkpoint(file, json.getString("query"), json.optString("slices", null));
+        JSONObject positions = json.getJSONObject("positions");
+        for (Object stream : positions.keySet()) {
+            checkpoint.positions.put((String) stream, positions.getString((String) stream));
+        }
+        JSONArray done = json.getJSONArray("done");
+        for (int i = 0; i < done.length(); i++) {
+            checkpoint.skipIds.add(done.getString(i));
+        }
+        checkpoint.acked = json.getLong("acked");
+        checkpoint.failed = json.getLong("failed");
+        checkpoint.dropped = json.getLong("dropped");
+        checkpoint.complete = json.getBoolean("complete");
+        return checkpoint;
+    }
+
+    /**
+     * Checks that a run reads the same docs as the one which saved this checkpoint
+     * @param query the query of the run
+     * @param slices the slices of the run, null when none
+     * @throws IllegalArgumentException when they differ
+     */
+    public void verify(String query, String slices) {
+        if (!Objects.equals(this.query, query) || !Objects.equals(this.slices, slices)) {
+            throw new IllegalArgumentException(String.format("The checkpoint %s is of query %s and slices %s," +
+                    " but the run has query %s and slices %s", file, this.query, this.slices, query, slices));
+        }
+    }
+
+    /**
+     * @return cursorMark to resume each stream from, by stream name
+     */
+    public synchronized Map<String, String> getPositions() {
+        return new LinkedHashMap<>(positions);
+    }
+
+    /**
+     * @param stream name of the stream
+     * @return cursorMark to resume the stream from, null to read it from the start
+     */
+    public synchronized String getPosition(String stream) {
+        return positions.get(stream);
+    }
+
+    /**
+     * Records the docs as they are read, and skips the docs done by an earlier run
+     * @param docs the docs
+     * @param stream name of the stream of the last doc returned by the docs
+     * @param position cursorMark of the page of the last doc returned by the docs
+     * @return the docs not done yet
+     */
+    public Iterator<SolrDocument> track(Iterator<SolrDocument> docs, Supplier<String> stream,
+                                        Supplier<String> position) {
+        return new Iterator<SolrDocument>() {
+            private SolrDocument next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && docs.hasNext()) {
+                    SolrDocument doc = docs.next();
+                    String id = String.valueOf(doc.getFieldValue(SolrDocIterator.ID_FIELD));
+                    if (read(stream.get(), position.get(), id)) {
+                        next = doc;
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public SolrDocument next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                SolrDocument doc = next;
+                next = null;
+                return doc;
+            }
+        };
+    }
+
+    /**
+     * Records a doc as it is read
+     * @param streamName name of its stream
+     * @param position cursorMark of its page
+     * @param id id of the doc
+     * @return false when the doc was done by an earlier run, and is to be skipped
+     */
+    synchronized boolean read(String streamName, String position, String id) {
+        Stream stream = streams.computeIfAbsent(streamName, k -> new Stream());
+        long seq = nextSeq++;
+        if (!position.equals(stream.lastPosition)) {
+            stream.pages.put(seq, position);
+            stream.lastPosition = position;
+        }
+        if (skipIds.remove(id)) {
+            stream.done.put(seq, id);
+            return false;
+        }
+        stream.pending.add(seq);
+        seqs.put(id, seq);
+        seqStreams.put(seq, stream);
+        return true;
+    }
+
+    private void done(String id) {
+        Long seq = seqs.remove(id);
+        if (seq == null) {
+            return;
+        }
+        Stream stream = seqStreams.remove(seq);
+        stream.pending.remove(seq);
+        stream.done.put(seq, id);
+    }
+
+    /**
+     * Marks the docs of a batch the destination acknowledged
+     * @param ids ids of the docs
+     */
+    public synchronized void acked(Collection<String> ids) {
+        ids.forEach(this::done);
+        acked += ids.size();
+    }
+
+    /**
+     * Marks the docs of a batch the destination rejected
+     * @param ids ids of the docs
+     */
+    public synchronized void failed(Collection<String> ids) {
+        ids.forEach(this::done);
+        failed += ids.size();
+    }
+
+    /**
+     * Marks a doc which was dropped before it reached the destination
+     * @param id id of the doc
+     */
+    public synchronized void dropped(String id) {
+        done(id);
+        dropped++;
+    }
+
+    /**
+     * Marks the run as complete, all the docs are done
+     */
+    public synchronized void complete() {
+        complete = true;
+    }
+
+    public synchronized boolean isComplete() {
+        return complete;
+    }
+
+    public synchronized long getAcked() {
+        return acked;
+    }
+
+    public synchronized long getFailed() {
+        return failed;
+    }
+
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Moves the position of each stream to the oldest page having a doc not done yet
+     * @return ids of the done docs from the positions on
+     */
+    private Set<String> advance() {
+        Set<String> doneIds = new HashSet<>(skipIds);
+        for (Map.Entry<String, Stream> entry : streams.entrySet()) {
+            Stream stream = entry.getValue();
+            long oldest = stream.pending.isEmpty() ? Long.MAX_VALUE : stream.pending.first();
+            Map.Entry<Long, String> page = stream.pages.floorEntry(oldest);
+            stream.pages.headMap(page.getKey()).clear();
+            stream.done.headMap(page.getKey()).clear();
+            positions.put(entry.getKey(), page.getValue());
+            doneIds.addAll(stream.done.values());
+        }
+        return doneIds;
+    }
+
+    /**
+     * Writes the checkpoint, the file is replaced as a whole and synced to the disk
+     * @throws IOException when it can't be written
+     */
+    public synchronized void save() throws IOException {
+        JSONObject json = new JSONObject();
+        json.put("query", query);
+        if (slices != null) {
+            json.put("slices", slices);
+        }
+        Set<String> doneIds = advance();
+        json.put("positions", new JSONObject(positions));
+        json.put("done", new JSONArray(doneIds));
+        json.put("acked", acked);
+        json.put("failed", failed);
+        json.put("dropped", dropped);
+        json.put("complete", complete);
+        json.put("updated", Instant.now().toString());
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(json.toString(2).getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%s : %d acked, %d failed, %d dropped, positions %s", file, acked, failed, dropped,
+                positions);
+    }
+}
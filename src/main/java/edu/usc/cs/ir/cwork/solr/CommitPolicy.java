@@ -0,0 +1,170 @@
+package edu.usc.cs.ir.cwork.solr;
+
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.response.UpdateResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+/**
+ * Decides when the updates posted by a {@link SolrSink} are committed.
+ * <ul>
+ *     <li>{@link Mode#NONE} never commits, the autoCommit of solrconfig.xml takes care of it</li>
+ *     <li>{@link Mode#END} commits once after all the updates, which is what the writers always did</li>
+ *     <li>{@link Mode#WITHIN} asks solr to commit each update within some millis</li>
+ *     <li>{@link Mode#SOFT} soft commits every N docs or M millis, so the docs are searchable
+ *     as the run goes</li>
+ *     <li>{@link Mode#HARD} hard commits every N docs or M millis, which also rolls over the
+ *     transaction log</li>
+ * </ul>
+ * All the modes but {@link Mode#NONE} end with a hard commit, so the last updates are durable.
+ * A policy keeps count of the docs since the last commit, so each sink needs its own.
+ */
+public class CommitPolicy {
+
+    public static final Logger LOG = LoggerFactory.getLogger(CommitPolicy.class);
+
+    public enum Mode {
+        NONE,
+        END,
+        WITHIN,
+        SOFT,
+        HARD
+    }
+
+    private final Mode mode;
+    private final int commitWithin;
+    private final long everyDocs;
+    private final long everyMillis;
+
+    private long docsSinceCommit = 0;
+    private long lastCommit = System.currentTimeMillis();
+    private long numCommits = 0;
+
+    /**
+     * @param mode the mode
+     * @param commitWithin millis within which solr should commit an update, for {@link Mode#WITHIN}
+     * @param everyDocs number of docs between the periodic commits, 0 for no limit
+     * @param everyMillis millis between the periodic commits, 0 for no limit
+     */
+    public CommitPolicy(Mode mode, int commitWithin, long everyDocs, long everyMillis) {
+        if (mode == Mode.WITHIN && commitWithin <= 0) {
+            throw new IllegalArgumentException("commit within should be positive");
+        }
+        if ((mode == Mode.SOFT || mode == Mode.HARD) && everyDocs <= 0 && everyMillis <= 0) {
+            throw new IllegalArgumentException(mode + " commits need the docs or millis between them");
+        }
+        this.mode = mode;
+        this.commitWithin = commitWithin;
+        this.everyDocs = everyDocs;
+        this.everyMillis = everyMillis;
+    }
+
+    /**
+     * @return the policy of a single commit at the end
+     */
+    public static CommitPolicy atEnd() {
+        return new CommitPolicy(Mode.END, -1, 0, 0);
+    }
+
+    /**
+     * @return the policy of no commits, solr's autoCommit makes the updates visible
+     */
+    public static CommitPolicy none() {
+        return new CommitPolicy(Mode.NONE, -1, 0, 0);
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * @return commit within millis to set on the update requests, -1 for none
+     */
+    public int getCommitWithin() {
+        return mode == Mode.WITHIN ? commitWithin : -1;
+    }
+
+    /**
+     * Checks if a periodic commit is due
+     * @param docs number of docs since the last commit
+     * @param millis time since the last commit
+     * @return true when a soft or hard commit should be sent now
+     */
+    public boolean isDue(long docs, long millis) {
+        if (mode != Mode.SOFT && mode != Mode.HARD) {
+            return false;
+        }
+        return (everyDocs > 0 && docs >= everyDocs) || (everyMillis > 0 && millis >= everyMillis);
+    }
+
+    /**
+     * Records the docs which are acknowledged by solr and commits if it is due.
+     * An error of a periodic commit is logged, the docs are posted anyway
+     * @param solr the solr server
+     * @param docs number of docs
+     */
+    public void onAdded(SolrServer solr, int docs) {
+        synchronized (this) {
+            docsSinceCommit += docs;
+            if (!isDue(docsSinceCommit, System.currentTimeMillis() - lastCommit)) {
+                return;
+            }
+            docsSinceCommit = 0;
+            lastCommit = System.currentTimeMillis();
+            numCommits++;
+        }
+        try {
+            long st = System.currentTimeMillis();
+            if (mode == Mode.SOFT) {
+                solr.commit(false, false, true);
+            } else {
+                // the searcher is opened in background, the senders should not wait for it
+                solr.commit(true, false);
+            }
+            LOG.info("{} commit in {}ms", mode, System.currentTimeMillis() - st);
+        } catch (SolrServerException | IOException e) {
+            LOG.warn("{} commit failed : {}", mode, e.getMessage());
+        }
+    }
+
+    /**
+     * Sends the final commit, if any
+     * @param solr the solr server
+     * @throws IOException when the commit fails
+     */
+    public void onClose(SolrServer solr) throws IOException {
+        if (mode == Mode.NONE) {
+            return;
+        }
+        try {
+            UpdateResponse response = solr.commit();
+            synchronized (this) {
+                numCommits++;
+            }
+            LOG.info("Commit response : {}", response);
+        } catch (SolrServerException e) {
+            throw new IOException(e);
+        }
+    }
+
+    public synchronized long getNumCommits() {
+        return numCommits;
+    }
+
+    @Override
+    public String toString() {
+        switch (mode) {
+            case WITHIN:
+                return "commitWithin=" + commitWithin + "ms";
+            case SOFT:
+            case HARD:
+                return mode.name().toLowerCase() + " commit every " + everyDocs + " docs or "
+                        + everyMillis + "ms";
+            default:
+                return mode.name().toLowerCase();
+        }
+    }
+}
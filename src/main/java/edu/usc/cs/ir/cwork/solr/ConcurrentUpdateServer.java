@@ -0,0 +1,296 @@
+package edu.usc.cs.ir.cwork.solr;
+
+import edu.usc.cs.ir.cwork.sink.BatchListener;
+import edu.usc.cs.ir.cwork.sink.BatchRetrier;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.impl.HttpClientUtil;
+import org.apache.solr.client.solrj.impl.HttpSolrServer;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A solr server which streams the document updates to solr from several sender threads
+ * over a pool of HTTP connections, in the style of solrj's ConcurrentUpdateSolrServer.
+ * The add requests are queued and the caller returns immediately, it blocks only when the queue
+ * is full. A failed request is retried or split by a {@link BatchRetrier}, and unlike
+ * ConcurrentUpdateSolrServer, the outcome is reported along with the documents to the
+ * {@link BatchListener}. The return of an add tells only that it is queued, the callers which
+ * count the acknowledged docs should do so in the listener.
+ * All the other requests such as commits, deletes and queries wait until the queued
+ * updates are done and are then sent directly.
+ */
+public class ConcurrentUpdateServer extends SolrServer {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final Logger LOG = LoggerFactory.getLogger(ConcurrentUpdateServer.class);
+    public static final int CONNECTION_TIMEOUT = 5 * 1000;
+
+    private final SolrServer server;
+    private final CloseableHttpClient httpClient;
+    private final BlockingQueue<UpdateRequest> queue;
+    private final ExecutorService senders;
+    private final ThreadLocal<Boolean> isSender = ThreadLocal.withInitial(() -> false);
+    private final Object lock = new Object();
+    private int pending = 0;
+    private volatile BatchListener<SolrInputDocument> listener;
+
+    private final AtomicLong numDocs = new AtomicLong();
+    private final AtomicLong numBatches = new AtomicLong();
+    private final AtomicLong numFailedDocs = new AtomicLong();
+
+    /**
+     * Creates a server with a pool of connections sized for the senders
+     * @param solrUrl the solr url
+     * @param queueSize number of update requests to queue
+     * @param threads number of sender threads
+     */
+    public ConcurrentUpdateServer(String solrUrl, int queueSize, int threads) {
+        this(createClient(threads), solrUrl, queueSize, threads);
+    }
+
+    private ConcurrentUpdateServer(CloseableHttpClient httpClient, String solrUrl,
+                                   int queueSize, int threads) {
+        this(new HttpSolrServer(solrUrl, httpClient), httpClient, queueSize, threads);
+    }
+
+    /**
+     * Creates a server which streams the updates into another server
+     * @param server the server to which the requests are sent
+     * @param queueSize number of update requests to queue
+     * @param threads number of sender threads
+     */
+    public ConcurrentUpdateServer(SolrServer server, int queueSize, int threads) {
+        this(server, null, queueSize, threads);
+    }
+
+    private ConcurrentUpdateServer(SolrServer server, CloseableHttpClient httpClient,
+                                   int queueSize, int threads) {
+        if (queueSize < 1 || threads < 1) {
+            throw new IllegalArgumentException("queue size and threads should be positive");
+        }
+        this.server = server;
+        this.httpClient = httpClient;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        AtomicInteger threadCount = new AtomicInteger();
+        this.senders = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "solr-update-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < threads; i++) {
+            senders.execute(this::sendLoop);
+        }
+    }
+
+    /**
+     * Creates a HTTP client with a connection for each sender, and one more for the
+     * commits and queries
+     * @param threads number of sender threads
+     * @return http client
+     */
+    private static CloseableHttpClient createClient(int threads) {
+        ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set(HttpClientUtil.PROP_MAX_CONNECTIONS, threads + 1);
+        params.set(HttpClientUtil.PROP_MAX_CONNECTIONS_PER_HOST, threads + 1);
+        params.set(HttpClientUtil.PROP_CONNECTION_TIMEOUT, CONNECTION_TIMEOUT);
+        params.set(HttpClientUtil.PROP_USE_RETRY, false);
+        return (CloseableHttpClient) HttpClientUtil.createClient(params);
+    }
+
+    /**
+     * @return the server to which the requests are sent
+     */
+    public SolrServer getServer() {
+        return server;
+    }
+
+    /**
+     * Sets the listener for the outcome of queued batches
+     * @param listener the listener, null to log the failures
+     */
+    public void setListener(BatchListener<SolrInputDocument> listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public NamedList<Object> request(SolrRequest request)
+            throws SolrServerException, IOException {
+        if (isSender.get()) {
+            // the listeners may post from a sender, queueing would deadlock when the queue is full
+            return server.request(request);
+        }
+        if (isPlainAdd(request)) {
+            synchronized (lock) {
+                pending++;
+            }
+            try {
+                queue.put((UpdateRequest) request);
+            } catch (InterruptedException e) {
+                done();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while queueing the update");
+            }
+            return new NamedList<>();
+        }
+        blockUntilFinished();
+        return server.request(request);
+    }
+
+    static boolean isPlainAdd(SolrRequest request) {
+        if (!(request instanceof UpdateRequest)) {
+            return false;
+        }
+        UpdateRequest update = (UpdateRequest) request;
+        List<SolrInputDocument> docs = update.getDocuments();
+        return docs != null && !docs.isEmpty()
+                && update.getAction() == null
+                && update.getDocIterator() == null
+                && (update.getDeleteById() == null || update.getDeleteById().isEmpty())
+                && (update.getDeleteQuery() == null || update.getDeleteQuery().isEmpty());
+    }
+
+    private void sendLoop() {
+        isSender.set(true);
+        while (!Thread.currentThread().isInterrupted()) {
+            UpdateRequest request;
+            try {
+                request = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            BatchRetrier<SolrInputDocument> retrier = new BatchRetrier<>(
+                    docs -> server.request(copy(request, docs)), SolrSink::isTransientError);
+            try {
+                retrier.send(request.getDocuments(), outcome);
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                done();
+            }
+        }
+    }
+
+    /**
+     * Creates a request for a part of the documents of another request
+     * @param request the request
+     * @param docs the documents
+     * @return update request having the same path and params
+     */
+    static UpdateRequest copy(UpdateRequest request, List<SolrInputDocument> docs) {
+        if (docs.size() == request.getDocuments().size()) {
+            return request;
+        }
+        UpdateRequest copy = new UpdateRequest(request.getPath());
+        copy.setParams(request.getParams());
+        copy.setCommitWithin(request.getCommitWithin());
+        copy.add(docs);
+        return copy;
+    }
+
+    /**
+     * Counts the outcome and passes it on to the listener
+     */
+    private final BatchListener<SolrInputDocument> outcome = new BatchListener<SolrInputDocument>() {
+        @Override
+        public void onSuccess(List<SolrInputDocument> docs, long millis) {
+            numDocs.addAndGet(docs.size());
+            numBatches.incrementAndGet();
+            BatchListener<SolrInputDocument> listener = ConcurrentUpdateServer.this.listener;
+            try {
+                if (listener != null) {
+                    listener.onSuccess(docs, millis);
+                }
+            } catch (Exception e) {
+                LOG.error(e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public void onFailure(List<SolrInputDocument> docs, Exception e) {
+            numFailedDocs.addAndGet(docs.size());
+            BatchListener<SolrInputDocument> listener = ConcurrentUpdateServer.this.listener;
+            try {
+                if (listener != null) {
+                    listener.onFailure(docs, e);
+                } else {
+                    LOG.error("Lost {} docs : {}", docs.size(), e.getMessage(), e);
+                }
+            } catch (Exception e1) {
+                LOG.error(e1.getMessage(), e1);
+            }
+        }
+    };
+
+    private void done() {
+        synchronized (lock) {
+            pending--;
+            if (pending == 0) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Waits until all the queued updates are sent
+     * @throws InterruptedIOException when interrupted
+     */
+    public void blockUntilFinished() throws InterruptedIOException {
+        synchronized (lock) {
+            while (pending > 0) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the updates");
+                }
+            }
+        }
+    }
+
+    public long getNumDocs() {
+        return numDocs.get();
+    }
+
+    public long getNumFailedDocs() {
+        return numFailedDocs.get();
+    }
+
+    @Override
+    public void shutdown() {
+        try {
+            blockUntilFinished();
+        } catch (InterruptedIOException e) {
+            LOG.warn("Shutting down with {} pending updates", queue.size());
+        }
+        senders.shutdownNow();
+        try {
+            senders.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        server.shutdown();
+        IOUtils.closeQuietly(httpClient);
+        LOG.info("Shutdown. Docs = {}, Batches = {}, Failed Docs = {}",
+                numDocs.get(), numBatches.get(), numFailedDocs.get());
+    }
+}
@@ -60,6 +60,9 @@ public class ContentBean {
     @Field private Set<String> outlinks;
     @Field private Set<String> outpaths;
 
+    /** id of the doc this one duplicates, its content is left out */
+    @Field private String duplicateOf;
+
     private Date fetchTime;
     private String rawContent;
 
@@ -110,6 +113,14 @@ public class ContentBean {
     }
 
 
+    public String getDuplicateOf() {
+        return duplicateOf;
+    }
+
+    public void setDuplicateOf(String duplicateOf) {
+        this.duplicateOf = duplicateOf;
+    }
+
     public String getContent() {
         return content;
     }
@@ -0,0 +1,89 @@
+package edu.usc.cs.ir.cwork.solr;
+
+import edu.usc.cs.ir.cwork.sink.DeadLetterStore;
+import org.apache.solr.client.solrj.SolrServer;
+import org.json.JSONObject;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Iterator;
+
+/**
+ * Posts the documents of a dead letter store to solr again,
+ * once the problem which made solr reject them is fixed.
+ */
+public class DeadLetterReplayer {
+
+    private static Logger LOG = LoggerFactory.getLogger(DeadLetterReplayer.class);
+
+    @Option(name = "-in", required = true, usage = "Dead letter file written with -deadLetters")
+    private File inFile;
+
+    @Option(name = "-solr", required = true, usage = "Solr URL")
+    private URL solrUrl;
+
+    @Option(name = "-batch", usage = "Number of documents to buffer and post to solr")
+    private int batchSize = 500;
+
+    private SolrSinkOptions sinkOptions = new SolrSinkOptions();
+
+    /**
+     * Replays the solr documents of the store
+     * @return number of docs posted
+     * @throws IOException when the store can't be read
+     */
+    public long run() throws IOException {
+        File deadLetterFile = sinkOptions.getDeadLetterFile();
+        if (deadLetterFile != null
+                && deadLetterFile.getCanonicalFile().equals(inFile.getCanonicalFile())) {
+            throw new IllegalArgumentException("-deadLetters should be different from -in");
+        }
+        SolrServer solr = sinkOptions.createServer(solrUrl.toString());
+        long count = 0;
+        long skipped = 0;
+        long st = System.currentTimeMillis();
+        long delay = 2 * 1000;
+        try (SolrSink sink = sinkOptions.newSink(solr, batchSize, null)) {
+            Iterator<JSONObject> records = DeadLetterStore.read(inFile);
+            while (records.hasNext()) {
+                JSONObject record = records.next();
+                if (!sink.getName().equals(record.optString(DeadLetterStore.SINK))) {
+                    skipped++;
+                    continue;
+                }
+                sink.add(SolrSink.fromJsonDoc(record.getJSONObject(DeadLetterStore.DOC)));
+                count++;
+                if (System.currentTimeMillis() - st > delay) {
+                    LOG.info("Num Docs : {}", count);
+                    st = System.currentTimeMillis();
+                }
+            }
+            // left out batch is posted and committed while closing the sink
+        } finally {
+            solr.shutdown();
+        }
+        LOG.info("Replayed {} docs, skipped {} docs of other sinks", count, skipped);
+        return count;
+    }
+
+    public static void main(String[] args) throws IOException {
+        DeadLetterReplayer replayer = new DeadLetterReplayer();
+        CmdLineParser cmdLineParser = new CmdLineParser(replayer);
+        replayer.sinkOptions.addTo(cmdLineParser);
+        try {
+            cmdLineParser.parseArgument(args);
+        } catch (CmdLineException e) {
+            System.err.println(e.getMessage());
+            cmdLineParser.printUsage(System.out);
+            return;
+        }
+        replayer.run();
+        System.out.println("Done");
+    }
+}
@@ -0,0 +1,225 @@
+package edu.usc.cs.ir.cwork.solr;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.solr.client.solrj.impl.HttpSolrServer;
+import org.apache.solr.common.SolrDocument;
+import org.noggit.JSONParser;
+import org.noggit.ObjectBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * This iterator reads all the docs of a query from solr's /export handler, in a single response
+ * which is parsed as it streams in, so that the memory stays flat however many docs there are.
+ * The /export handler returns the docValues fields only, and needs the fields and the sort on
+ * docValues fields too.
+ */
+public class ExportDocIterator implements Iterator<SolrDocument> {
+
+    public static final Logger LOG = LoggerFactory.getLogger(ExportDocIterator.class);
+    public static final String EXPORT_PATH = "/export";
+    public static final String EXCEPTION = "EXCEPTION";
+
+    private final InputStream stream;
+    private final Runnable abort;
+    private final JSONParser parser;
+    private boolean ended = false;
+    private long numFound = -1;
+    private long count = 0;
+    private long limit = Long.MAX_VALUE;
+    private SolrDocument next;
+    private RuntimeException error;
+
+    /**
+     * Sends the export request and reads up to the first doc
+     * @param solr the solr core, whose base url and http client are used
+     * @param queryStr the query
+     * @param sort the sort, "id asc" when null
+     * @param fields the docValues fields to fetch
+     * @throws IOException when the request fails
+     */
+    public ExportDocIterator(HttpSolrServer solr, String queryStr, String sort, String... fields)
+            throws IOException {
+        this(solr, newRequest(solr, queryStr, sort, fields));
+    }
+
+    private ExportDocIterator(HttpSolrServer solr, HttpGet get) throws IOException {
+        this(execute(solr, get), get::abort);
+    }
+
+    /**
+     * Reads the docs of an export response
+     * @param stream the response, closed at the end of the docs or on an error
+     * @param abort aborts the response when the iterator is left before the end of the docs
+     * @throws IOException when the response can't be read
+     */
+    ExportDocIterator(InputStream stream, Runnable abort) throws IOException {
+        this.stream = stream;
+        this.abort = abort;
+        this.parser = new JSONParser(new InputStreamReader(stream, StandardCharsets.UTF_8));
+        try {
+            seekDocs();
+            this.next = readDoc();
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+        if (next == null) {
+            close();
+        }
+    }
+
+    private static HttpGet newRequest(HttpSolrServer solr, String queryStr, String sort, String... fields) {
+        if (fields == null || fields.length == 0) {
+            throw new IllegalArgumentException("The fields are required by " + EXPORT_PATH);
+        }
+        try {
+            return new HttpGet(new URIBuilder(solr.getBaseURL() + EXPORT_PATH)
+                    .addParameter("q", queryStr)
+                    .addParameter("sort", sort == null || sort.isEmpty() ? SolrDocIterator.ID_FIELD + " asc" : sort)
+                    .addParameter("fl", String.join(",", fields))
+                    .addParameter("wt", "json")
+                    .build());
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    private static InputStream execute(HttpSolrServer solr, HttpGet get) throws IOException {
+        LOG.debug("Export {}", get.getURI());
+        HttpResponse response = solr.getHttpClient().execute(get);
+        InputStream stream = response.getEntity().getContent();
+        if (response.getStatusLine().getStatusCode() != 200) {
+            String body = IOUtils.toString(stream, StandardCharsets.UTF_8);
+            stream.close();
+            throw new IOException("Export failed : " + response.getStatusLine() + " " + body);
+        }
+        return stream;
+    }
+
+    /**
+     * Moves the parser to the start of the docs array, reading numFound on the way
+     */
+    private void seekDocs() throws IOException {
+        expect(parser.nextEvent(), JSONParser.OBJECT_START);
+        while (true) {
+            int event = parser.nextEvent();
+            if (event == JSONParser.OBJECT_END) {
+                throw new IOException("No docs in the export response");
+            }
+            String key = parser.getString();
+            if ("response".equals(key)) {
+                expect(parser.nextEvent(), JSONParser.OBJECT_START);
+            } else if ("numFound".equals(key)) {
+                expect(parser.nextEvent(), JSONParser.LONG);
+                numFound = parser.getLong();
+            } else if ("docs".equals(key)) {
+                expect(parser.nextEvent(), JSONParser.ARRAY_START);
+                return;
+            } else {
+                parser.nextEvent();
+                ObjectBuilder.getVal(parser); // skips the value, such as the responseHeader
+            }
+        }
+    }
+
+    private static void expect(int event, int expected) throws IOException {
+        if (event != expected) {
+            throw new IOException("Unexpected JSON event " + event + " in the export response, expected " + expected);
+        }
+    }
+
+    /**
+     * @return the next doc in the array, null at the end
+     */
+    @SuppressWarnings("unchecked")
+    private SolrDocument readDoc() throws IOException {
+        if (count >= limit) {
+            return null;
+        }
+        int event = parser.nextEvent();
+        if (event == JSONParser.ARRAY_END) {
+            ended = true;
+            return null;
+        }
+        expect(event, JSONParser.OBJECT_START);
+        Map<String, Object> fields = (Map<String, Object>) ObjectBuilder.getVal(parser);
+        if (fields.containsKey(EXCEPTION)) {
+            // the export handler reports the errors in place of a doc
+            throw new IOException("Export failed : " + fields.get(EXCEPTION));
+        }
+        SolrDocument doc = new SolrDocument();
+        fields.forEach(doc::setField);
+        return doc;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return next != null || error != null;
+    }
+
+    @Override
+    public SolrDocument next() {
+        if (next == null) {
+            if (error != null) {
+                throw error;
+            }
+            throw new NoSuchElementException();
+        }
+        SolrDocument tmp = next;
+        count++;
+        try {
+            next = readDoc();
+        } catch (IOException | RuntimeException e) {
+            // thrown by the next call, the doc at hand is handed over first
+            next = null;
+            error = e instanceof RuntimeException ? (RuntimeException) e : new RuntimeException(e);
+        }
+        if (next == null) {
+            close();
+        }
+        return tmp;
+    }
+
+    /**
+     * Closes the response, needed only when the iterator is left before its end.
+     * The response is aborted unless all the docs were read, as closing the stream of a pooled
+     * connection would read the rest of the docs to reuse the connection
+     */
+    public void close() {
+        if (!ended) {
+            abort.run();
+        }
+        IOUtils.closeQuietly(stream);
+    }
+
+    /**
+     * @param limit max number of docs to read, the rest of the response is not downloaded
+     */
+    public void setLimit(long limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * @return number of docs in the response, -1 when the response doesn't say it before the docs
+     */
+    public long getNumFound() {
+        return numFound;
+    }
+
+    public long getCount() {
+        return count;
+    }
+}
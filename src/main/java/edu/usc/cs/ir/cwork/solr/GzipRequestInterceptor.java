@@ -0,0 +1,42 @@
+package edu.usc.cs.ir.cwork.solr;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.entity.GzipCompressingEntity;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Gzips the bodies of the requests sent to solr, with a Content-Encoding: gzip header.
+ * Stock solr can't read such requests, they need a proxy in front of solr which inflates them.
+ */
+public class GzipRequestInterceptor implements HttpRequestInterceptor {
+
+    @Override
+    public void process(HttpRequest request, HttpContext context) {
+        if (!(request instanceof HttpEntityEnclosingRequest)) {
+            return;
+        }
+        HttpEntityEnclosingRequest enclosing = (HttpEntityEnclosingRequest) request;
+        HttpEntity entity = enclosing.getEntity();
+        if (entity != null && entity.getContentEncoding() == null) {
+            enclosing.setEntity(new GzipCompressingEntity(entity));
+        }
+    }
+
+    /**
+     * Adds the interceptor to the client of a solr server
+     * @param httpClient the client, as created by solrj's HttpClientUtil
+     */
+    @SuppressWarnings("deprecation")
+    public static void addTo(HttpClient httpClient) {
+        if (!(httpClient instanceof org.apache.http.impl.client.AbstractHttpClient)) {
+            throw new IllegalArgumentException("Can't gzip the requests of " + httpClient.getClass());
+        }
+        // ahead of the protocol interceptors, which set the headers of the entity
+        ((org.apache.http.impl.client.AbstractHttpClient) httpClient)
+                .addRequestInterceptor(new GzipRequestInterceptor(), 0);
+    }
+}
@@ -0,0 +1,340 @@
+package edu.usc.cs.ir.cwork.solr;
+
+import edu.usc.cs.ir.cwork.util.MonthRangeGenerator;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.math3.util.Pair;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.CursorMarkParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.ShardParams;
+import org.apache.solr.common.params.SolrParams;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads the docs of a query in disjoint slices, such as the shards of a collection or the months of
+ * a date field, each on its own thread with a cursorMark, and merges them into one stream.
+ * The docs of a slice keep their order, the slices are interleaved as their pages arrive.
+ * <p>
+ * {@link #getPositions()} has the cursorMark of each slice from which it is to be read again, the
+ * docs of the pages being gone through are read again then.
+ * </p>
+ */
+public class PartitionedDocIterator implements Iterator<SolrDocument> {
+
+    public static final Logger LOG = LoggerFactory.getLogger(PartitionedDocIterator.class);
+
+    /**
+     * A part of the query, along with the params which select it
+     */
+    public static class Slice {
+        private final String name;
+        private final SolrParams params;
+
+        public Slice(String name, SolrParams params) {
+            this.name = name;
+            this.params = params;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public SolrParams getParams() {
+            return params;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+
+        /**
+         * @param fq filter query of the slice
+         * @return slice named after its filter query
+         */
+        public static Slice filter(String fq) {
+            ModifiableSolrParams params = new ModifiableSolrParams();
+            params.add("fq", fq);
+            return new Slice(fq, params);
+        }
+    }
+
+    /**
+     * A page of a slice
+     */
+    private static class Page {
+        private final Slice slice;
+        private final SolrDocumentList docs;
+        private final String cursorMark;
+        private final String nextCursorMark;
+        private final boolean last;
+        private final Exception error;
+
+        private Page(Slice slice, SolrDocumentList docs, String cursorMark, String nextCursorMark, boolean last,
+                     Exception error) {
+            this.slice = slice;
+            this.docs = docs;
+            this.cursorMark = cursorMark;
+            this.nextCursorMark = nextCursorMark;
+            this.last = last;
+            this.error = error;
+        }
+    }
+
+    private final SolrServer solr;
+    private final BlockingQueue<Page> pages;
+    private final List<Thread> readers = new ArrayList<>();
+    private final Map<String, String> positions = new ConcurrentHashMap<>();
+    private final AtomicLong numFound = new AtomicLong();
+    private final int numSlices;
+    private int numDone = 0;
+    private Page curPage;
+    private Page lastPage;
+    private Iterator<SolrDocument> curDocs = Collections.emptyIterator();
+    private long count = 0;
+
+    /**
+     * Starts reading the slices
+     * @param solr the solr server
+     * @param queryStr the query
+     * @param slices the slices, which shouldn't overlap
+     * @param rows number of docs per page
+     * @param sort the sort of docs within a slice, may be null, the unique key is appended to it
+     * @param startPositions cursorMark of the slices to resume from, by slice name. null to start afresh
+     * @param fields fields to fetch, all when none
+     */
+    public PartitionedDocIterator(SolrServer solr, String queryStr, List<Slice> slices, int rows, String sort,
+                                  Map<String, String> startPositions, String... fields) {
+        if (slices.isEmpty()) {
+            throw new IllegalArgumentException("No slices");
+        }
+        this.solr = solr;
+        this.numSlices = slices.size();
+        // two pages per slice, so that each reader can fetch one while the other is gone through
+        this.pages = new ArrayBlockingQueue<>(2 * slices.size());
+        for (Slice slice : slices) {
+            SolrQuery query = new SolrQuery(queryStr);
+            query.add(slice.getParams());
+            query.setRows(rows);
+            query.set("sort", SolrDocIterator.withIdTieBreaker(sort));
+            if (fields != null && fields.length > 0) {
+                query.setFields(fields);
+            }
+            String start = startPositions == null ? null : startPositions.get(slice.getName());
+            start = start == null ? CursorMarkParams.CURSOR_MARK_START : start;
+            positions.put(slice.getName(), start);
+            String cursorMark = start;
+            Thread reader = new Thread(() -> read(slice, query, cursorMark), "solr-slice-" + readers.size());
+            reader.setDaemon(true);
+            readers.add(reader);
+        }
+        readers.forEach(Thread::start);
+        LOG.info("Reading {} slices : {}", slices.size(), slices);
+    }
+
+    private void read(Slice slice, SolrQuery query, String cursorMark) {
+        try {
+            boolean first = true;
+            while (true) {
+                query.set(CursorMarkParams.CURSOR_MARK_PARAM, cursorMark);
+                Page page;
+                try {
+                    QueryResponse response = solr.query(query);
+                    String next = response.getNextCursorMark();
+                    boolean last = next == null || next.equals(cursorMark);
+                    if (first) {
+                        numFound.addAndGet(response.getResults().getNumFound());
+                        first = false;
+                    }
+                    page = new Page(slice, response.getResults(), cursorMark, next, last, null);
+                    cursorMark = next;
+                } catch (Exception e) {
+                    page = new Page(slice, null, cursorMark, null, true, e);
+                }
+                pages.put(page);
+                if (page.last) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            // closed
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!curDocs.hasNext()) {
+            if (curPage != null) {
+                // the page is gone through, the slice resumes after it
+                if (curPage.nextCursorMark != null) {
+                    positions.put(curPage.slice.getName(), curPage.nextCursorMark);
+                }
+                if (curPage.last) {
+                    numDone++;
+                }
+                curPage = null;
+            }
+            if (numDone == numSlices) {
+                return false;
+            }
+            try {
+                curPage = pages.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the next page", e);
+            }
+            if (curPage.error != null) {
+                close();
+                throw new RuntimeException("Couldn't read the slice " + curPage.slice, curPage.error);
+            }
+            curDocs = curPage.docs.iterator();
+        }
+        return true;
+    }
+
+    @Override
+    public SolrDocument next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        count++;
+        lastPage = curPage;
+        return curDocs.next();
+    }
+
+    /**
+     * Stops the readers, needed only when the iterator is left before its end
+     */
+    public void close() {
+        readers.forEach(Thread::interrupt);
+    }
+
+    /**
+     * @return name of the slice of the last doc returned
+     */
+    public String getSlice() {
+        return lastPage == null ? null : lastPage.slice.getName();
+    }
+
+    /**
+     * @return cursorMark of the page of the last doc returned, from which it is read again
+     */
+    public String getPosition() {
+        return lastPage == null ? null : lastPage.cursorMark;
+    }
+
+    /**
+     * @return cursorMark from which each slice is to be read again, by slice name
+     */
+    public Map<String, String> getPositions() {
+        return new LinkedHashMap<>(positions);
+    }
+
+    /**
+     * @return number of docs matching the query, known once the first page of every slice is read
+     */
+    public long getNumFound() {
+        return numFound.get();
+    }
+
+    /**
+     * @return number of docs returned so far
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Creates a slice per shard, each read from the shard's leader only
+     * @param shardMap the shards
+     * @return the slices
+     */
+    public static List<Slice> shardSlices(ShardMap shardMap) {
+        List<Slice> slices = new ArrayList<>();
+        for (ShardMap.Shard shard : shardMap.getShards()) {
+            ModifiableSolrParams params = new ModifiableSolrParams();
+            params.set(ShardParams.SHARDS, shard.getLeaderUrl().replaceFirst("^https?://", ""));
+            slices.add(new Slice(shard.getName(), params));
+        }
+        return slices;
+    }
+
+    /**
+     * Creates a slice per month of a date field, and one for the docs outside of the months
+     * @param field the date field
+     * @param startYear year of the first month
+     * @param startMonth the first month, 1 for January
+     * @param months number of months
+     * @return the slices
+     */
+    public static List<Slice> monthSlices(String field, int startYear, int startMonth, int months) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        MonthRangeGenerator ranges = new MonthRangeGenerator(startYear, startMonth - 1);
+        List<String> starts = new ArrayList<>();
+        for (int i = 0; i <= months; i++) {
+            Pair<Date, Date> range = ranges.next();
+            starts.add(format.format(range.getFirst()));
+        }
+        List<Slice> slices = new ArrayList<>();
+        for (int i = 0; i < months; i++) {
+            slices.add(Slice.filter(String.format("%s:[%s TO %s}", field, starts.get(i), starts.get(i + 1))));
+        }
+        slices.add(Slice.filter(String.format("-%s:[%s TO %s}", field, starts.get(0), starts.get(months))));
+        return slices;
+    }
+
+    /**
+     * Parses the slices given on the command line:
+     * {@code shards:FILE} for the shards of a shard map file, {@code months:FIELD:YYYY-MM:N} for N months
+     * of a date field, or a file having a filter query per line
+     * @param spec the slices
+     * @return the slices
+     * @throws IOException when the file can't be read
+     */
+    public static List<Slice> parseSlices(String spec) throws IOException {
+        if (spec.startsWith("shards:")) {
+            return shardSlices(ShardMap.load(new File(spec.substring("shards:".length()))));
+        }
+        if (spec.startsWith("months:")) {
+            String[] parts = spec.split(":");
+            String[] yearMonth = parts.length == 4 ? parts[2].split("-") : new String[0];
+            if (yearMonth.length != 2) {
+                throw new IllegalArgumentException("Expected months:FIELD:YYYY-MM:N, but got " + spec);
+            }
+            return monthSlices(parts[1], Integer.parseInt(yearMonth[0]), Integer.parseInt(yearMonth[1]),
+                    Integer.parseInt(parts[3]));
+        }
+        List<Slice> slices = new ArrayList<>();
+        for (String line : FileUtils.readLines(new File(spec), StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (!line.isEmpty() && !line.startsWith("#")) {
+                slices.add(Slice.filter(line));
+            }
+        }
+        return slices;
+    }
+}
@@ -1,12 +1,16 @@
 package edu.usc.cs.ir.cwork.solr;
 
+import edu.usc.cs.ir.cwork.sink.BatchListener;
 import edu.usc.cs.ir.cwork.solr.schema.FieldMapper;
 import edu.usc.cs.ir.cwork.tika.Parser;
+import edu.usc.cs.ir.cwork.util.DeadlineManager;
+import edu.usc.cs.ir.cwork.util.Pipeline;
+import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.impl.HttpSolrServer;
-import org.apache.solr.client.solrj.response.UpdateResponse;
 import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.CursorMarkParams;
 import org.apache.tika.metadata.Metadata;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
@@ -14,10 +18,10 @@ import org.kohsuke.args4j.Option;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
 import java.net.URL;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
@@ -26,13 +30,8 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
 
 /**
  * This class accepts CLI args containing paths to Nutch segments and solr Url,
@@ -42,9 +41,10 @@ public class Phase2Indexer {
 
     private static final Logger LOG = LoggerFactory.getLogger(SolrIndexer.class);
     public static final String MD_SUFFIX = "_md";
+    public static final String TEXT_PLAIN = "text/plain";
     public static final FieldMapper mapper = FieldMapper.create();
     public static final Map<String, String> map = new HashMap<>();
-    {
+    static {
         map.put("NER_PERSON", "persons");
         map.put("NER_LOCATION", "locations");
         map.put("NER_ORGANIZATION", "organizations");
@@ -89,7 +89,61 @@ public class Phase2Indexer {
             required = false)
     private int threadTimeout = 1500;
 
-    private ExecutorService service;
+    @Option(name = "-adaptive",
+            usage = "Learn the parse deadlines by the text size as the run goes." +
+                    " The -timeout is used until enough samples are seen",
+            required = false)
+    private boolean adaptiveTimeout = false;
+
+    @Option(name = "-minTimeout",
+            usage = "Lower bound for the adaptive parse deadline in millis",
+            required = false)
+    private int minTimeout = 200;
+
+    @Option(name = "-maxTimeout",
+            usage = "Upper bound for the adaptive parse deadline in millis",
+            required = false)
+    private int maxTimeout = 30 * 1000;
+
+    @Option(name = "-queue",
+            usage = "Capacity of the queues between the pipeline stages",
+            required = false)
+    private int queueSize = Pipeline.DEF_QUEUE_SIZE;
+
+    @Option(name = "-prefetch",
+            usage = "Number of pages of source docs fetched in background ahead of the parsing," +
+                    " 0 to fetch a page when the previous one is used up",
+            required = false)
+    private int prefetch = 2;
+
+    @Option(name = "-slices",
+            usage = "Read the source in slices on parallel threads: shards:FILE for the shards of a shard map" +
+                    " file, months:FIELD:YYYY-MM:N for N months of a date field, or a file having a filter query" +
+                    " per line",
+            forbids = "-start",
+            required = false)
+    private String slices;
+
+    @Option(name = "-delta",
+            usage = "Post only the parsed fields, as atomic set updates of the docs in -dest, instead of the" +
+                    " whole docs. For when -dest is the -src collection, whose fields are all stored",
+            required = false)
+    private boolean delta = false;
+
+    @Option(name = "-checkpoint",
+            usage = "File to save the position of the run to, after each batch acknowledged by the destination",
+            forbids = "-start",
+            required = false)
+    private File checkpointFile;
+
+    @Option(name = "-resume",
+            usage = "Resume the run from its -checkpoint, the docs done already are skipped",
+            depends = "-checkpoint",
+            required = false)
+    private boolean resume = false;
+
+    private DeadlineManager deadlines;
+    private SolrSinkOptions sinkOptions = new SolrSinkOptions();
 
     private String[] copyFields = {"id", "title", "content",
             "contentLength", "boost", "lastModified", "digest", "host"};
@@ -98,11 +152,13 @@ public class Phase2Indexer {
             Arrays.asList("id", "title", "content", "lastModified"));
 
 
-    public synchronized ExecutorService getExecutors(){
-        if (service == null) {
-            this.service = Executors.newFixedThreadPool(nThreads);
+    public synchronized DeadlineManager getDeadlines(){
+        if (deadlines == null) {
+            this.deadlines = adaptiveTimeout
+                    ? new DeadlineManager(threadTimeout, minTimeout, maxTimeout)
+                    : new DeadlineManager(threadTimeout);
         }
-        return service;
+        return deadlines;
     }
 
     /**
@@ -113,167 +169,279 @@ public class Phase2Indexer {
      */
     public void run() throws Exception {
 
+        Checkpoint checkpoint = null;
+        if (checkpointFile != null) {
+            if (resume && checkpointFile.exists()) {
+                checkpoint = Checkpoint.load(checkpointFile);
+                checkpoint.verify(queryStr, slices);
+                if (checkpoint.isComplete()) {
+                    LOG.info("Nothing to resume, the run is complete : {}", checkpoint);
+                    return;
+                }
+                LOG.info("Resuming {}", checkpoint);
+            } else {
+                if (resume) {
+                    LOG.warn("No checkpoint at {}, starting afresh", checkpointFile);
+                }
+                checkpoint = new Checkpoint(checkpointFile, queryStr, slices);
+            }
+        }
+
+        String[] fields = copyFields;
+        if (delta) {
+            if (!srcSolr.toString().equals(destSolr.toString())) {
+                LOG.warn("Delta updates of {} which isn't the source {}", destSolr, srcSolr);
+            }
+            // the text is read, the other fields stay as they are
+            fields = textFields.toArray(new String[textFields.size()]);
+        }
+
         HttpSolrServer solrServer = new HttpSolrServer(srcSolr.toString());
         solrServer.setConnectionTimeout(5*1000);
-        SolrDocIterator docs = new SolrDocIterator(solrServer, queryStr,
-                start, batchSize, null, copyFields);
-        parseAndUpdate(docs);
+        if (slices != null) {
+            PartitionedDocIterator docs = new PartitionedDocIterator(solrServer, queryStr,
+                    PartitionedDocIterator.parseSlices(slices), batchSize, null,
+                    checkpoint == null ? null : checkpoint.getPositions(), fields);
+            try {
+                parseAndUpdate(checkpoint == null ? docs : checkpoint.track(docs, docs::getSlice, docs::getPosition),
+                        docs::getNumFound, checkpoint);
+            } finally {
+                docs.close();
+            }
+        } else {
+            String position = checkpoint == null ? null : checkpoint.getPosition(Checkpoint.QUERY_STREAM);
+            if (position == null && start == 0) {
+                position = CursorMarkParams.CURSOR_MARK_START;
+            }
+            // a cursor costs the same at any depth, a -start can only be read by offset
+            SolrDocIterator docs = position == null
+                    ? new SolrDocIterator(solrServer, queryStr, start, batchSize, null, fields)
+                    : SolrDocIterator.withCursor(solrServer, queryStr, batchSize, null, position, fields);
+            docs.setPrefetch(prefetch);
+            parseAndUpdate(checkpoint == null ? docs
+                            : checkpoint.track(docs, () -> Checkpoint.QUERY_STREAM, docs::getPosition),
+                    docs::getNumFound, checkpoint);
+        }
 
     }
 
-    private static class ParseTask implements Callable<Boolean> {
+    /**
+     * Copies the fields of source doc and adds the named entities and dates parsed from its text.
+     * The copied fields are kept even when the parser fails or is interrupted.
+     * In delta mode, only the parsed fields are set by an atomic update, and a failed parse is an error.
+     */
+    private static class ParseTask implements Pipeline.Step<SolrDocument, SolrInputDocument> {
 
-        private SolrDocument inDoc;
-        private SolrInputDocument outDoc;
+        private final boolean delta;
 
-        public ParseTask(SolrDocument inDoc, SolrInputDocument doc) {
-            this.inDoc = inDoc;
-            this.outDoc = doc;
+        public ParseTask(boolean delta) {
+            this.delta = delta;
         }
 
         @Override
-        public Boolean call() throws Exception {
+        public SolrInputDocument process(SolrDocument inDoc) throws Exception {
+            SolrInputDocument outDoc = new SolrInputDocument();
             StringBuilder sb = new StringBuilder();
             for (String field : inDoc.getFieldNames()) {
-                outDoc.setField(field, inDoc.get(field)); //copy
+                if (!delta) {
+                    outDoc.setField(field, inDoc.get(field)); //copy
+                }
                 if (textFields.contains(field)) {
                     sb.append(inDoc.get(field)).append("\n");
                 }
             }
             String text = sb.toString();
-            Metadata md = Parser.getPhase2Parser().parseContent(text);
-            for (String name : md.names()) {
-                Serializable value = md.isMultiValued(name) ?
-                        md.getValues(name) : md.get(name);
-                if (map.containsKey(name)) { //mapping exists
-                    outDoc.setField(map.get(name), value);
-                } else {
-                    String newName = mapper.mapField(name, value);
-                    if (newName != null) {
-                        newName += MD_SUFFIX;
-                        outDoc.setField(newName, value);
+            try {
+                Metadata md = Parser.getPhase2Parser().parseContent(text);
+                for (String name : md.names()) {
+                    Serializable value = md.isMultiValued(name) ?
+                            md.getValues(name) : md.get(name);
+                    if (map.containsKey(name)) { //mapping exists
+                        outDoc.setField(map.get(name), value);
+                    } else {
+                        String newName = mapper.mapField(name, value);
+                        if (newName != null) {
+                            newName += MD_SUFFIX;
+                            outDoc.setField(newName, value);
+                        }
                     }
                 }
+
+                Set<Date> dates = Parser.parseDates(text);
+                if (dates != null && !dates.isEmpty()) {
+                    outDoc.addField("dates", dates);
+                }
+            } catch (Exception e) {
+                if (delta) {
+                    // a doc having the id only would replace the whole doc
+                    throw e;
+                }
+                LOG.error("Parse failed for {} : {}", inDoc.get("id"), e.getMessage());
+            }
+            return delta ? toAtomicUpdate(inDoc.get("id"), outDoc) : outDoc;
+        }
+    }
+
+    /**
+     * Turns the parsed fields into an atomic update, which sets them in the indexed doc.
+     * The entity and date fields which weren't found are cleared, as in a full update.
+     * @param id id of the doc
+     * @param parsed the parsed fields
+     * @return the update
+     */
+    static SolrInputDocument toAtomicUpdate(Object id, SolrInputDocument parsed) {
+        SolrInputDocument update = new SolrInputDocument();
+        update.setField("id", id);
+        for (String field : parsed.getFieldNames()) {
+            update.setField(field, setOp(parsed.getField(field).getValue()));
+        }
+        for (String field : map.values()) {
+            if (!parsed.containsKey(field)) {
+                update.setField(field, setOp(null));
             }
+        }
+        if (!parsed.containsKey("dates")) {
+            update.setField("dates", setOp(null));
+        }
+        return update;
+    }
 
-            Set<Date> dates = Parser.parseDates(text);
-            if (dates != null && !dates.isEmpty()) {
-                outDoc.addField("dates", dates);
+    private static Map<String, Object> setOp(Object value) {
+        Map<String, Object> op = new HashMap<>();
+        op.put("set", value);
+        return op;
+    }
+
+    /**
+     * Computes the size of text that is going to be parsed
+     * @param doc the solr document
+     * @return number of chars in text fields
+     */
+    private static long textSize(SolrDocument doc) {
+        long size = 0;
+        for (String field : textFields) {
+            Object val = doc.getFieldValue(field);
+            if (val != null) {
+                size += val.toString().length();
             }
-            return true;
         }
+        return size;
     }
 
 
     /**
-     * This is a decorator iterator which creates groups from stream.
-     * This is useful for parallelizing using threads.
+     * Hands over the updates to the solr sink and logs the progress
      */
-    private static class GroupedIterator implements Iterator<List<SolrDocument>> {
+    private class UpdatePoster implements Pipeline.Sink<SolrInputDocument> {
 
-        private SolrDocIterator iterator;
-        private int groupSize;
+        private final SolrSink sink;
+        private final LongSupplier numFound;
+        private long count = 0;
+        private long st = System.currentTimeMillis();
+        private final long delay = 2 * 1000;
 
-        private List<SolrDocument> next;
+        public UpdatePoster(SolrSink sink, LongSupplier numFound) {
+            this.sink = sink;
+            this.numFound = numFound;
+        }
 
-        public GroupedIterator(SolrDocIterator iterator, int groupSize) {
-            this.iterator = iterator;
-            this.groupSize = groupSize;
-            this.next = getNext();
+        @Override
+        public void accept(SolrInputDocument doc) throws IOException {
+            sink.add(doc);
+            count++;
+            if (System.currentTimeMillis() - st > delay) {
+                LOG.info("Num Docs : {} of {}", count, numFound.getAsLong());
+                st = System.currentTimeMillis();
+            }
         }
+    }
 
-        private List<SolrDocument> getNext(){
-            List<SolrDocument> list = null;
-            if (iterator != null && iterator.hasNext()) {
-                int count = 0;
-                list = new ArrayList<>(groupSize);
-                while (count < groupSize && iterator.hasNext()) {
-                    list.add(iterator.next());
-                    count++;
-                }
+    /**
+     * Marks the docs as done in the checkpoint as their batches are acknowledged or rejected, or they
+     * are dropped, and saves the checkpoint after each batch
+     */
+    private static class CheckpointListener implements BatchListener<SolrInputDocument>, Pipeline.Listener {
+
+        private final Checkpoint checkpoint;
+        private volatile boolean sourceFailed = false;
+
+        public CheckpointListener(Checkpoint checkpoint) {
+            this.checkpoint = checkpoint;
+        }
+
+        private static List<String> ids(List<SolrInputDocument> batch) {
+            return batch.stream().map(doc -> String.valueOf(doc.getFieldValue(SolrDocIterator.ID_FIELD)))
+                    .collect(Collectors.toList());
+        }
+
+        private void save() {
+            try {
+                checkpoint.save();
+            } catch (IOException e) {
+                LOG.error("Couldn't save the checkpoint {} : {}", checkpoint, e.getMessage(), e);
             }
-            return list;
         }
 
         @Override
-        public boolean hasNext() {
-            return next != null;
+        public void onSuccess(List<SolrInputDocument> batch, long millis) {
+            checkpoint.acked(ids(batch));
+            save();
         }
 
         @Override
-        public List<SolrDocument> next() {
-            List<SolrDocument> tmp = this.next;
-            this.next = getNext();
-            return tmp;
+        public void onFailure(List<SolrInputDocument> batch, Exception e) {
+            LOG.error("Lost a batch of {} docs : {}", batch.size(), e.getMessage(), e);
+            checkpoint.failed(ids(batch));
+            save();
         }
-    }
-
-    private void parseAndUpdate(SolrDocIterator docs)
-            throws IOException, SolrServerException {
 
-        long st = System.currentTimeMillis();
-        long count = 0;
-        long delay = 2 * 1000;
-
-        HttpSolrServer destSolr = new HttpSolrServer(this.destSolr.toString());
-        destSolr.setConnectionTimeout(5*1000);
+        @Override
+        public void onError(String stage, Object item, Throwable e) {
+            Pipeline.Listener.super.onError(stage, item, e);
+            if (item == null) {
+                sourceFailed = true;
+            }
+        }
 
-        List<SolrInputDocument> buffer = new ArrayList<>(batchSize);
-        GroupedIterator groupedDocs = new GroupedIterator(docs, nThreads);
-        List<Future<Boolean>> futures = new ArrayList<>(nThreads);
-        while (groupedDocs.hasNext()) {
-            try {
-                List<SolrDocument> group = groupedDocs.getNext();
-                futures.clear();
-                for (SolrDocument doc : group) {
-                    SolrInputDocument delta = new SolrInputDocument();
-                    delta.setField("id", doc.get("id"));
-                    buffer.add(delta);
-                    ParseTask task = new ParseTask(doc, delta);
-                    Future<Boolean> future = getExecutors().submit(task);
-                    futures.add(future);
-                    count++;
-                }
+        /**
+         * A timed out parse still posts the copied doc, which is marked done once acknowledged
+         */
+        @Override
+        public void onDropped(String stage, Object item) {
+            Object id = item instanceof SolrDocument ? ((SolrDocument) item).getFieldValue(SolrDocIterator.ID_FIELD)
+                    : ((SolrInputDocument) item).getFieldValue(SolrDocIterator.ID_FIELD);
+            checkpoint.dropped(String.valueOf(id));
+        }
+    }
 
-                // collect results
-                for (Future<Boolean> future : futures) {
-                    try {
-                        Boolean result = future.get(threadTimeout, TimeUnit.MILLISECONDS);
-                    } catch (InterruptedException | ExecutionException e) {
-                        LOG.error(e.getMessage());
-                    } catch (TimeoutException e) {
-                        // didnt finish
-                        future.cancel(true);
-                        LOG.warn("Cancelled a parse task, it didnt complete in time");
-                    }
-                }
+    private void parseAndUpdate(Iterator<SolrDocument> docs, LongSupplier numFound, Checkpoint checkpoint)
+            throws IOException, InterruptedException {
 
-                if (buffer.size() >= batchSize) {
-                    destSolr.add(buffer);
-                    buffer.clear();
-                }
+        SolrServer destSolr = sinkOptions.createServer(this.destSolr.toString());
+        CheckpointListener listener = checkpoint == null ? null : new CheckpointListener(checkpoint);
 
-                if (System.currentTimeMillis() - st > delay) {
-                    LOG.info("Num Docs : {},  Imported {} of {}", count,
-                            docs.getNextStart(), docs.getNumFound());
-                    st = System.currentTimeMillis();
-                }
-            } catch (Exception e){
-                LOG.error(e.getMessage(), e);
-                try {
-                    Thread.sleep(4000);
-                } catch (InterruptedException e1) {
-                    e1.printStackTrace();
-                }
+        try (SolrSink sink = sinkOptions.newSink(destSolr, batchSize, listener)) {
+            UpdatePoster poster = new UpdatePoster(sink, numFound);
+            Pipeline<SolrDocument> pipeline = Pipeline.from(docs).queueSize(queueSize);
+            if (listener != null) {
+                pipeline.listener(listener);
             }
+            pipeline.then("parse", nThreads, new ParseTask(delta),
+                            doc -> getDeadlines().start(TEXT_PLAIN, textSize(doc)))
+                    .to("post", 1, poster);
+            LOG.info("Num Docs = {}", poster.count);
+            // left out batch is posted and committed while closing the sink
+        } finally {
+            destSolr.shutdown();
         }
-        //left out
-        if (!buffer.isEmpty()) {
-            destSolr.add(buffer);
+        if (checkpoint != null) {
+            if (!listener.sourceFailed) {
+                checkpoint.complete();
+            }
+            checkpoint.save();
+            LOG.info("Checkpoint {}", checkpoint);
         }
-        LOG.info("Committing before exit. Num Docs = {}", count);
-        UpdateResponse response = destSolr.commit();
-        LOG.info("Commit response : {}", response);
+        LOG.info(getDeadlines().report());
     }
 
     public static void main(String[] args) throws Exception {
@@ -282,6 +450,7 @@ public class Phase2Indexer {
         //args = "-src http://localhost:8983/solr/weapons1 -dest http://localhost:8983/solr/collection2 -q id:\"http://tucson.americanlisted.com/cars/1997-buick-lesabre-cust_32547135.html\"".split(" ");
         Phase2Indexer indexer = new Phase2Indexer();
         CmdLineParser cmdLineParser = new CmdLineParser(indexer);
+        indexer.sinkOptions.addTo(cmdLineParser);
         try {
             cmdLineParser.parseArgument(args);
         } catch (CmdLineException e) {
@@ -0,0 +1,167 @@
+package edu.usc.cs.ir.cwork.solr;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fetches the docs of a stream of ids from solr's real time get handler, many ids per request and
+ * several requests at a time. The docs come out in the order of the ids, the ids not found are left
+ * out. The real time get sees the updates not committed yet, so the jobs which update the docs of a
+ * list of ids can read their current values first and skip the docs which don't change.
+ */
+public class RealTimeGetIterator implements Iterator<SolrDocument> {
+
+    public static final Logger LOG = LoggerFactory.getLogger(RealTimeGetIterator.class);
+    public static final String GET_PATH = "/get";
+    public static final int DEF_BATCH = 100;
+    public static final int DEF_THREADS = 4;
+
+    private final SolrServer solr;
+    private final Iterator<String> ids;
+    private final int batchSize;
+    private final int maxInFlight;
+    private final String[] fields;
+    private final ExecutorService executor;
+    private final Deque<Future<SolrDocumentList>> inFlight = new ArrayDeque<>();
+    private Iterator<SolrDocument> curDocs = Collections.emptyIterator();
+    private long numRequested = 0;
+    private long count = 0;
+
+    /**
+     * @param solr the solr core
+     * @param ids ids of the docs
+     * @param batchSize number of ids per request
+     * @param threads number of requests at a time
+     * @param fields fields to fetch, all when none
+     */
+    public RealTimeGetIterator(SolrServer solr, Iterator<String> ids, int batchSize, int threads,
+                               String... fields) {
+        if (batchSize < 1 || threads < 1) {
+            throw new IllegalArgumentException("batchSize and threads should be positive");
+        }
+        this.solr = solr;
+        this.ids = ids;
+        this.batchSize = batchSize;
+        // a request is queued behind each running one, so that the threads don't wait for the consumer
+        this.maxInFlight = 2 * threads;
+        this.fields = fields;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "solr-get-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public RealTimeGetIterator(SolrServer solr, Iterator<String> ids, String... fields) {
+        this(solr, ids, DEF_BATCH, DEF_THREADS, fields);
+    }
+
+    private void submit() {
+        while (inFlight.size() < maxInFlight && !executor.isShutdown() && ids.hasNext()) {
+            List<String> batch = new ArrayList<>(batchSize);
+            while (batch.size() < batchSize && ids.hasNext()) {
+                batch.add(ids.next());
+            }
+            numRequested += batch.size();
+            inFlight.add(executor.submit(() -> fetch(batch)));
+        }
+    }
+
+    private SolrDocumentList fetch(List<String> batch) throws Exception {
+        SolrQuery query = new SolrQuery();
+        query.setRequestHandler(GET_PATH);
+        // the id param is repeated, as the ids may have commas
+        for (String id : batch) {
+            query.add("id", id);
+        }
+        if (fields != null && fields.length > 0) {
+            query.setFields(fields);
+        }
+        LOG.debug("Get {} ids", batch.size());
+        QueryResponse response = solr.query(query);
+        SolrDocumentList docs = response.getResults();
+        if (docs == null) {
+            // a single id is answered with the doc alone
+            docs = new SolrDocumentList();
+            Object doc = response.getResponse().get("doc");
+            if (doc instanceof SolrDocument) {
+                docs.add((SolrDocument) doc);
+            }
+        }
+        return docs;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!curDocs.hasNext()) {
+            submit();
+            Future<SolrDocumentList> next = inFlight.poll();
+            if (next == null) {
+                close();
+                return false;
+            }
+            try {
+                curDocs = next.get().iterator();
+            } catch (InterruptedException e) {
+                close();
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the docs", e);
+            } catch (ExecutionException e) {
+                close();
+                throw new RuntimeException("Real time get failed", e.getCause());
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public SolrDocument next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        count++;
+        return curDocs.next();
+    }
+
+    /**
+     * Stops the requests, needed only when the iterator is left before its end
+     */
+    public void close() {
+        inFlight.forEach(request -> request.cancel(true));
+        inFlight.clear();
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return number of ids requested so far
+     */
+    public long getNumRequested() {
+        return numRequested;
+    }
+
+    /**
+     * @return number of docs returned so far
+     */
+    public long getCount() {
+        return count;
+    }
+}
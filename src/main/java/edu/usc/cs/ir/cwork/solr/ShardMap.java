@@ -0,0 +1,158 @@
+package edu.usc.cs.ir.cwork.solr;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.solr.client.solrj.impl.CloudSolrServer;
+import org.apache.solr.common.cloud.CompositeIdRouter;
+import org.apache.solr.common.cloud.DocCollection;
+import org.apache.solr.common.cloud.DocRouter;
+import org.apache.solr.common.cloud.Replica;
+import org.apache.solr.common.cloud.Slice;
+import org.apache.solr.common.cloud.ZkCoreNodeProps;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Maps the hash ranges of a collection's shards to the urls of their leaders, so that the
+ * updates can be sent to the leaders directly. The ids are hashed the way solr's compositeId
+ * router does, including the {@code shardKey!id} form.
+ * <p>
+ * The map is read from the cluster state in zookeeper, or from a file for testing, having a line
+ * per shard: {@code name url [range]}, such as {@code shard1 http://localhost:8983/solr/core1 80000000-ffffffff}.
+ * When the ranges are left out, the full hash range is split evenly in the order of the lines,
+ * the way solr creates a collection with numShards.
+ * </p>
+ */
+public class ShardMap {
+
+    private static final CompositeIdRouter ROUTER = new CompositeIdRouter();
+
+    /**
+     * A shard and its leader
+     */
+    public static class Shard {
+        private final String name;
+        private final DocRouter.Range range;
+        private final String leaderUrl;
+
+        public Shard(String name, DocRouter.Range range, String leaderUrl) {
+            this.name = name;
+            this.range = range;
+            this.leaderUrl = leaderUrl;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public DocRouter.Range getRange() {
+            return range;
+        }
+
+        public String getLeaderUrl() {
+            return leaderUrl;
+        }
+
+        @Override
+        public String toString() {
+            return name + "[" + range + "]=" + leaderUrl;
+        }
+    }
+
+    private final List<Shard> shards;
+
+    public ShardMap(List<Shard> shards) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("No shards");
+        }
+        this.shards = Collections.unmodifiableList(new ArrayList<>(shards));
+    }
+
+    public List<Shard> getShards() {
+        return shards;
+    }
+
+    /**
+     * Hashes an id the way the compositeId router does
+     * @param id the document id
+     * @return the hash
+     */
+    public static int hash(String id) {
+        return ROUTER.sliceHash(id, null, null, null);
+    }
+
+    /**
+     * Finds the shard of a document
+     * @param id the document id
+     * @return the shard whose range has the hash of id
+     * @throws IllegalStateException when no shard covers the hash
+     */
+    public Shard route(String id) {
+        int hash = hash(id);
+        for (Shard shard : shards) {
+            if (shard.range.includes(hash)) {
+                return shard;
+            }
+        }
+        throw new IllegalStateException("No shard for " + id + ", hash " + Integer.toHexString(hash));
+    }
+
+    /**
+     * Reads a shard map file
+     * @param file the file, a line per shard: name url [range]. Empty lines and lines starting with # are skipped
+     * @return shard map
+     * @throws IOException when the file can't be read
+     */
+    public static ShardMap load(File file) throws IOException {
+        List<String[]> lines = new ArrayList<>();
+        for (String line : FileUtils.readLines(file, StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (!line.isEmpty() && !line.startsWith("#")) {
+                lines.add(line.split("\\s+"));
+            }
+        }
+        List<DocRouter.Range> even = ROUTER.partitionRange(lines.size(), ROUTER.fullRange());
+        List<Shard> shards = new ArrayList<>();
+        for (int i = 0; i < lines.size(); i++) {
+            String[] parts = lines.get(i);
+            if (parts.length < 2) {
+                throw new IllegalArgumentException("Expected 'name url [range]' in " + file + " : "
+                        + String.join(" ", parts));
+            }
+            DocRouter.Range range = parts.length > 2 ? ROUTER.fromString(parts[2]) : even.get(i);
+            shards.add(new Shard(parts[0], range, parts[1]));
+        }
+        return new ShardMap(shards);
+    }
+
+    /**
+     * Reads the active shards of a collection and their leaders from the cluster state
+     * @param cloud a connected cloud server
+     * @param collection name of the collection
+     * @return shard map
+     */
+    public static ShardMap fromClusterState(CloudSolrServer cloud, String collection) {
+        DocCollection coll = cloud.getZkStateReader().getClusterState().getCollection(collection);
+        if (!(coll.getRouter() instanceof CompositeIdRouter)) {
+            throw new IllegalArgumentException("Collection " + collection + " doesn't use the compositeId router");
+        }
+        List<Shard> shards = new ArrayList<>();
+        for (Slice slice : coll.getActiveSlices()) {
+            Replica leader = slice.getLeader();
+            if (leader == null) {
+                throw new IllegalStateException("Shard " + slice.getName() + " of " + collection + " has no leader");
+            }
+            shards.add(new Shard(slice.getName(), slice.getRange(), ZkCoreNodeProps.getCoreUrl(leader)));
+        }
+        return new ShardMap(shards);
+    }
+
+    @Override
+    public String toString() {
+        return shards.toString();
+    }
+}
@@ -0,0 +1,258 @@
+package edu.usc.cs.ir.cwork.solr;
+
+import edu.usc.cs.ir.cwork.sink.PartialBatchException;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.NamedList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * A solr server which sends the documents of each add request straight to the leaders of their
+ * shards, as per a {@link ShardMap}, so that the node receiving the updates doesn't have to forward
+ * them. The sub-batches of the shards are posted in parallel. When some of them fail, the request fails
+ * with a {@link PartialBatchException} as its cause, which lists the documents of the failed
+ * sub-batches, so that only those are retried.
+ * <p>
+ * The other requests, such as commits and queries, go to the fallback server when one is given,
+ * such as a CloudSolrServer. Otherwise, the updates are sent to every shard and the queries to the
+ * first one, which suits a set of standalone cores.
+ * </p>
+ */
+public class ShardRoutingServer extends SolrServer {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final Logger LOG = LoggerFactory.getLogger(ShardRoutingServer.class);
+    public static final String ID_FIELD = "id";
+
+    private volatile ShardMap shardMap;
+    private final Function<String, SolrServer> serverFactory;
+    private final SolrServer fallback;
+    private final Map<String, SolrServer> servers = new ConcurrentHashMap<>();
+    private final ExecutorService senders;
+    private Supplier<ShardMap> refresher;
+
+    private final Map<String, AtomicLong> numDocs = new ConcurrentHashMap<>();
+    private final AtomicLong numRequests = new AtomicLong();
+
+    /**
+     * @param shardMap the shards and their leaders
+     * @param serverFactory creates the server of a leader from its url
+     * @param fallback server for the requests other than adds, null to send them to the shards
+     */
+    public ShardRoutingServer(ShardMap shardMap, Function<String, SolrServer> serverFactory,
+                              SolrServer fallback) {
+        this.shardMap = shardMap;
+        this.serverFactory = serverFactory;
+        this.fallback = fallback;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.senders = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "solr-shard-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        LOG.info("Routing the updates to {}", shardMap);
+    }
+
+    /**
+     * @param refresher reads the shard map again after a transient error, such as when a leader goes down
+     */
+    public void setRefresher(Supplier<ShardMap> refresher) {
+        this.refresher = refresher;
+    }
+
+    public ShardMap getShardMap() {
+        return shardMap;
+    }
+
+    @Override
+    public NamedList<Object> request(SolrRequest request) throws SolrServerException, IOException {
+        if (ConcurrentUpdateServer.isPlainAdd(request)) {
+            return route((UpdateRequest) request);
+        }
+        if (fallback != null) {
+            return fallback.request(request);
+        }
+        if (request instanceof UpdateRequest) {
+            Map<String, Callable<NamedList<Object>>> tasks = new LinkedHashMap<>();
+            for (ShardMap.Shard shard : shardMap.getShards()) {
+                tasks.put(shard.getName(), () -> getServer(shard).request(request));
+            }
+            Map<String, Object> results = sendAll(tasks);
+            for (Object result : results.values()) {
+                if (result instanceof Exception) {
+                    throw rethrow((Exception) result);
+                }
+            }
+            return firstResponse(results);
+        }
+        return getServer(shardMap.getShards().get(0)).request(request);
+    }
+
+    /**
+     * Splits an add request by the shards of its documents and posts the parts in parallel
+     * @param request the add request
+     * @return response of one of the parts
+     * @throws SolrServerException having a {@link PartialBatchException} as its cause, when some
+     * of the parts failed
+     */
+    private NamedList<Object> route(UpdateRequest request) throws SolrServerException, IOException {
+        ShardMap map = this.shardMap;
+        Map<ShardMap.Shard, List<SolrInputDocument>> parts = new LinkedHashMap<>();
+        Map<String, List<Integer>> positions = new HashMap<>();
+        List<SolrInputDocument> docs = request.getDocuments();
+        for (int i = 0; i < docs.size(); i++) {
+            Object id = docs.get(i).getFieldValue(ID_FIELD);
+            if (id == null) {
+                throw new IllegalArgumentException("Document has no " + ID_FIELD + " to route it");
+            }
+            ShardMap.Shard shard = map.route(id.toString());
+            parts.computeIfAbsent(shard, s -> new ArrayList<>()).add(docs.get(i));
+            positions.computeIfAbsent(shard.getName(), s -> new ArrayList<>()).add(i);
+        }
+        Map<String, Callable<NamedList<Object>>> tasks = new LinkedHashMap<>();
+        for (Map.Entry<ShardMap.Shard, List<SolrInputDocument>> part : parts.entrySet()) {
+            ShardMap.Shard shard = part.getKey();
+            UpdateRequest subRequest = ConcurrentUpdateServer.copy(request, part.getValue());
+            tasks.put(shard.getName(), () -> {
+                NamedList<Object> response = getServer(shard).request(subRequest);
+                numDocs.computeIfAbsent(shard.getName(), k -> new AtomicLong())
+                        .addAndGet(part.getValue().size());
+                return response;
+            });
+        }
+        Map<String, Object> results = sendAll(tasks);
+        Set<Integer> failed = new TreeSet<>();
+        Exception error = null;
+        boolean allTransient = true;
+        for (Map.Entry<String, Object> result : results.entrySet()) {
+            if (result.getValue() instanceof Exception) {
+                Exception e = (Exception) result.getValue();
+                error = error == null ? e : error;
+                allTransient &= SolrSink.isTransientError(e);
+                failed.addAll(positions.get(result.getKey()));
+            }
+        }
+        if (error == null) {
+            return firstResponse(results);
+        }
+        if (refresher != null && SolrSink.isTransientError(error)) {
+            // the retry of the failed docs should go to the new leaders
+            this.shardMap = refresher.get();
+            LOG.warn("Shard map refreshed after {} : {}", error.getMessage(), shardMap);
+        }
+        if (failed.size() == docs.size()) {
+            throw rethrow(error);
+        }
+        String message = failed.size() + " of " + docs.size() + " docs failed : " + error.getMessage();
+        throw new SolrServerException(message, new PartialBatchException(failed, allTransient, message, error));
+    }
+
+    /**
+     * Runs the requests in parallel, a single request runs in the calling thread.
+     * Every request is waited for, so none of them is left running when the batch is retried
+     * @param tasks requests by shard name
+     * @return the response or the error of each request, by shard name
+     * @throws InterruptedIOException when interrupted
+     */
+    private Map<String, Object> sendAll(Map<String, Callable<NamedList<Object>>> tasks)
+            throws InterruptedIOException {
+        numRequests.addAndGet(tasks.size());
+        Map<String, Object> results = new LinkedHashMap<>();
+        if (tasks.size() == 1) {
+            Map.Entry<String, Callable<NamedList<Object>>> task = tasks.entrySet().iterator().next();
+            try {
+                results.put(task.getKey(), task.getValue().call());
+            } catch (Exception e) {
+                results.put(task.getKey(), e);
+            }
+            return results;
+        }
+        Map<String, Future<NamedList<Object>>> futures = new LinkedHashMap<>();
+        tasks.forEach((name, task) -> futures.put(name, senders.submit(task)));
+        for (Map.Entry<String, Future<NamedList<Object>>> future : futures.entrySet()) {
+            try {
+                results.put(future.getKey(), future.getValue().get());
+            } catch (InterruptedException e) {
+                futures.values().forEach(f -> f.cancel(true));
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while posting to the shards");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                results.put(future.getKey(), cause instanceof Exception ? cause : new SolrServerException(cause));
+            }
+        }
+        return results;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static NamedList<Object> firstResponse(Map<String, Object> results) {
+        return (NamedList<Object>) results.values().iterator().next();
+    }
+
+    /**
+     * Rethrows an error as one of the types of {@link #request(SolrRequest)}
+     * @param e the error
+     * @return the error, when it is a {@link SolrServerException}
+     */
+    private static SolrServerException rethrow(Exception e) throws IOException {
+        if (e instanceof IOException) {
+            throw (IOException) e;
+        }
+        if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        }
+        return e instanceof SolrServerException ? (SolrServerException) e : new SolrServerException(e);
+    }
+
+    private SolrServer getServer(ShardMap.Shard shard) {
+        return servers.computeIfAbsent(shard.getLeaderUrl(), serverFactory);
+    }
+
+    /**
+     * @return number of docs posted to each shard
+     */
+    public Map<String, Long> getNumDocs() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        numDocs.forEach((shard, count) -> counts.put(shard, count.get()));
+        return counts;
+    }
+
+    public long getNumRequests() {
+        return numRequests.get();
+    }
+
+    @Override
+    public void shutdown() {
+        senders.shutdownNow();
+        servers.values().forEach(SolrServer::shutdown);
+        if (fallback != null) {
+            fallback.shutdown();
+        }
+        LOG.info("Shutdown. Docs per shard = {}, Requests = {}", getNumDocs(), numRequests.get());
+    }
+}
@@ -1,14 +1,14 @@
 package edu.usc.cs.ir.cwork.solr;
 
+import edu.usc.cs.ir.cwork.tika.HtmlHeadExtractor;
+import edu.usc.cs.ir.cwork.util.Pipeline;
 import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.impl.HttpSolrServer;
 import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.CursorMarkParams;
 import org.apache.tika.metadata.Metadata;
-import org.apache.tika.parser.ParseContext;
-import org.apache.tika.parser.html.HtmlParser;
-import org.apache.tika.sax.BodyContentHandler;
 import org.json.JSONObject;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
@@ -23,14 +23,16 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 
 /**
@@ -50,14 +52,18 @@ public class SolrAtomicUpdator {
     @Option(name = "-debug", usage = "Don't update, just print to console")
     private boolean debug;
 
+    private SolrSinkOptions sinkOptions = new SolrSinkOptions();
     private SolrServer solrServer;
-    private SolrDocIterator iterator;
-    private Transformer transformer;
+    private Iterator<SolrDocument> iterator;
+    // the transformers aren't thread safe, each worker has its own
+    private final ThreadLocal<Transformer> transformers = ThreadLocal.withInitial(this::newTransformer);
     private int batch;
+    private int threads = 1;
 
     private void init(String[] args) throws IOException, ScriptException {
 
         CmdLineParser parser = new CmdLineParser(this);
+        sinkOptions.addTo(parser);
         try {
             parser.parseArgument(args);
         } catch (CmdLineException e) {
@@ -72,7 +78,7 @@ public class SolrAtomicUpdator {
         }
         String solrUrl = props.getProperty("solr.url");
         LOG.info("Solr Server {}", solrUrl);
-        this.solrServer = new HttpSolrServer(solrUrl);
+        this.solrServer = sinkOptions.createServer(solrUrl);
         String qry = props.getProperty("solr.qry");
         LOG.info("Query {}", qry);
         String fields = props.getProperty("solr.fl", "").trim();
@@ -86,67 +92,126 @@ public class SolrAtomicUpdator {
         LOG.info("start {}, rows {}", start, batch);
         String sort = props.getProperty("solr.sort", "").trim();
         LOG.info("Sort {}", sort);
-        iterator = new SolrDocIterator(solrServer, qry, start, batch, sort, fls);
+        threads = Integer.parseInt(props.getProperty("solr.threads", "1").trim());
+        LOG.info("Transform threads {}", threads);
+        // reads on a separate server, so that the queries don't wait for the queued updates
+        String slices = props.getProperty("solr.slices", "").trim();
+        if (!slices.isEmpty()) {
+            LOG.info("Slices {}", slices);
+            iterator = new PartitionedDocIterator(new HttpSolrServer(solrUrl), qry,
+                    PartitionedDocIterator.parseSlices(slices), batch, sort, null, fls);
+            return;
+        }
+        if (Boolean.parseBoolean(props.getProperty("solr.export", "false").trim())) {
+            LOG.info("Reading from the export handler");
+            ExportDocIterator docs = new ExportDocIterator(new HttpSolrServer(solrUrl), qry, sort, fls);
+            if (props.containsKey("solr.limit")) {
+                docs.setLimit(Long.parseLong(props.getProperty("solr.limit").trim()));
+            }
+            iterator = docs;
+            return;
+        }
+        SolrDocIterator docs = Boolean.parseBoolean(props.getProperty("solr.cursor", "false").trim())
+                ? SolrDocIterator.withCursor(new HttpSolrServer(solrUrl), qry, batch, sort,
+                        CursorMarkParams.CURSOR_MARK_START, fls)
+                : new SolrDocIterator(new HttpSolrServer(solrUrl), qry, start, batch, sort, fls);
         if (props.containsKey("solr.limit")) {
-            iterator.setLimit(Integer.parseInt(props.getProperty("solr.limit").trim()));
+            docs.setLimit(Integer.parseInt(props.getProperty("solr.limit").trim()));
         }
+        docs.setPrefetch(Integer.parseInt(props.getProperty("solr.prefetch", "2").trim()));
+        iterator = docs;
     }
 
 
-    public void update() throws IOException, SolrServerException {
-        List<SolrInputDocument> buffer = new ArrayList<>(batch);
-        long count = 0;
-        long batches = 0;
-        long skipped = 0;
-        long logDelay = 2000;
-        long st = System.currentTimeMillis();
-        while (iterator.hasNext()){
-            SolrDocument next = iterator.next();
-            SolrInputDocument result = transformer.transform(next);
-            if (result == null) {
-                LOG.info("Skipped : {}", next);
-                skipped++;
-                continue;
-            }
+    /**
+     * Posts the transformed docs and logs the progress
+     */
+    private class UpdatePoster implements Pipeline.Sink<SolrInputDocument> {
+
+        private final SolrSink sink;
+        private final AtomicLong skipped;
+        private long count = 0;
+        private long st = System.currentTimeMillis();
+        private final long logDelay = 2000;
+
+        public UpdatePoster(SolrSink sink, AtomicLong skipped) {
+            this.sink = sink;
+            this.skipped = skipped;
+        }
+
+        @Override
+        public void accept(SolrInputDocument result) throws IOException {
             count++;
             if (debug) {
                 System.out.println(new JSONObject(result).toString(2));
             } else {
-                buffer.add(result);
-            }
-            if (buffer.size() > batch) {
-                try {
-                    batches++;
-                    solrServer.add(buffer);
-                    buffer.clear();
-                } catch (SolrServerException | IOException e) {
-                    LOG.error(e.getMessage(), e);
-                    LOG.error("Last Document = {}, == {}", next.get("id"), result);
-                    throw e;
-                }
+                sink.add(result);
             }
 
             if (System.currentTimeMillis() - st > logDelay) {
-                LOG.info("Count = {}, skipped = {}, batches = {}. Last added = {}",
-                        count, skipped, batches, next.get("id"));
+                LOG.info("Count = {}, skipped = {}, posted = {}. Last added = {}",
+                        count, skipped.get(), sink.getNumDocs(), result.getFieldValue("id"));
                 st = System.currentTimeMillis();
             }
         }
+    }
+
+    public void update() throws IOException, SolrServerException, InterruptedException {
+        AtomicLong skipped = new AtomicLong();
+        AtomicReference<Exception> error = new AtomicReference<>();
+        try (SolrSink sink = sinkOptions.newSink(solrServer, batch, (docs, e) -> {
+            LOG.error(e.getMessage(), e);
+            LOG.error("Batch of {} docs failed, first = {}", docs.size(), docs.get(0).getFieldValue("id"));
+            if (sinkOptions.isFatal(e)) {
+                error.compareAndSet(null, e);
+            }
+        })) {
+            sink.setCommitOnClose(!debug);
+            // stops reading on the first failed batch, unless its docs were rejected into the dead letters
+            Iterator<SolrDocument> docs = new Iterator<SolrDocument>() {
+                @Override
+                public boolean hasNext() {
+                    return error.get() == null && iterator.hasNext();
+                }
 
-        if (!buffer.isEmpty()){
-            solrServer.add(buffer);
+                @Override
+                public SolrDocument next() {
+                    return iterator.next();
+                }
+            };
+            UpdatePoster poster = new UpdatePoster(sink, skipped);
+            Pipeline.from(docs)
+                    .then("transform", threads, doc -> {
+                        SolrInputDocument result = transformers.get().transform(doc);
+                        if (result == null) {
+                            LOG.info("Skipped : {}", doc);
+                            skipped.incrementAndGet();
+                        }
+                        return result;
+                    })
+                    .to("post", 1, poster);
+            LOG.info("Count = {}, skipped = {}", poster.count, skipped.get());
+            // left out batch is posted and committed while closing the sink
+        } finally {
+            solrServer.shutdown();
+        }
+        if (error.get() != null) {
+            throw new IOException(error.get());
         }
-        LOG.info("Committing before exit");
-        solrServer.commit();
         LOG.info("!Done!");
     }
 
-    {
-        transformer = new Transformer() {
+    /**
+     * Creates the transformer which sets the title of the html docs from their local file,
+     * and copies the weapon and date fields
+     * @return the transformer
+     */
+    private Transformer newTransformer() {
+        return new Transformer() {
             private SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM");
 
-            private HtmlParser parser = new HtmlParser();
-            private ParseContext ctx = new ParseContext();
+            // the title is in the head, the body isn't read
+            private HtmlHeadExtractor headExtractor = new HtmlHeadExtractor();
 
             private Map<String, String> keyMap =  new HashMap<String, String>(){{
                 put("ner_weapon_name_ts_md", "weaponnames");
@@ -165,9 +230,8 @@ public class SolrAtomicUpdator {
                         && doc.getFieldValue("contentType").toString().contains("ml")) {  //for xml or html
                     File content = new File(id.replaceFirst("^file:", ""));
                     if (content.exists()) {
-                        Metadata md = new Metadata();
                         try(InputStream stream = new FileInputStream(content)){
-                            parser.parse(stream, new BodyContentHandler(), md, ctx);
+                            Metadata md = headExtractor.extract(stream);
                             res.setField("title", new HashMap<String, Object>(){{put("set", md.get("title"));}});
                             updates.add("title");
                         } catch (Exception e) {
@@ -7,13 +7,22 @@ import org.apache.solr.client.solrj.impl.HttpSolrServer;
 import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.CursorMarkParams;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 /**
  * This iterator iterates over all the pages of solr results.
+ * <p>
+ * By default, the pages are read by start offset, which gets slower as it goes deeper. The
+ * iterators made by {@link #withCursor} read them with a cursorMark instead, which costs the same at
+ * any depth; the sort then has to end with the unique key, {@link #ID_FIELD} is appended when it
+ * doesn't.
+ * </p>
  * @since 6.0
  */
 public class SolrDocIterator implements Iterator<SolrDocument> {
@@ -21,6 +30,7 @@ public class SolrDocIterator implements Iterator<SolrDocument> {
     public static final Logger LOG = LoggerFactory.getLogger(SolrDocIterator.class);
     public static final int DEF_START = 0;
     public static final int DEF_ROWS = 1000;
+    public static final String ID_FIELD = "id";
 
     private long count = 0;
     private long limit = Long.MAX_VALUE;
@@ -30,6 +40,18 @@ public class SolrDocIterator implements Iterator<SolrDocument> {
     private int nextStart;
     private Iterator<SolrDocument> curPage;
     private SolrDocument next;
+    private String cursorMark;
+    private String pageCursorMark;
+    private String position;
+    private boolean lastPage = false;
+    private RuntimeException error;
+
+    // state of the fetching, ahead of the above with a prefetch
+    private int fetchStart;
+    private String fetchCursorMark;
+    private volatile boolean fetchDone = false;
+    private Thread prefetcher;
+    private BlockingQueue<Page> prefetched;
 
     public SolrDocIterator(String solrUrl, String queryStr, int start, int rows,
                            String...fields){
@@ -42,13 +64,40 @@ public class SolrDocIterator implements Iterator<SolrDocument> {
 
     public SolrDocIterator(SolrServer solr, String queryStr, int start, int rows, String sort,
                            String...fields){
+        this(solr, queryStr, start, rows, sort, null, fields);
+    }
+
+    /**
+     * Creates an iterator which reads the pages with a cursorMark, starting from a given one
+     * @param solr the solr server
+     * @param queryStr the query
+     * @param rows number of docs per page
+     * @param sort the sort, may be null
+     * @param cursorMark cursorMark of the first page, {@link CursorMarkParams#CURSOR_MARK_START} or one
+     *                   from {@link #getCursorMark()}
+     * @param fields fields to fetch, all when none
+     * @return the iterator
+     */
+    public static SolrDocIterator withCursor(SolrServer solr, String queryStr, int rows, String sort,
+                                             String cursorMark, String...fields) {
+        return new SolrDocIterator(solr, queryStr, 0, rows, sort, cursorMark, fields);
+    }
+
+    private SolrDocIterator(SolrServer solr, String queryStr, int start, int rows, String sort,
+                           String cursorMark, String...fields){
         this.solr = solr;
         this.nextStart = start;
+        this.cursorMark = cursorMark;
+        this.fetchStart = start;
+        this.fetchCursorMark = cursorMark;
         this.query = new SolrQuery(queryStr);
         this.query.setRows(rows);
         if (fields != null && fields.length > 0) {
             this.query.setFields(fields);
         }
+        if (cursorMark != null) {
+            sort = withIdTieBreaker(sort);
+        }
         if (sort != null && !sort.isEmpty()) {
             this.query.set("sort", sort);
         }
@@ -56,6 +105,23 @@ public class SolrDocIterator implements Iterator<SolrDocument> {
         this.count = 1;
     }
 
+    /**
+     * Appends the unique key to a sort, as a cursorMark needs it to break the ties
+     * @param sort the sort, may be null
+     * @return the sort ending with {@link #ID_FIELD}
+     */
+    static String withIdTieBreaker(String sort) {
+        if (sort == null || sort.trim().isEmpty()) {
+            return ID_FIELD + " asc";
+        }
+        for (String clause : sort.split(",")) {
+            if (clause.trim().split("\\s+")[0].equals(ID_FIELD)) {
+                return sort;
+            }
+        }
+        return sort + ", " + ID_FIELD + " asc";
+    }
+
     public long getNumFound() {
         return numFound;
     }
@@ -64,44 +130,184 @@ public class SolrDocIterator implements Iterator<SolrDocument> {
         return nextStart;
     }
 
+    /**
+     * @return cursorMark of the page after the current one, null when paging by start offset
+     */
+    public String getCursorMark() {
+        return cursorMark;
+    }
+
+    /**
+     * @return cursorMark of the page of the last doc returned, from which it is read again.
+     * null when paging by start offset
+     */
+    public String getPosition() {
+        return position;
+    }
+
     public void setLimit(long limit) {
         this.limit = limit;
     }
 
+    /**
+     * Fetches up to the given number of pages in background, while the caller goes through the
+     * current one, so that it doesn't wait for solr at every page. At most pages + 2 pages are held
+     * in memory: the queued ones, the one being fetched and the current one. An error of the
+     * background fetch is thrown by {@link #next()} once the pages before it are used up.
+     * @param pages max number of pages fetched ahead, 0 to fetch when a page is used up
+     */
+    public synchronized void setPrefetch(int pages) {
+        if (prefetcher != null) {
+            throw new IllegalStateException("Already prefetching");
+        }
+        if (pages <= 0 || fetchDone || next == null) {
+            return;
+        }
+        prefetched = new ArrayBlockingQueue<>(pages);
+        prefetcher = new Thread(() -> {
+            try {
+                while (!fetchDone) {
+                    Page page;
+                    try {
+                        page = fetchPage();
+                    } catch (RuntimeException e) {
+                        page = new Page(e);
+                        fetchDone = true;
+                    }
+                    prefetched.put(page);
+                }
+            } catch (InterruptedException e) {
+                // closed
+            }
+        }, "solr-prefetch");
+        prefetcher.setDaemon(true);
+        prefetcher.start();
+    }
+
+    /**
+     * Stops the background fetch, needed only when the iterator is left before its end
+     */
+    public synchronized void close() {
+        if (prefetcher != null) {
+            prefetcher.interrupt();
+        }
+    }
+
+    /**
+     * A page of results along with its cursor
+     */
+    private static class Page {
+        private final SolrDocumentList docs;
+        private final String nextCursorMark;
+        private final boolean last;
+        private final RuntimeException error;
+
+        private Page(SolrDocumentList docs, String nextCursorMark, boolean last) {
+            this.docs = docs;
+            this.nextCursorMark = nextCursorMark;
+            this.last = last;
+            this.error = null;
+        }
+
+        private Page(RuntimeException error) {
+            this.docs = null;
+            this.nextCursorMark = null;
+            this.last = true;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Queries the page after the current one, the iterator doesn't go through it
+     * @return the page
+     */
     public SolrDocumentList queryNext()  {
-        query.setStart(nextStart);
+        SolrDocumentList docs = query(nextStart, cursorMark).getResults();
+        this.numFound = docs.getNumFound();
+        return docs;
+    }
+
+    private QueryResponse query(int start, String cursorMark) {
+        // a copy, the prefetch thread may be querying too
+        SolrQuery query = this.query.getCopy();
+        if (cursorMark != null) {
+            query.set(CursorMarkParams.CURSOR_MARK_PARAM, cursorMark);
+        } else {
+            query.setStart(start);
+        }
         try {
-            LOG.debug("Query {}, Start = {}", query.getQuery(), nextStart);
-            QueryResponse response = solr.query(query);
-            this.numFound = response.getResults().getNumFound();
-            return response.getResults();
+            LOG.debug("Query {}, Start = {}, Cursor = {}", query.getQuery(), start, cursorMark);
+            return solr.query(query);
         } catch (SolrServerException e) {
             throw new RuntimeException(e);
         }
     }
 
+    private Page fetchPage() {
+        QueryResponse response = query(fetchStart, fetchCursorMark);
+        SolrDocumentList docs = response.getResults();
+        fetchStart += docs.size();
+        if (fetchCursorMark != null) {
+            String nextCursorMark = response.getNextCursorMark();
+            // the cursor stays put after the last page
+            fetchDone = nextCursorMark == null || nextCursorMark.equals(fetchCursorMark);
+            fetchCursorMark = nextCursorMark == null ? fetchCursorMark : nextCursorMark;
+        } else {
+            fetchDone = docs.isEmpty() || fetchStart >= docs.getNumFound();
+        }
+        return new Page(docs, fetchCursorMark, fetchDone);
+    }
+
+    private Page takePage() {
+        try {
+            Page page = prefetched.take();
+            if (page.error != null) {
+                throw page.error;
+            }
+            return page;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the next page", e);
+        }
+    }
+
     @Override
     public boolean hasNext() {
-        return next != null;
+        return next != null || error != null;
     }
 
     @Override
     public SolrDocument next() {
+        if (next == null && error != null) {
+            throw error;
+        }
         SolrDocument tmp = next;
-        next = getNext(false);
+        position = pageCursorMark;
+        try {
+            next = getNext(false);
+        } catch (RuntimeException e) {
+            // thrown by the next call, the doc at hand is handed over first
+            next = null;
+            error = e;
+        }
         count++;
+        if (next == null) {
+            close();
+        }
         return tmp;
     }
 
     private SolrDocument getNext(boolean forceFetch) {
-        if (forceFetch || !curPage.hasNext() && nextStart < numFound) {
+        if (forceFetch || !curPage.hasNext() && !lastPage) {
             //there is more
-            SolrDocumentList page = queryNext();
-            this.numFound = page.getNumFound();
-            this.nextStart += page.size();
-            this.curPage = page.iterator();
+            Page page = prefetcher != null ? takePage() : fetchPage();
+            this.numFound = page.docs.getNumFound();
+            this.nextStart += page.docs.size();
+            this.pageCursorMark = cursorMark;
+            this.cursorMark = page.nextCursorMark;
+            this.lastPage = page.last;
+            this.curPage = page.docs.iterator();
         }
         return count < limit && curPage.hasNext() ? curPage.next() : null;
     }
-
 }
@@ -1,17 +1,19 @@
 package edu.usc.cs.ir.cwork.solr;
 
+import edu.usc.cs.ir.cwork.dedup.DedupOptions;
+import edu.usc.cs.ir.cwork.dedup.Deduplicator;
 import edu.usc.cs.ir.cwork.nutch.RecordIterator;
 import edu.usc.cs.ir.cwork.nutch.SegContentReader;
 import edu.usc.cs.ir.cwork.solr.schema.FieldMapper;
 import edu.usc.cs.ir.cwork.tika.Parser;
+import edu.usc.cs.ir.cwork.util.DeadlineManager;
+import edu.usc.cs.ir.cwork.util.Pipeline;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.math3.util.Pair;
 import org.apache.nutch.metadata.Metadata;
 import org.apache.nutch.protocol.Content;
 import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.SolrServerException;
-import org.apache.solr.client.solrj.impl.HttpSolrServer;
-import org.apache.solr.client.solrj.response.UpdateResponse;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
@@ -21,8 +23,10 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.URL;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.apache.tika.parser.ner.NERecogniser.*;
 
@@ -54,8 +58,32 @@ public class SolrIndexer {
             required = false)
     private int batchSize = 1000;
 
+    @Option(name = "-threads", usage = "Number of threads parsing the records")
+    private int nThreads = 1;
+
+    @Option(name = "-timeout", usage = "Time out for parsing a record in millis")
+    private long threadTimeout = 15 * 1000;
+
+    @Option(name = "-adaptive", usage = "Learn the parse deadlines per MIME type and size as the run goes." +
+            " The -timeout is used until enough samples are seen")
+    private boolean adaptiveTimeout = false;
+
+    @Option(name = "-minTimeout", usage = "Lower bound for the adaptive parse deadline in millis")
+    private long minTimeout = 1000;
+
+    @Option(name = "-maxTimeout", usage = "Upper bound for the adaptive parse deadline in millis")
+    private long maxTimeout = 2 * 60 * 1000;
+
+    @Option(name = "-queue", usage = "Capacity of the queues between the pipeline stages")
+    private int queueSize = Pipeline.DEF_QUEUE_SIZE;
+
+    private DeadlineManager deadlines;
+
     public FieldMapper mapper = FieldMapper.create();
 
+    SolrSinkOptions sinkOptions = new SolrSinkOptions();
+    DedupOptions dedupOptions = new DedupOptions();
+
 
     /**
      * Creates Solrj Bean from nutch content
@@ -152,6 +180,15 @@ public class SolrIndexer {
         return set;
     }
 
+    public synchronized DeadlineManager getDeadlines(){
+        if (deadlines == null) {
+            this.deadlines = adaptiveTimeout
+                    ? new DeadlineManager(threadTimeout, minTimeout, maxTimeout)
+                    : new DeadlineManager(threadTimeout);
+        }
+        return deadlines;
+    }
+
     /**
      * runs the solr index command
      * @throws IOException
@@ -160,59 +197,114 @@ public class SolrIndexer {
      */
     public void run() throws IOException, InterruptedException, SolrServerException {
 
-        SolrServer solr = new HttpSolrServer(solrUrl.toString());
+        SolrServer solr = sinkOptions.createServer(solrUrl.toString());
         FileInputStream stream = new FileInputStream(segsFile);
         List<String> paths = IOUtils.readLines(stream);
         IOUtils.closeQuietly(stream);
         LOG.info("Found {} lines in {}", paths.size(), segsFile.getAbsolutePath());
         SegContentReader reader = new SegContentReader(paths);
         RecordIterator recs = reader.read();
-        index(recs, solr);
+        try {
+            index(recs, solr);
+        } finally {
+            solr.shutdown();
+        }
         System.out.println(recs.getCount());
     }
 
-    private void index(RecordIterator recs, SolrServer solr) throws IOException, SolrServerException {
-        List<ContentBean> beans = new ArrayList<>(batchSize);
-        long st = System.currentTimeMillis();
-        long count = 0;
-        long delay = 2 * 1000;
-
-        while (recs.hasNext()) {
-            Pair<String, Content> rec = recs.next();
-            Content content = rec.getValue();
-            ContentBean bean = createBean(content, reparse);
-            beans.add(bean);
-            count++;
-            if (beans.size() >= batchSize) {
-                try {
-                    solr.addBeans(beans);
-                    beans.clear();
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }
+    /**
+     * Parses the records on {@link #nThreads} workers and posts them to solr.
+     * The beans reach the sink in the order of records, so the batches are the same as of a
+     * single thread. A record whose parse fails or misses its deadline is skipped, so is a duplicate
+     * with -dedup.
+     * @param recs the records
+     * @param solr the solr server
+     * @return number of docs posted
+     * @throws IOException when the sink can't be closed
+     */
+    long index(Iterator<Pair<String, Content>> recs, SolrServer solr) throws IOException {
+        AtomicReference<Exception> error = new AtomicReference<>();
+        // stop reading the records once solr fails, the rejected docs only go to the dead letters
+        Iterator<Pair<String, Content>> source = new Iterator<Pair<String, Content>>() {
+            @Override
+            public boolean hasNext() {
+                return error.get() == null && recs.hasNext();
             }
 
-            if (System.currentTimeMillis() - st > delay) {
-                LOG.info("Num Docs : {}", count);
-                st = System.currentTimeMillis();
+            @Override
+            public Pair<String, Content> next() {
+                return recs.next();
             }
+        };
+        Deduplicator dedup = dedupOptions.newDeduplicator();
+        BeanPoster poster;
+        try (SolrSink sink = sinkOptions.newSink(solr, batchSize,
+                (batch, e) -> {
+                    if (sinkOptions.isFatal(e)) {
+                        error.compareAndSet(null, e);
+                    }
+                })) {
+            poster = new BeanPoster(sink, error);
+            Pipeline.from(source)
+                    .queueSize(queueSize)
+                    .ordered(true)
+                    .then("parse", nThreads, rec -> dedup == null
+                                    ? createBean(rec.getValue(), reparse)
+                                    : dedup.dedup(rec.getKey(), rec.getValue().getContentType(),
+                                    rec.getValue().getContent(), () -> createBean(rec.getValue(), reparse)),
+                            rec -> getDeadlines().start(rec.getValue().getContentType(),
+                                    rec.getValue().getContent().length))
+                    .to("post", 1, poster);
+            // left out batch is posted and committed while closing the sink
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while indexing");
+        }
+        if (error.get() != null) {
+            throw new RuntimeException(error.get());
         }
+        LOG.info("Num Docs = {}", poster.count);
+        LOG.info(getDeadlines().report());
+        dedupOptions.finish(dedup);
+        return poster.count;
+    }
+
+    /**
+     * Hands over the parsed beans to the solr sink and logs the progress
+     */
+    private static class BeanPoster implements Pipeline.Sink<ContentBean> {
 
-        //left out
-        if (!beans.isEmpty()) {
-            solr.addBeans(beans);
+        private final SolrSink sink;
+        private final AtomicReference<Exception> error;
+        private long count = 0;
+        private long st = System.currentTimeMillis();
+        private final long delay = 2 * 1000;
+
+        public BeanPoster(SolrSink sink, AtomicReference<Exception> error) {
+            this.sink = sink;
+            this.error = error;
         }
 
-        // commit
-        LOG.info("Committing before exit. Num Docs = {}", count);
-        UpdateResponse response = solr.commit();
-        LOG.info("Commit response : {}", response);
+        @Override
+        public void accept(ContentBean bean) throws IOException {
+            if (error.get() != null) {
+                return; // the run is failing, drain the pipeline
+            }
+            sink.addBean(bean);
+            count++;
+            if (System.currentTimeMillis() - st > delay) {
+                LOG.info("Num Docs : {}", count);
+                st = System.currentTimeMillis();
+            }
+        }
     }
 
     public static void main(String[] args) throws InterruptedException,
             SolrServerException, IOException {
         SolrIndexer indexer = new SolrIndexer();
         CmdLineParser cmdLineParser = new CmdLineParser(indexer);
+        indexer.sinkOptions.addTo(cmdLineParser);
+        indexer.dedupOptions.addTo(cmdLineParser);
         try {
             cmdLineParser.parseArgument(args);
         } catch (CmdLineException e) {
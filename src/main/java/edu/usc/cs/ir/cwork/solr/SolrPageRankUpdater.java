@@ -4,11 +4,13 @@ package edu.usc.cs.ir.cwork.solr;
  * Created by nmante on 11/4/15.
  */
 
+import com.google.common.collect.Iterators;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.math3.util.Pair;
 import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.impl.HttpSolrServer;
-import org.apache.solr.client.solrj.response.UpdateResponse;
+import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.SolrInputDocument;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
@@ -22,10 +24,12 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
 
 /**
  * This class accepts CLI args containing paths to Nutch segments and solr Url,
@@ -51,6 +55,17 @@ public class SolrPageRankUpdater {
             usage = "Batch or buffer size")
     private int batchSize = 1000;
 
+    @Option(name="-skipUnchanged",
+            usage = "Read the current ranks with real time gets, and update only the docs whose rank changes." +
+                    " The ids not in solr are skipped too")
+    private boolean skipUnchanged = false;
+
+    @Option(name="-getThreads", depends = "-skipUnchanged",
+            usage = "Number of real time get requests at a time")
+    private int getThreads = RealTimeGetIterator.DEF_THREADS;
+
+    private SolrSinkOptions sinkOptions = new SolrSinkOptions();
+
     /**
      * Updates documents in solr with pageranks
      *
@@ -59,63 +74,147 @@ public class SolrPageRankUpdater {
      */
     public void run() throws IOException, SolrServerException{
         // create the SolrJ Server
-        SolrServer solr = new HttpSolrServer(solrUrl.toString());
+        SolrServer solr = sinkOptions.createServer(solrUrl.toString());
+        // reads on a separate server, so that the gets don't wait for the queued updates
+        SolrServer reader = skipUnchanged ? new HttpSolrServer(solrUrl.toString()) : null;
 
         LOG.info("Reading page ranks from {}", rankField);
-        try (InputStream stream = new FileInputStream(ranksFile)) {
+        try (InputStream stream = new FileInputStream(ranksFile);
+             SolrSink sink = sinkOptions.newSink(solr, batchSize, null)) {
             Iterator<String> lines = IOUtils.lineIterator(stream, StandardCharsets.UTF_8);
+            Iterator<Pair<String, Double>> ranks = Iterators.transform(
+                    Iterators.filter(lines, line -> !line.trim().isEmpty()), SolrPageRankUpdater::parseRank);
+            ChangedRanks changed = null;
+            if (skipUnchanged) {
+                ranks = changed = new ChangedRanks(reader, ranks, getThreads, rankField);
+            }
 
-            ArrayList<SolrInputDocument> buffer = new ArrayList<>(batchSize);
             long st = System.currentTimeMillis();
             long count = 0;
             long delay = 2 * 1000;
-
-            while (lines.hasNext()) {
-                String line = lines.next().trim();
-                if (line.isEmpty()) {
-                    continue;
-                }
-                String[] parts = line.split("\\s");
-                String id = parts[0];
-                Double score = Double.valueOf(parts[1]);
-
-
+            while (ranks.hasNext()) {
+                Pair<String, Double> rank = ranks.next();
                 // create the document
                 SolrInputDocument sDoc = new SolrInputDocument();
                 // Add the id field, and page rank field to the document
-                sDoc.addField("id", id);
+                sDoc.addField("id", rank.getKey());
                 Map<String, Double> fieldModifier = new HashMap<>();
-                fieldModifier.put("set", score);
+                fieldModifier.put("set", rank.getValue());
                 sDoc.addField(rankField, fieldModifier);  // add the map as the field value
-                buffer.add(sDoc);
-
+                sink.add(sDoc);
                 count++;
-                if (buffer.size() >= batchSize) {
-                    try {
-                        solr.add(buffer);
-                        buffer.clear();
-                    } catch (Exception e) {
-                        throw new RuntimeException(e);
-                    }
-                }
 
                 if (System.currentTimeMillis() - st > delay) {
-                    LOG.info("Num Docs : {}", count);
+                    LOG.info("Num Docs : {}, skipped : {}", count, changed == null ? 0 : changed.getSkipped());
                     st = System.currentTimeMillis();
                 }
             }
-            //left out
-            if (!buffer.isEmpty()) {
-                solr.add(buffer);
+            LOG.info("Num Docs : {}, skipped : {}", count, changed == null ? 0 : changed.getSkipped());
+            // left out batch is posted and committed while closing the sink
+        } finally {
+            solr.shutdown();
+            if (reader != null) {
+                reader.shutdown();
             }
+        }
 
-            // commit
-            LOG.info("Committing before exit. Num Docs = {}", count);
-            UpdateResponse response = solr.commit();
-            solr.shutdown();
-            LOG.info("Commit response : {}", response);
+    }
+
+    /**
+     * @param line a line of the ranks file, 'URL\t(double)SCORE'
+     * @return the id and the rank
+     */
+    static Pair<String, Double> parseRank(String line) {
+        String[] parts = line.trim().split("\\s");
+        return new Pair<>(parts[0], Double.valueOf(parts[1]));
+    }
+
+    /**
+     * Reads the current ranks of the docs with a single real time get iterator over all the ids,
+     * and passes on the ranks which change. The gets run ahead of the consumer, which posts the
+     * updates meanwhile.
+     */
+    static class ChangedRanks implements Iterator<Pair<String, Double>> {
+
+        // the ranks whose ids are requested, and whose docs aren't read yet
+        private final Deque<Pair<String, Double>> pending = new ArrayDeque<>();
+        private final RealTimeGetIterator docs;
+        private final String rankField;
+        private Pair<String, Double> next;
+        private long skipped = 0;
+
+        /**
+         * @param solr the solr core
+         * @param ranks the new ranks
+         * @param threads number of real time get requests at a time
+         * @param rankField the field of the rank
+         */
+        ChangedRanks(SolrServer solr, Iterator<Pair<String, Double>> ranks, int threads, String rankField) {
+            this.rankField = rankField;
+            // the get iterator pulls the ids on the consumer's thread, so the queue isn't shared
+            Iterator<String> ids = Iterators.transform(ranks, rank -> {
+                pending.add(rank);
+                return rank.getKey();
+            });
+            this.docs = new RealTimeGetIterator(solr, ids, RealTimeGetIterator.DEF_BATCH, threads,
+                    "id", rankField);
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && docs.hasNext()) {
+                SolrDocument doc = docs.next();
+                String id = doc.getFieldValue("id").toString();
+                // the docs come in the order of the ids, the ranks before this doc aren't in solr
+                Pair<String, Double> rank;
+                while ((rank = pending.poll()) != null && !rank.getKey().equals(id)) {
+                    skipped++;
+                }
+                if (rank == null) {
+                    continue;
+                }
+                if (sameRank(doc.getFieldValue(rankField), rank.getValue())) {
+                    skipped++;
+                } else {
+                    next = rank;
+                }
+            }
+            if (next == null) {
+                skipped += pending.size();
+                pending.clear();
+                return false;
+            }
+            return true;
         }
 
+        @Override
+        public Pair<String, Double> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Pair<String, Double> rank = next;
+            next = null;
+            return rank;
+        }
+
+        /**
+         * @return number of ranks skipped so far, as unchanged or not in solr
+         */
+        public long getSkipped() {
+            return skipped;
+        }
+    }
+
+    /**
+     * @param current the value in solr, may be null
+     * @param rank the new rank
+     * @return true when the value is the rank, in the precision of the field
+     */
+    static boolean sameRank(Object current, double rank) {
+        if (current instanceof Float) {
+            return (Float) current == (float) rank;
+        }
+        return current instanceof Number && ((Number) current).doubleValue() == rank;
     }
 
     public static void main(String[] args) throws InterruptedException,
@@ -123,6 +222,7 @@ public class SolrPageRankUpdater {
 
         SolrPageRankUpdater updater= new SolrPageRankUpdater();
         CmdLineParser cmdLineParser = new CmdLineParser(updater);
+        updater.sinkOptions.addTo(cmdLineParser);
         try {
             cmdLineParser.parseArgument(args);
         } catch (CmdLineException e) {
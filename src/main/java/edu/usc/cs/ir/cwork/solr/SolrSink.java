@@ -0,0 +1,231 @@
+package edu.usc.cs.ir.cwork.solr;
+
+import edu.usc.cs.ir.cwork.sink.AsyncBatchSink;
+import edu.usc.cs.ir.cwork.sink.BatchListener;
+import edu.usc.cs.ir.cwork.sink.BatchPolicy;
+import edu.usc.cs.ir.cwork.sink.BatchRetrier;
+import edu.usc.cs.ir.cwork.sink.PartialBatchException;
+import edu.usc.cs.ir.cwork.sink.SizeEstimator;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Posts documents to solr in batches from background threads, so that the producer
+ * can fill the next batch while the previous one is on the wire.
+ * The updates are committed as per the {@link CommitPolicy}, by default once while closing the sink
+ * after the outstanding batches are acknowledged.
+ */
+public class SolrSink extends AsyncBatchSink<SolrInputDocument> {
+
+    public static final Logger LOG = LoggerFactory.getLogger(SolrSink.class);
+
+    private final SolrServer solr;
+    private boolean commitOnClose = true;
+    private CommitPolicy commitPolicy = CommitPolicy.atEnd();
+
+    /**
+     * @param solr the solr server
+     * @param batchSize number of docs in a batch
+     * @param maxInFlight number of batches that can be posted concurrently
+     * @param listener listener for the outcome of batches, null to log the errors
+     */
+    public SolrSink(SolrServer solr, int batchSize, int maxInFlight,
+                    BatchListener<SolrInputDocument> listener) {
+        this(solr, BatchPolicy.ofDocs(batchSize), maxInFlight, listener);
+    }
+
+    /**
+     * @param solr the solr server
+     * @param policy decides when a batch is full
+     * @param maxInFlight number of batches that can be posted concurrently
+     * @param listener listener for the outcome of batches, null to log the errors
+     */
+    public SolrSink(SolrServer solr, BatchPolicy policy, int maxInFlight,
+                    BatchListener<SolrInputDocument> listener) {
+        super("solr", policy, SolrSink::estimateSize, maxInFlight, listener);
+        this.solr = solr;
+    }
+
+    /**
+     * Estimates the size of a document from its field names and values
+     * @param doc the document
+     * @return approximate number of bytes
+     */
+    public static long estimateSize(SolrInputDocument doc) {
+        long size = 0;
+        for (SolrInputField field : doc) {
+            // the name is written twice in xml, once in javabin
+            size += field.getName().length() * 2 + SizeEstimator.estimateValue(field.getValue());
+        }
+        return size;
+    }
+
+    public SolrServer getServer() {
+        return solr;
+    }
+
+    public void setCommitOnClose(boolean commitOnClose) {
+        this.commitOnClose = commitOnClose;
+    }
+
+    /**
+     * @param commitPolicy decides when the updates are committed, should not be shared with another sink
+     */
+    public void setCommitPolicy(CommitPolicy commitPolicy) {
+        this.commitPolicy = commitPolicy;
+    }
+
+    public CommitPolicy getCommitPolicy() {
+        return commitPolicy;
+    }
+
+    /**
+     * Adds a bean annotated with solrj's {@link org.apache.solr.client.solrj.beans.Field}
+     * @param bean the bean
+     * @throws IOException when the sink is closed
+     */
+    public void addBean(Object bean) throws IOException {
+        add(toDocument(bean));
+    }
+
+    /**
+     * Converts a bean annotated with solrj's {@link org.apache.solr.client.solrj.beans.Field} to a document
+     * @param bean the bean
+     * @return solr document
+     */
+    public SolrInputDocument toDocument(Object bean) {
+        return solr.getBinder().toSolrInputDocument(bean);
+    }
+
+    @Override
+    protected void send(List<SolrInputDocument> batch) throws Exception {
+        solr.add(batch, commitPolicy.getCommitWithin());
+        commitPolicy.onAdded(solr, batch.size());
+    }
+
+    @Override
+    protected void onFlush() throws IOException {
+        if (solr instanceof ConcurrentUpdateServer) {
+            // the batches were only queued, the outcome of the docs comes once the server sends them
+            ((ConcurrentUpdateServer) solr).blockUntilFinished();
+        }
+    }
+
+    @Override
+    protected void onClose() throws IOException {
+        if (commitOnClose) {
+            LOG.info("Committing before exit. Num Docs = {}, {}", getNumDocs(), commitPolicy);
+            commitPolicy.onClose(solr);
+        }
+    }
+
+    @Override
+    protected JSONObject toJson(SolrInputDocument doc) {
+        return toJsonDoc(doc);
+    }
+
+    /**
+     * Converts a document to JSON, the dates are written in ISO-8601 format which solr accepts
+     * @param doc the document
+     * @return JSON document
+     */
+    public static JSONObject toJsonDoc(SolrInputDocument doc) {
+        JSONObject json = new JSONObject();
+        for (SolrInputField field : doc) {
+            json.put(field.getName(), toJsonValue(field.getValue()));
+        }
+        return json;
+    }
+
+    private static Object toJsonValue(Object value) {
+        if (value instanceof Collection) {
+            JSONArray array = new JSONArray();
+            for (Object item : (Collection<?>) value) {
+                array.put(toJsonValue(item));
+            }
+            return array;
+        }
+        if (value instanceof Map) {
+            JSONObject object = new JSONObject();
+            for (Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) {
+                object.put(e.getKey().toString(), toJsonValue(e.getValue()));
+            }
+            return object;
+        }
+        if (value instanceof Date) {
+            return ((Date) value).toInstant().toString();
+        }
+        return value == null ? JSONObject.NULL : value;
+    }
+
+    /**
+     * Converts a JSON document back to a solr document, the objects are taken as atomic updates
+     * @param json JSON document
+     * @return solr document
+     */
+    public static SolrInputDocument fromJsonDoc(JSONObject json) {
+        SolrInputDocument doc = new SolrInputDocument();
+        for (Object key : json.keySet()) {
+            doc.setField(key.toString(), fromJsonValue(json.get(key.toString())));
+        }
+        return doc;
+    }
+
+    private static Object fromJsonValue(Object value) {
+        if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            List<Object> list = new ArrayList<>(array.length());
+            for (int i = 0; i < array.length(); i++) {
+                list.add(fromJsonValue(array.get(i)));
+            }
+            return list;
+        }
+        if (value instanceof JSONObject) {
+            JSONObject object = (JSONObject) value;
+            Map<String, Object> map = new HashMap<>();
+            for (Object key : object.keySet()) {
+                map.put(key.toString(), fromJsonValue(object.get(key.toString())));
+            }
+            return map;
+        }
+        return value == JSONObject.NULL ? null : value;
+    }
+
+    @Override
+    protected boolean isTransient(Exception e) {
+        return isTransientError(e);
+    }
+
+    /**
+     * Tells if a solr error is transient: the server couldn't be reached or failed with a 5xx status.
+     * The 4xx statuses mean that solr rejected some documents.
+     * @param e the error
+     * @return true if the same request is worth retrying
+     */
+    public static boolean isTransientError(Exception e) {
+        PartialBatchException partial = PartialBatchException.find(e);
+        if (partial != null) {
+            return partial.isTransient();
+        }
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof SolrException) {
+                return ((SolrException) t).code() >= 500;
+            }
+        }
+        return BatchRetrier.isIOError(e);
+    }
+}
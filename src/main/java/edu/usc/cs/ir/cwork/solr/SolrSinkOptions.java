@@ -0,0 +1,233 @@
+package edu.usc.cs.ir.cwork.solr;
+
+import edu.usc.cs.ir.cwork.sink.AimdThrottle;
+import edu.usc.cs.ir.cwork.sink.BatchListener;
+import edu.usc.cs.ir.cwork.sink.BatchOptions;
+import edu.usc.cs.ir.cwork.sink.DeadLetterStore;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.impl.BinaryRequestWriter;
+import org.apache.solr.client.solrj.impl.BinaryResponseParser;
+import org.apache.solr.client.solrj.impl.CloudSolrServer;
+import org.apache.solr.client.solrj.impl.HttpSolrServer;
+import org.apache.solr.common.SolrInputDocument;
+import org.kohsuke.args4j.ClassParser;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * CLI options for posting to solr, shared by all the commands that write to solr.
+ * Use {@link #addTo(CmdLineParser)} to add these options to the command's parser.
+ */
+public class SolrSinkOptions {
+
+    @Option(name = "-inflight", usage = "Number of batches posted to solr in background" +
+            " while the next batch is being filled")
+    private int maxInFlight = 1;
+
+    @Option(name = "-aimd", usage = "Adapt the batches in flight between 1 and -inflight, and the delay" +
+            " between batches, to the latency and errors of solr")
+    private boolean aimd = false;
+
+    @Option(name = "-maxDelay", usage = "Upper bound for the delay between batches in millis with -aimd")
+    private long maxDelay = AimdThrottle.DEF_MAX_DELAY;
+
+    @Option(name = "-solrThreads", usage = "Number of threads streaming the updates to solr over a pool of" +
+            " connections. 0 to post over a single connection")
+    private int solrThreads = 0;
+
+    @Option(name = "-solrQueue", usage = "Number of batches queued for the -solrThreads")
+    private int solrQueue = 10;
+
+    @Option(name = "-shardMap", usage = "File with a line per shard: name leaderUrl [hashRange]. The updates" +
+            " are sent straight to the shard leaders instead of the solr url", forbids = "-zkHost")
+    private File shardMapFile;
+
+    @Option(name = "-zkHost", usage = "Zookeeper of a SolrCloud. The updates are sent straight to the" +
+            " leaders of the -collection, as per the cluster state", depends = "-collection")
+    private String zkHost;
+
+    @Option(name = "-collection", usage = "Collection to update, with -zkHost")
+    private String collection;
+
+    @Option(name = "-javabin", usage = "Post the updates in solr's binary javabin format instead of xml")
+    private boolean javabin = false;
+
+    @Option(name = "-gzip", usage = "Ask solr to gzip the responses")
+    private boolean gzip = false;
+
+    @Option(name = "-gzipRequests", usage = "Gzip the request bodies. Stock solr can't read them, it needs" +
+            " a proxy in front of it which inflates the requests")
+    private boolean gzipRequests = false;
+
+    @Option(name = "-deadLetters", usage = "File to which the docs rejected by solr are appended." +
+            " Use the replay command to post them again")
+    private File deadLetterFile;
+
+    @Option(name = "-commit", usage = "When to commit: none (leave it to solr's autoCommit), end," +
+            " within (-commitWithin), soft or hard (every -commitDocs or -commitMillis)." +
+            " All but none end with a hard commit")
+    private CommitPolicy.Mode commitMode = CommitPolicy.Mode.END;
+
+    @Option(name = "-commitWithin", usage = "Millis within which solr should commit an update, with -commit within")
+    private int commitWithin = 60 * 1000;
+
+    @Option(name = "-commitDocs", usage = "Number of docs between soft or hard commits, 0 for no limit")
+    private long commitDocs = 0;
+
+    @Option(name = "-commitMillis", usage = "Millis between soft or hard commits, 0 for no limit")
+    private long commitMillis = 5 * 60 * 1000;
+
+    private BatchOptions batchOptions = new BatchOptions();
+
+    /**
+     * Adds these options to a command line parser
+     * @param parser the parser of command
+     * @return this options
+     */
+    public SolrSinkOptions addTo(CmdLineParser parser) {
+        new ClassParser().parse(this, parser);
+        batchOptions.addTo(parser);
+        return this;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public int getSolrThreads() {
+        return solrThreads;
+    }
+
+    /**
+     * Creates a solr server for posting the updates
+     * @param solrUrl the solr url, not used when the updates are routed to the shard leaders
+     * @return a {@link ConcurrentUpdateServer} when -solrThreads is set, a {@link ShardRoutingServer}
+     * when -shardMap or -zkHost is set, else a {@link HttpSolrServer}
+     */
+    public SolrServer createServer(String solrUrl) {
+        if (shardMapFile != null || zkHost != null) {
+            SolrServer router = createRouter();
+            return solrThreads > 0 ? new ConcurrentUpdateServer(router, solrQueue, solrThreads) : router;
+        }
+        if (solrThreads > 0) {
+            ConcurrentUpdateServer solr = new ConcurrentUpdateServer(solrUrl, solrQueue, solrThreads);
+            configure((HttpSolrServer) solr.getServer());
+            return solr;
+        }
+        return createHttpServer(solrUrl);
+    }
+
+    private HttpSolrServer createHttpServer(String solrUrl) {
+        HttpSolrServer solr = new HttpSolrServer(solrUrl);
+        solr.setConnectionTimeout(ConcurrentUpdateServer.CONNECTION_TIMEOUT);
+        configure(solr);
+        return solr;
+    }
+
+    /**
+     * Creates a server which routes the updates to the shard leaders
+     * @return shard routing server
+     */
+    private ShardRoutingServer createRouter() {
+        if (shardMapFile != null) {
+            try {
+                return new ShardRoutingServer(ShardMap.load(shardMapFile), this::createHttpServer, null);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        CloudSolrServer cloud = new CloudSolrServer(zkHost);
+        cloud.setDefaultCollection(collection);
+        cloud.connect();
+        ShardRoutingServer router = new ShardRoutingServer(
+                ShardMap.fromClusterState(cloud, collection), this::createHttpServer, cloud);
+        router.setRefresher(() -> ShardMap.fromClusterState(cloud, collection));
+        return router;
+    }
+
+    /**
+     * Sets the transport of a server as per the -javabin, -gzip and -gzipRequests options
+     * @param solr the server
+     */
+    public void configure(HttpSolrServer solr) {
+        if (javabin) {
+            solr.setRequestWriter(new BinaryRequestWriter());
+            solr.setParser(new BinaryResponseParser());
+        }
+        solr.setAllowCompression(gzip);
+        if (gzipRequests) {
+            GzipRequestInterceptor.addTo(solr.getHttpClient());
+        }
+    }
+
+    /**
+     * @return a new commit policy as per the -commit options
+     */
+    public CommitPolicy newCommitPolicy() {
+        return new CommitPolicy(commitMode, commitWithin, commitDocs, commitMillis);
+    }
+
+    public BatchOptions getBatchOptions() {
+        return batchOptions;
+    }
+
+    public File getDeadLetterFile() {
+        return deadLetterFile;
+    }
+
+    /**
+     * Tells if a failed batch should stop the run. With -deadLetters, the docs rejected by solr are
+     * in the store and the run goes on; the batches which couldn't be sent stop it
+     * @param e the error of the batch
+     * @return true to stop the run
+     */
+    public boolean isFatal(Exception e) {
+        return deadLetterFile == null || e instanceof InterruptedException || SolrSink.isTransientError(e);
+    }
+
+    /**
+     * Creates a sink.
+     * When the server is a {@link ConcurrentUpdateServer}, the outcome of the docs is reported once
+     * the server has sent them, not when they are queued. The rejected docs go to the -deadLetters store, if given.
+     * With -aimd, the sink is throttled to the latency and errors of solr
+     * @param solr the solr server
+     * @param batchSize max number of docs in a batch, the bytes and age are limited by {@link BatchOptions}
+     * @param listener listener for the outcome of batches, null to log the errors
+     * @return solr sink
+     */
+    public SolrSink newSink(SolrServer solr, int batchSize,
+                            BatchListener<SolrInputDocument> listener) {
+        SolrSink sink = new SolrSink(solr, batchOptions.toPolicy(batchSize), maxInFlight, listener);
+        sink.setCommitPolicy(newCommitPolicy());
+        if (aimd) {
+            sink.setThrottle(new AimdThrottle(1, maxInFlight, maxDelay));
+        }
+        if (solr instanceof ConcurrentUpdateServer) {
+            sink.setDeferredOutcome(true);
+            ((ConcurrentUpdateServer) solr).setListener(new BatchListener<SolrInputDocument>() {
+                @Override
+                public void onSuccess(List<SolrInputDocument> docs, long millis) {
+                    sink.reportSuccess(docs, millis);
+                }
+
+                @Override
+                public void onFailure(List<SolrInputDocument> docs, Exception e) {
+                    sink.reportFailure(docs, e);
+                }
+            });
+        }
+        if (deadLetterFile != null) {
+            try {
+                String source = System.getProperty("sun.java.command", "unknown");
+                sink.setDeadLetters(new DeadLetterStore(deadLetterFile, source));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return sink;
+    }
+}
@@ -0,0 +1,212 @@
+package edu.usc.cs.ir.cwork.tika;
+
+import org.apache.commons.lang.StringEscapeUtils;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.metadata.TikaCoreProperties;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reads the title and the meta tags of a html page without parsing the whole page: the stream is
+ * read up to the end of the head, or the first maxBytes when the head doesn't end before, and the
+ * tags of the head are scanned for the title, the meta names, properties and http-equivs.
+ * <p>
+ * The bytes are scanned as latin-1, which keeps the markup intact in any ascii compatible charset,
+ * and the values are decoded with the charset of the page, UTF-8 when it doesn't declare one.
+ * An extractor reuses its buffer and is not thread safe.
+ * </p>
+ */
+public class HtmlHeadExtractor {
+
+    public static final int DEF_MAX_BYTES = 64 * 1024;
+
+    private static final Pattern ATTR = Pattern.compile(
+            "([^\\s=/>]+)(?:\\s*=\\s*(?:\"([^\"]*)\"|'([^']*)'|([^\\s>]+)))?");
+    private static final Pattern CHARSET = Pattern.compile("charset\\s*=\\s*[\"']?([\\w.:-]+)",
+            Pattern.CASE_INSENSITIVE);
+
+    private final int maxBytes;
+    private byte[] buffer = new byte[8 * 1024];
+
+    public HtmlHeadExtractor() {
+        this(DEF_MAX_BYTES);
+    }
+
+    /**
+     * @param maxBytes max number of bytes read from a page
+     */
+    public HtmlHeadExtractor(int maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Reads the head of a page
+     * @param stream the page, which is read up to the end of its head and left open
+     * @return the metadata: title, the content of the meta tags by their name, property or http-equiv,
+     * and Content-Encoding when the page declares its charset
+     * @throws IOException when the stream can't be read
+     */
+    public Metadata extract(InputStream stream) throws IOException {
+        String head = readHead(stream);
+        Metadata md = new Metadata();
+        Charset charset = StandardCharsets.UTF_8;
+        String title = null;
+        int pos = 0;
+        while ((pos = head.indexOf('<', pos)) >= 0) {
+            if (head.startsWith("<!--", pos)) {
+                int end = head.indexOf("-->", pos + 4);
+                pos = end < 0 ? head.length() : end + 3;
+                continue;
+            }
+            int end = head.indexOf('>', pos);
+            if (end < 0) {
+                break;
+            }
+            String tag = tagName(head, pos + 1);
+            if (tag.equals("/head") || tag.equals("body")) {
+                break;
+            } else if (tag.equals("title") && title == null) {
+                int close = indexOfIgnoreCase(head, "</title", end);
+                title = head.substring(end + 1, close < 0 ? head.length() : close);
+                pos = close < 0 ? head.length() : close;
+                continue;
+            } else if (tag.equals("script") || tag.equals("style")) {
+                int close = indexOfIgnoreCase(head, "</" + tag, end);
+                pos = close < 0 ? head.length() : close;
+                continue;
+            } else if (tag.equals("meta")) {
+                Map<String, String> attrs = attributes(head.substring(pos + 1 + tag.length(), end));
+                Charset declared = charset(attrs);
+                if (declared != null) {
+                    charset = declared;
+                    md.set(Metadata.CONTENT_ENCODING, declared.name());
+                }
+                String key = attrs.containsKey("name") ? attrs.get("name")
+                        : attrs.containsKey("property") ? attrs.get("property") : attrs.get("http-equiv");
+                if (key != null && attrs.containsKey("content")) {
+                    md.add(key, attrs.get("content"));
+                }
+            }
+            pos = end + 1;
+        }
+
+        // the values are decoded once the charset is known
+        Metadata decoded = new Metadata();
+        for (String name : md.names()) {
+            for (String value : md.getValues(name)) {
+                decoded.add(decode(name, charset), decode(value, charset));
+            }
+        }
+        if (title != null) {
+            title = decode(title, charset).replaceAll("\\s+", " ").trim();
+            decoded.set(TikaCoreProperties.TITLE, title);
+            decoded.set("title", title);
+        }
+        return decoded;
+    }
+
+    /**
+     * Reads the stream up to the end of the head, or maxBytes
+     * @return the bytes read as latin-1
+     */
+    private String readHead(InputStream stream) throws IOException {
+        int len = 0;
+        int scanned = 0;
+        while (len < maxBytes) {
+            if (len == buffer.length) {
+                byte[] bigger = new byte[Math.min(maxBytes, buffer.length * 2)];
+                System.arraycopy(buffer, 0, bigger, 0, len);
+                buffer = bigger;
+            }
+            int read = stream.read(buffer, len, Math.min(buffer.length, maxBytes) - len);
+            if (read < 0) {
+                break;
+            }
+            len += read;
+            // the end tag may span two reads
+            if (endOfHead(buffer, Math.max(0, scanned - 6), len)) {
+                break;
+            }
+            scanned = len;
+        }
+        return new String(buffer, 0, len, StandardCharsets.ISO_8859_1);
+    }
+
+    private static boolean endOfHead(byte[] bytes, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == '<' && (startsWithIgnoreCase(bytes, i + 1, "/head", to)
+                    || startsWithIgnoreCase(bytes, i + 1, "body", to))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean startsWithIgnoreCase(byte[] bytes, int from, String prefix, int to) {
+        if (from + prefix.length() > to) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (Character.toLowerCase((char) bytes[from + i]) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String tagName(String html, int from) {
+        int end = from;
+        while (end < html.length() && !Character.isWhitespace(html.charAt(end))
+                && html.charAt(end) != '>' && !(html.charAt(end) == '/' && end > from)) {
+            end++;
+        }
+        return html.substring(from, end).toLowerCase(Locale.ROOT);
+    }
+
+    private static int indexOfIgnoreCase(String html, String str, int from) {
+        for (int i = from; i <= html.length() - str.length(); i++) {
+            if (html.regionMatches(true, i, str, 0, str.length())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static Map<String, String> attributes(String tag) {
+        Map<String, String> attrs = new HashMap<>();
+        Matcher matcher = ATTR.matcher(tag);
+        while (matcher.find()) {
+            String value = matcher.group(2) != null ? matcher.group(2)
+                    : matcher.group(3) != null ? matcher.group(3) : matcher.group(4);
+            attrs.putIfAbsent(matcher.group(1).toLowerCase(Locale.ROOT), value == null ? "" : value);
+        }
+        return attrs;
+    }
+
+    private static Charset charset(Map<String, String> attrs) {
+        String name = attrs.get("charset");
+        if (name == null && "content-type".equalsIgnoreCase(attrs.get("http-equiv")) && attrs.containsKey("content")) {
+            Matcher matcher = CHARSET.matcher(attrs.get("content"));
+            name = matcher.find() ? matcher.group(1) : null;
+        }
+        try {
+            return name == null || name.isEmpty() ? null : Charset.forName(name.trim());
+        } catch (IllegalArgumentException e) {
+            return null; // unknown charset
+        }
+    }
+
+    private static String decode(String latin1, Charset charset) {
+        String text = charset.equals(StandardCharsets.ISO_8859_1) ? latin1
+                : new String(latin1.getBytes(StandardCharsets.ISO_8859_1), charset);
+        return StringEscapeUtils.unescapeHtml(text);
+    }
+}
@@ -20,6 +20,8 @@ import org.apache.tika.config.TikaConfig;
 import org.apache.tika.exception.TikaException;
 import org.apache.tika.io.TikaInputStream;
 import org.apache.tika.metadata.Metadata;
+import org.apache.tika.mime.MediaType;
+import org.apache.tika.mime.MimeTypes;
 import org.apache.tika.parser.AutoDetectParser;
 import org.apache.tika.parser.ParseContext;
 import org.apache.tika.parser.geo.topic.gazetteer.GeoGazetteerClient;
@@ -74,6 +76,7 @@ public class Parser {
 
     private static final com.joestelmach.natty.Parser NATTY_PARSER =
             new com.joestelmach.natty.Parser();
+    private static final MimeTypes MIME_TYPES = MimeTypes.getDefaultMimeTypes();
     private static Parser PHASE1;
     private static Parser PHASE2;
     private static Parser INSTANCE;
@@ -228,6 +231,21 @@ public class Parser {
     }
 
 
+    /**
+     * Guesses the media type from the resource name, without reading the content
+     * @param name file name
+     * @return the media type
+     */
+    public static String detectByName(String name) {
+        Metadata md = new Metadata();
+        md.set(Metadata.RESOURCE_NAME_KEY, name);
+        try {
+            return MIME_TYPES.detect(null, md).toString();
+        } catch (IOException e) {
+            return MediaType.OCTET_STREAM.toString();
+        }
+    }
+
     /**
      * Filters dates that are within 24 hour time from now.
      * This is useful when date parser relate relative times to now
@@ -0,0 +1,314 @@
+package edu.usc.cs.ir.cwork.util;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out parse deadlines to tasks.
+ * In adaptive mode, this learns latency percentiles per MIME type and size bucket
+ * as the run goes and sets each deadline from them. A (type, size) key which has not seen
+ * enough samples falls back to the statistics of its type, and then to the fixed timeout.
+ * The statistics of a type come from its smaller inputs when the size is larger than all the
+ * learnt buckets of the type, so such a task gets at least the fixed timeout.
+ * Cancelled tasks are recorded as samples of their timeout, so that a type which keeps timing
+ * out gets longer deadlines instead of shorter ones.
+ */
+public class DeadlineManager {
+
+    /**
+     * The policy which decided a deadline
+     */
+    public enum Policy {
+        FIXED,
+        ADAPTIVE
+    }
+
+    public static final int WINDOW_SIZE = 256;
+    public static final int DEF_MIN_SAMPLES = 20;
+    public static final double DEF_PERCENTILE = 0.99;
+    public static final double DEF_MULTIPLIER = 3.0;
+    public static final String UNKNOWN_TYPE = "unknown";
+
+    private final long fixedTimeout;
+    private final long minTimeout;
+    private final long maxTimeout;
+    private final boolean adaptive;
+    private double percentile = DEF_PERCENTILE;
+    private double multiplier = DEF_MULTIPLIER;
+    private int minSamples = DEF_MIN_SAMPLES;
+
+    private final Map<String, LatencyWindow> windows = new ConcurrentHashMap<>();
+    private final Map<String, Integer> maxBuckets = new ConcurrentHashMap<>();
+    private final Map<Policy, AtomicLong> taskCounts = new EnumMap<>(Policy.class);
+    private final Map<Policy, AtomicLong> cancelCounts = new EnumMap<>(Policy.class);
+
+    /**
+     * Creates a manager which gives the same timeout to every task
+     * @param fixedTimeout timeout in millis
+     */
+    public DeadlineManager(long fixedTimeout) {
+        this(fixedTimeout, fixedTimeout, fixedTimeout, false);
+    }
+
+    /**
+     * Creates an adaptive manager
+     * @param fixedTimeout timeout in millis used until enough samples are seen
+     * @param minTimeout lower bound for learnt timeouts
+     * @param maxTimeout upper bound for learnt timeouts
+     */
+    public DeadlineManager(long fixedTimeout, long minTimeout, long maxTimeout) {
+        this(fixedTimeout, minTimeout, maxTimeout, true);
+    }
+
+    private DeadlineManager(long fixedTimeout, long minTimeout, long maxTimeout,
+                            boolean adaptive) {
+        if (minTimeout > maxTimeout) {
+            throw new IllegalArgumentException("min timeout " + minTimeout
+                    + " is greater than max timeout " + maxTimeout);
+        }
+        this.fixedTimeout = fixedTimeout;
+        this.minTimeout = minTimeout;
+        this.maxTimeout = maxTimeout;
+        this.adaptive = adaptive;
+        for (Policy policy : Policy.values()) {
+            taskCounts.put(policy, new AtomicLong());
+            cancelCounts.put(policy, new AtomicLong());
+        }
+    }
+
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    /**
+     * @param percentile the latency percentile (0, 1] to derive the deadlines from
+     */
+    public void setPercentile(double percentile) {
+        if (percentile <= 0 || percentile > 1) {
+            throw new IllegalArgumentException("percentile should be in (0, 1]");
+        }
+        this.percentile = percentile;
+    }
+
+    /**
+     * @param multiplier headroom factor applied on the latency percentile
+     */
+    public void setMultiplier(double multiplier) {
+        this.multiplier = multiplier;
+    }
+
+    /**
+     * @param minSamples number of samples needed before trusting the learnt percentile
+     */
+    public void setMinSamples(int minSamples) {
+        this.minSamples = minSamples;
+    }
+
+    /**
+     * Starts the clock for a task
+     * @param mimeType media type of the input, null if unknown
+     * @param size size of the input in bytes, negative if unknown
+     * @return deadline for the task
+     */
+    public Deadline start(String mimeType, long size) {
+        String type = normalize(mimeType);
+        int bucket = sizeBucket(size);
+        String key = type + "|" + bucket;
+        Policy policy = Policy.FIXED;
+        long timeout = fixedTimeout;
+        if (adaptive) {
+            long learnt = learntTimeout(key);
+            if (learnt < 0) {
+                learnt = learntTimeout(type);
+                if (learnt >= 0 && bucket > maxBuckets.getOrDefault(type, -1) && learnt < fixedTimeout) {
+                    learnt = -1; // larger than anything learnt for the type
+                }
+            }
+            if (learnt >= 0) {
+                policy = Policy.ADAPTIVE;
+                timeout = learnt;
+            }
+        }
+        taskCounts.get(policy).incrementAndGet();
+        return new Deadline(type, bucket, key, policy, timeout);
+    }
+
+    private long learntTimeout(String key) {
+        LatencyWindow window = windows.get(key);
+        if (window == null || window.size() < minSamples) {
+            return -1;
+        }
+        long estimate = (long) (window.percentile(percentile) * multiplier);
+        return Math.max(minTimeout, Math.min(maxTimeout, estimate));
+    }
+
+    private void record(Deadline deadline, long latency) {
+        if (adaptive) {
+            LatencyWindow window = windows.computeIfAbsent(deadline.key, k -> new LatencyWindow());
+            window.add(latency);
+            if (window.size() >= minSamples) {
+                maxBuckets.merge(deadline.type, deadline.bucket, Math::max);
+            }
+            windows.computeIfAbsent(deadline.type, k -> new LatencyWindow()).add(latency);
+        }
+    }
+
+    /**
+     * Strips parameters such as charset from the media type
+     * @param mimeType the media type
+     * @return normalized media type
+     */
+    public static String normalize(String mimeType) {
+        if (mimeType == null || mimeType.trim().isEmpty()) {
+            return UNKNOWN_TYPE;
+        }
+        int idx = mimeType.indexOf(';');
+        if (idx >= 0) {
+            mimeType = mimeType.substring(0, idx);
+        }
+        return mimeType.trim().toLowerCase();
+    }
+
+    /**
+     * Maps size to a bucket, each bucket is four times as wide as the previous one.
+     * Bucket 0 is [0, 4KB), bucket 1 is [4KB, 16KB) and so on.
+     * @param size size in bytes
+     * @return the bucket number, -1 when size is unknown
+     */
+    public static int sizeBucket(long size) {
+        if (size < 0) {
+            return -1;
+        }
+        long kb = (size >> 10) | 1;
+        return (63 - Long.numberOfLeadingZeros(kb)) / 2;
+    }
+
+    public long getTaskCount(Policy policy) {
+        return taskCounts.get(policy).get();
+    }
+
+    public long getCancelCount(Policy policy) {
+        return cancelCounts.get(policy).get();
+    }
+
+    /**
+     * Creates a human readable summary of the deadlines and cancellations
+     * @return summary report
+     */
+    public String report() {
+        StringBuilder sb = new StringBuilder("Deadlines (")
+                .append(adaptive ? "adaptive" : "fixed").append(")");
+        for (Policy policy : Policy.values()) {
+            sb.append("\n  ").append(policy).append(" : tasks=").append(getTaskCount(policy))
+                    .append(", cancelled=").append(getCancelCount(policy));
+        }
+        for (Map.Entry<String, LatencyWindow> e : new TreeMap<>(windows).entrySet()) {
+            LatencyWindow window = e.getValue();
+            sb.append("\n  ").append(e.getKey()).append(" : samples=").append(window.size())
+                    .append(", p50=").append(window.percentile(0.5))
+                    .append(", p").append((int) (percentile * 100)).append("=")
+                    .append(window.percentile(percentile))
+                    .append(", deadline=").append(learntTimeout(e.getKey()));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Deadline of a single task
+     */
+    public class Deadline {
+
+        private final String type;
+        private final int bucket;
+        private final String key;
+        private final Policy policy;
+        private final long timeout;
+        private final long startTime;
+        private final AtomicBoolean done = new AtomicBoolean(false);
+
+        private Deadline(String type, int bucket, String key, Policy policy, long timeout) {
+            this.type = type;
+            this.bucket = bucket;
+            this.key = key;
+            this.policy = policy;
+            this.timeout = timeout;
+            this.startTime = System.currentTimeMillis();
+        }
+
+        public Policy getPolicy() {
+            return policy;
+        }
+
+        public long getTimeout() {
+            return timeout;
+        }
+
+        /**
+         * @return millis left until the deadline, zero if it has passed
+         */
+        public long remaining() {
+            return Math.max(0, startTime + timeout - System.currentTimeMillis());
+        }
+
+        /**
+         * Records successful completion of the task
+         */
+        public void finished() {
+            if (done.compareAndSet(false, true)) {
+                record(this, System.currentTimeMillis() - startTime);
+            }
+        }
+
+        /**
+         * Records that the task was cancelled since it didn't complete in time
+         */
+        public void cancelled() {
+            if (done.compareAndSet(false, true)) {
+                cancelCounts.get(policy).incrementAndGet();
+                record(this, timeout);
+            }
+        }
+    }
+
+    /**
+     * Keeps the most recent latencies in a ring buffer
+     */
+    private static class LatencyWindow {
+
+        private final long[] samples = new long[WINDOW_SIZE];
+        private int count;
+        private int pos;
+        private long[] sorted;
+        private int staleCount;
+
+        synchronized void add(long latency) {
+            samples[pos] = latency;
+            pos = (pos + 1) % samples.length;
+            count = Math.min(count + 1, samples.length);
+            staleCount++;
+        }
+
+        synchronized int size() {
+            return count;
+        }
+
+        synchronized long percentile(double p) {
+            if (count == 0) {
+                return 0;
+            }
+            // sorting is cheap for the window size, but still no need to do it for every task
+            if (sorted == null || staleCount >= 16 || sorted.length != count) {
+                sorted = Arrays.copyOf(samples, count);
+                Arrays.sort(sorted);
+                staleCount = 0;
+            }
+            int idx = (int) Math.ceil(p * count) - 1;
+            return sorted[Math.max(0, Math.min(count - 1, idx))];
+        }
+    }
+}
@@ -0,0 +1,566 @@
+package edu.usc.cs.ir.cwork.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * A staged pipeline which pulls items from a source and pushes them through a chain of stages.
+ * The stages are joined by bounded queues and each stage has its own number of workers,
+ * so a slow item holds up only the worker processing it.
+ * When a stage can't keep up, its input queue fills up and blocks the upstream stages (backpressure).
+ * <p>
+ * The items reach the last stage either in the order they complete, or in the source order when
+ * the pipeline is {@link #ordered(boolean)}.
+ * A stage can drop an item by returning null. Errors and timeouts drop the item too and are
+ * reported to the {@link Listener}.
+ * </p>
+ * Example:
+ * <pre>
+ *   Pipeline.from(files)
+ *       .then("parse", 8, file -&gt; parse(file), file -&gt; deadlines.start(type, file.length()))
+ *       .then("map", 1, bean -&gt; toDoc(bean))
+ *       .to("post", 1, doc -&gt; sink.add(doc));
+ * </pre>
+ * @param <T> type of the items coming out of the last stage so far
+ */
+public class Pipeline<T> {
+
+    public static final Logger LOG = LoggerFactory.getLogger(Pipeline.class);
+    public static final int DEF_QUEUE_SIZE = 100;
+    public static final long WATCHDOG_DELAY = 50;
+
+    /**
+     * A stage that transforms an item
+     * @param <I> input type
+     * @param <O> output type
+     */
+    public interface Step<I, O> {
+        /**
+         * @param item input item
+         * @return output item, null to drop the item
+         * @throws Exception when an error occurs
+         */
+        O process(I item) throws Exception;
+    }
+
+    /**
+     * The last stage which consumes the items
+     * @param <I> input type
+     */
+    public interface Sink<I> {
+        void accept(I item) throws Exception;
+    }
+
+    /**
+     * Gets notified about the errors, the timeouts and the items that are dropped
+     */
+    public interface Listener {
+
+        default void onError(String stage, Object item, Throwable e) {
+            LOG.error("Stage {} failed for {} : {}", stage, item, e.getMessage(), e);
+        }
+
+        default void onTimeout(String stage, Object item) {
+            LOG.warn("Cancelled a {} task, it didnt complete in time : {}", stage, item);
+        }
+
+        /**
+         * Called when an item leaves the pipeline before the end: a stage returned null for it, failed
+         * or timed out without a result. A timed out task may still return a result, which goes on.
+         * @param stage the stage which dropped the item
+         * @param item the input of that stage
+         */
+        default void onDropped(String stage, Object item) {
+        }
+    }
+
+    private final Config config;
+
+    private Pipeline(Config config) {
+        this.config = config;
+    }
+
+    /**
+     * Creates a pipeline from source
+     * @param source source of the items
+     * @param <T> type of items
+     * @return pipeline
+     */
+    public static <T> Pipeline<T> from(Iterator<? extends T> source) {
+        return new Pipeline<>(new Config(source));
+    }
+
+    /**
+     * @param queueSize capacity of the queue in front of each stage
+     * @return this pipeline
+     */
+    public Pipeline<T> queueSize(int queueSize) {
+        if (queueSize < 1) {
+            throw new IllegalArgumentException("queue size should be positive");
+        }
+        config.queueSize = queueSize;
+        return this;
+    }
+
+    /**
+     * @param ordered true to deliver the items to the last stage in the source order
+     * @return this pipeline
+     */
+    public Pipeline<T> ordered(boolean ordered) {
+        config.ordered = ordered;
+        return this;
+    }
+
+    /**
+     * @param listener listener for errors and timeouts
+     * @return this pipeline
+     */
+    public Pipeline<T> listener(Listener listener) {
+        config.listener = listener;
+        return this;
+    }
+
+    /**
+     * Adds a stage
+     * @param name name of the stage
+     * @param workers number of workers
+     * @param step the transformation
+     * @param <O> output type
+     * @return the pipeline
+     */
+    public <O> Pipeline<O> then(String name, int workers, Step<? super T, ? extends O> step) {
+        return then(name, workers, step, null);
+    }
+
+    /**
+     * Adds a stage whose tasks are interrupted when they exceed their deadline
+     * @param name name of the stage
+     * @param workers number of workers
+     * @param step the transformation
+     * @param deadlines function which starts the deadline of an item
+     * @param <O> output type
+     * @return the pipeline
+     */
+    @SuppressWarnings("unchecked")
+    public <O> Pipeline<O> then(String name, int workers, Step<? super T, ? extends O> step,
+                                Function<? super T, DeadlineManager.Deadline> deadlines) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("Stage " + name + " needs at least one worker");
+        }
+        config.stages.add(new StageDef(name, workers, (Step<Object, Object>) step,
+                (Function<Object, DeadlineManager.Deadline>) deadlines, false));
+        return (Pipeline<O>) this;
+    }
+
+    /**
+     * Adds the last stage and runs the pipeline. This method blocks until all the items
+     * from source are consumed
+     * @param name name of the stage
+     * @param workers number of workers, should be 1 for an ordered pipeline
+     * @param sink the consumer
+     * @return the stats
+     * @throws InterruptedException when interrupted while waiting
+     */
+    public Stats to(String name, int workers, Sink<? super T> sink) throws InterruptedException {
+        if (config.ordered && workers != 1) {
+            LOG.warn("Ordered pipeline can have only one worker in the last stage, ignoring {}", workers);
+            workers = 1;
+        }
+        @SuppressWarnings("unchecked")
+        Sink<Object> consumer = (Sink<Object>) sink;
+        config.stages.add(new StageDef(name, workers, item -> {
+            consumer.accept(item);
+            return null;
+        }, null, true));
+        return new Run(config).execute();
+    }
+
+    private static class Config {
+        private final Iterator<?> source;
+        private final List<StageDef> stages = new ArrayList<>();
+        private int queueSize = DEF_QUEUE_SIZE;
+        private boolean ordered = false;
+        private Listener listener = new Listener() {};
+
+        private Config(Iterator<?> source) {
+            this.source = source;
+        }
+    }
+
+    private static class StageDef {
+        private final String name;
+        private final int workers;
+        private final Step<Object, Object> step;
+        private final Function<Object, DeadlineManager.Deadline> deadlines;
+        private final boolean terminal;
+
+        private StageDef(String name, int workers, Step<Object, Object> step,
+                         Function<Object, DeadlineManager.Deadline> deadlines, boolean terminal) {
+            this.name = name;
+            this.workers = workers;
+            this.step = step;
+            this.deadlines = deadlines;
+            this.terminal = terminal;
+        }
+    }
+
+    /**
+     * An item in flight. A null value is a placeholder for a dropped item in an ordered pipeline
+     */
+    private static class Envelope {
+        private final long seq;
+        private final Object value;
+
+        private Envelope(long seq, Object value) {
+            this.seq = seq;
+            this.value = value;
+        }
+    }
+
+    private static final Envelope END = new Envelope(-1, null);
+
+    /**
+     * Statistics of a stage
+     */
+    public static class StageStats {
+        private final String name;
+        private final int workers;
+        private final AtomicLong in = new AtomicLong();
+        private final AtomicLong out = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong timeouts = new AtomicLong();
+        private final AtomicLong busyNanos = new AtomicLong();
+
+        private StageStats(String name, int workers) {
+            this.name = name;
+            this.workers = workers;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getIn() {
+            return in.get();
+        }
+
+        public long getOut() {
+            return out.get();
+        }
+
+        public long getErrors() {
+            return errors.get();
+        }
+
+        public long getTimeouts() {
+            return timeouts.get();
+        }
+
+        public long getBusyMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(busyNanos.get());
+        }
+
+        @Override
+        public String toString() {
+            long n = Math.max(1, in.get());
+            return String.format("%s[workers=%d, in=%d, out=%d, errors=%d, timeouts=%d, avg=%.1fms]",
+                    name, workers, in.get(), out.get(), errors.get(), timeouts.get(),
+                    busyNanos.get() / 1e6 / n);
+        }
+    }
+
+    /**
+     * Statistics of a pipeline run
+     */
+    public static class Stats {
+        private final AtomicLong sourceCount = new AtomicLong();
+        private final List<StageStats> stages = new ArrayList<>();
+        private long elapsedMillis;
+
+        public long getSourceCount() {
+            return sourceCount.get();
+        }
+
+        public List<StageStats> getStages() {
+            return stages;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "Pipeline[source=" + sourceCount.get() + ", time=" + elapsedMillis + "ms] " + stages;
+        }
+    }
+
+    /**
+     * Keeps track of the item being processed by a worker, so that the watchdog can interrupt it
+     */
+    private static class Worker {
+        private final Thread thread;
+        private DeadlineManager.Deadline deadline;
+        private boolean interrupted;
+
+        private Worker(Thread thread) {
+            this.thread = thread;
+        }
+
+        synchronized void begin(DeadlineManager.Deadline deadline) {
+            this.deadline = deadline;
+            this.interrupted = false;
+        }
+
+        /**
+         * Called by the worker thread after the item is processed
+         * @return true if the item was interrupted
+         */
+        synchronized boolean end() {
+            boolean result = interrupted;
+            deadline = null;
+            interrupted = false;
+            Thread.interrupted(); // clears the flag, if it was set
+            return result;
+        }
+
+        synchronized void check() {
+            if (deadline != null && !interrupted && deadline.remaining() == 0) {
+                interrupted = true;
+                thread.interrupt();
+            }
+        }
+    }
+
+    /**
+     * A single execution of the pipeline
+     */
+    private static class Run {
+
+        private final Config config;
+        private final Stats stats = new Stats();
+        private final List<BlockingQueue<Envelope>> queues = new ArrayList<>();
+        private final List<AtomicInteger> liveWorkers = new ArrayList<>();
+        private final List<Worker> watched = new ArrayList<>();
+        private final List<Thread> threads = new ArrayList<>();
+        private final Semaphore window;
+
+        private Run(Config config) {
+            this.config = config;
+            int workers = 0;
+            for (StageDef def : config.stages) {
+                queues.add(new ArrayBlockingQueue<>(config.queueSize));
+                liveWorkers.add(new AtomicInteger(def.workers));
+                stats.stages.add(new StageStats(def.name, def.workers));
+                workers += def.workers;
+            }
+            // in ordered mode, the items waiting for their turn are limited by this window
+            this.window = config.ordered
+                    ? new Semaphore(config.queueSize * config.stages.size() + workers)
+                    : null;
+        }
+
+        private Stats execute() throws InterruptedException {
+            long st = System.currentTimeMillis();
+            for (int i = 0; i < config.stages.size(); i++) {
+                StageDef def = config.stages.get(i);
+                for (int j = 0; j < def.workers; j++) {
+                    final int stageIdx = i;
+                    Thread thread = new Thread(() -> work(stageIdx));
+                    thread.setName("pipeline-" + def.name + "-" + j);
+                    threads.add(thread);
+                    if (def.deadlines != null) {
+                        watched.add(new Worker(thread));
+                    }
+                }
+            }
+            Thread source = new Thread(this::produce, "pipeline-source");
+            threads.add(source);
+
+            ScheduledExecutorService watchdog = null;
+            if (!watched.isEmpty()) {
+                watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t = new Thread(r, "pipeline-watchdog");
+                    t.setDaemon(true);
+                    return t;
+                });
+                watchdog.scheduleWithFixedDelay(() -> watched.forEach(Worker::check),
+                        WATCHDOG_DELAY, WATCHDOG_DELAY, TimeUnit.MILLISECONDS);
+            }
+            try {
+                for (Thread thread : threads) {
+                    thread.start();
+                }
+                for (Thread thread : threads) {
+                    thread.join();
+                }
+            } finally {
+                if (watchdog != null) {
+                    watchdog.shutdownNow();
+                }
+            }
+            stats.elapsedMillis = System.currentTimeMillis() - st;
+            LOG.info("{}", stats);
+            return stats;
+        }
+
+        private void produce() {
+            long seq = 0;
+            BlockingQueue<Envelope> first = queues.get(0);
+            try {
+                while (config.source.hasNext()) {
+                    Object item = config.source.next();
+                    if (item == null) {
+                        continue;
+                    }
+                    if (window != null) {
+                        window.acquire();
+                    }
+                    first.put(new Envelope(seq++, item));
+                    stats.sourceCount.incrementAndGet();
+                }
+            } catch (InterruptedException e) {
+                LOG.warn("Source interrupted");
+                Thread.currentThread().interrupt();
+            } catch (Throwable e) {
+                config.listener.onError("source", null, e);
+            } finally {
+                endStage(0);
+            }
+        }
+
+        /**
+         * Signals the end of input to all the workers of a stage
+         * @param stageIdx index of stage
+         */
+        private void endStage(int stageIdx) {
+            BlockingQueue<Envelope> queue = queues.get(stageIdx);
+            for (int i = 0; i < config.stages.get(stageIdx).workers; i++) {
+                putUninterruptibly(queue, END);
+            }
+        }
+
+        private void work(int stageIdx) {
+            StageDef def = config.stages.get(stageIdx);
+            StageStats stageStats = stats.stages.get(stageIdx);
+            BlockingQueue<Envelope> in = queues.get(stageIdx);
+            BlockingQueue<Envelope> out = def.terminal ? null : queues.get(stageIdx + 1);
+            Worker worker = null;
+            for (Worker w : watched) {
+                if (w.thread == Thread.currentThread()) {
+                    worker = w;
+                }
+            }
+            PriorityQueue<Envelope> pending = config.ordered && def.terminal
+                    ? new PriorityQueue<>((e1, e2) -> Long.compare(e1.seq, e2.seq))
+                    : null;
+            long nextSeq = 0;
+            try {
+                while (true) {
+                    Envelope env = in.take();
+                    if (env == END) {
+                        break;
+                    }
+                    if (pending != null) {
+                        // put them back in the source order
+                        pending.add(env);
+                        while (!pending.isEmpty() && pending.peek().seq == nextSeq) {
+                            Envelope head = pending.poll();
+                            nextSeq++;
+                            window.release();
+                            process(def, stageStats, worker, head);
+                        }
+                        continue;
+                    }
+                    Object result = process(def, stageStats, worker, env);
+                    if (out != null && (result != null || config.ordered)) {
+                        out.put(new Envelope(env.seq, result));
+                    }
+                }
+                if (pending != null && !pending.isEmpty()) {
+                    LOG.error("{} items were left out of order in {}", pending.size(), def.name);
+                }
+            } catch (InterruptedException e) {
+                LOG.warn("Stage {} interrupted", def.name);
+                Thread.currentThread().interrupt();
+            } finally {
+                if (liveWorkers.get(stageIdx).decrementAndGet() == 0 && out != null) {
+                    endStage(stageIdx + 1);
+                }
+            }
+        }
+
+        private Object process(StageDef def, StageStats stageStats, Worker worker, Envelope env) {
+            if (env.value == null) {
+                return null; // placeholder of a dropped item
+            }
+            stageStats.in.incrementAndGet();
+            DeadlineManager.Deadline deadline = null;
+            if (def.deadlines != null && worker != null) {
+                deadline = def.deadlines.apply(env.value);
+                worker.begin(deadline);
+            }
+            long st = System.nanoTime();
+            Object result = null;
+            Throwable error = null;
+            boolean timedOut = false;
+            try {
+                result = def.step.process(env.value);
+            } catch (Throwable e) {
+                // an Error would kill the worker and lose the item, or stall an ordered pipeline
+                error = e;
+            } finally {
+                if (deadline != null) {
+                    timedOut = worker.end();
+                }
+                stageStats.busyNanos.addAndGet(System.nanoTime() - st);
+            }
+            if (timedOut) {
+                deadline.cancelled();
+                stageStats.timeouts.incrementAndGet();
+                config.listener.onTimeout(def.name, env.value);
+            } else if (error != null) {
+                stageStats.errors.incrementAndGet();
+                config.listener.onError(def.name, env.value, error);
+            } else if (deadline != null) {
+                deadline.finished();
+            }
+            if (error == null && (result != null || def.terminal)) {
+                stageStats.out.incrementAndGet();
+            } else {
+                result = null;
+                config.listener.onDropped(def.name, env.value);
+            }
+            return result;
+        }
+
+        private static void putUninterruptibly(BlockingQueue<Envelope> queue, Envelope env) {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    queue.put(env);
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package edu.usc.cs.ir.cwork.dedup;
+
+import edu.usc.cs.ir.cwork.solr.ContentBean;
+import org.apache.commons.lang.StringUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static edu.usc.cs.ir.cwork.dedup.SimHashTest.words;
+import static org.junit.Assert.*;
+
+public class DeduplicatorTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static ContentBean bean(String id, String text) {
+        ContentBean bean = new ContentBean();
+        bean.setId(id);
+        bean.setContentType("text/html");
+        bean.setContent(text);
+        return bean;
+    }
+
+    @Test
+    public void testExactAndNear() {
+        Deduplicator dedup = new Deduplicator(Deduplicator.Mode.SKIP, 3);
+        String text = words(0, 300);
+        assertFalse(dedup.checkContent("http://a/1", "<p>x</p>".getBytes(StandardCharsets.UTF_8)).isDuplicate());
+        Deduplicator.Verdict raw = dedup.checkContent("http://a/2", "<p>x</p>".getBytes(StandardCharsets.UTF_8));
+        assertEquals(Deduplicator.Kind.EXACT, raw.getKind());
+        assertEquals("http://a/1", raw.getCanonicalId());
+
+        assertFalse(dedup.checkText("http://a/1", text).isDuplicate());
+        assertEquals(Deduplicator.Kind.EXACT, dedup.checkText("http://a/3", " " + text.toUpperCase()).getKind());
+        Deduplicator.Verdict near = dedup.checkText("http://a/4", text + " sessionid 8f3a2c");
+        assertEquals(Deduplicator.Kind.NEAR, near.getKind());
+        assertEquals("http://a/1", near.getCanonicalId());
+        assertFalse(dedup.checkText("http://a/5", words(1000, 1300)).isDuplicate());
+        // too short to tell
+        assertFalse(dedup.checkText("http://a/6", "untitled").isDuplicate());
+        assertFalse(dedup.checkText("http://a/7", "untitled").isDuplicate());
+
+        assertEquals(2, dedup.getNumExact());
+        assertEquals(1, dedup.getNumNear());
+        assertTrue(dedup.getSavedBytes() > 2 * text.length());
+    }
+
+    @Test
+    public void testExactOnly() {
+        Deduplicator dedup = new Deduplicator(Deduplicator.Mode.SKIP, -1);
+        String text = words(0, 300);
+        assertFalse(dedup.checkText("http://a/1", text).isDuplicate());
+        assertFalse(dedup.checkText("http://a/2", text + " sessionid 8f3a2c").isDuplicate());
+        assertTrue(dedup.checkText("http://a/3", text).isDuplicate());
+    }
+
+    @Test
+    public void testModes() {
+        String text = words(0, 100);
+        Deduplicator skip = new Deduplicator(Deduplicator.Mode.SKIP, 3);
+        assertNotNull(skip.dedup(bean("http://a/1", text)));
+        assertNull(skip.dedup(bean("http://a/2", text)));
+
+        Deduplicator link = new Deduplicator(Deduplicator.Mode.LINK, 3);
+        link.dedup(bean("http://a/1", text));
+        ContentBean linked = link.dedup(bean("http://a/2", text));
+        assertEquals("http://a/2", linked.getId());
+        assertEquals("http://a/1", linked.getDuplicateOf());
+        assertEquals("text/html", linked.getContentType());
+        assertNull(linked.getContent());
+    }
+
+    @Test
+    public void testParseFailure() throws Exception {
+        Deduplicator dedup = new Deduplicator(Deduplicator.Mode.SKIP, 3);
+        byte[] content = "<p>x</p>".getBytes(StandardCharsets.UTF_8);
+        String text = words(0, 100);
+        try {
+            dedup.dedup("http://a/1", "text/html", content, () -> {
+                throw new IllegalStateException("parse failed");
+            });
+            fail("the parse error should be thrown");
+        } catch (IllegalStateException e) {
+            assertEquals("parse failed", e.getMessage());
+        }
+        // the copy is parsed and becomes the canonical doc
+        ContentBean bean = dedup.dedup("http://a/2", "text/html", content, () -> bean("http://a/2", text));
+        assertNotNull(bean);
+        assertEquals(text, bean.getContent());
+        assertEquals("http://a/2",
+                dedup.checkContent("http://a/3", content.clone()).getCanonicalId());
+        assertEquals(1, dedup.getNumExact());
+    }
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        String text = words(0, 300);
+        Deduplicator first = new Deduplicator(Deduplicator.Mode.SKIP, 3);
+        first.checkContent("http://a/1", new byte[]{1, 2, 3});
+        first.checkText("http://a/1", text);
+        File file = tmp.newFile("fingerprints");
+        first.save(file);
+
+        Deduplicator second = new Deduplicator(Deduplicator.Mode.SKIP, 3);
+        second.load(file);
+        assertEquals("http://a/1", second.checkContent("http://b/1", new byte[]{1, 2, 3}).getCanonicalId());
+        assertEquals("http://a/1", second.checkText("http://b/2", text).getCanonicalId());
+        assertEquals(Deduplicator.Kind.NEAR, second.checkText("http://b/3", text + " sessionid 8f3a2c").getKind());
+    }
+
+    @Test
+    public void testFailedSave() throws Exception {
+        Deduplicator first = new Deduplicator(Deduplicator.Mode.SKIP, 3);
+        first.checkContent("http://a/1", new byte[]{1, 2, 3});
+        File file = tmp.newFile("fingerprints");
+        first.save(file);
+
+        // an id too long for the format fails the save half way
+        first.checkContent(StringUtils.repeat("x", 70000), new byte[]{4, 5, 6});
+        try {
+            first.save(file);
+            fail("the save should fail");
+        } catch (IOException e) {
+            // expected
+        }
+        Deduplicator second = new Deduplicator(Deduplicator.Mode.SKIP, 3);
+        second.load(file);
+        assertEquals("http://a/1", second.checkContent("http://b/1", new byte[]{1, 2, 3}).getCanonicalId());
+        assertFalse(second.checkContent("http://b/2", new byte[]{4, 5, 6}).isDuplicate());
+    }
+}
@@ -0,0 +1,33 @@
+package edu.usc.cs.ir.cwork.dedup;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class SimHashTest {
+
+    static String words(int from, int to) {
+        StringBuilder text = new StringBuilder();
+        for (int i = from; i < to; i++) {
+            text.append("word").append(i).append(' ');
+        }
+        return text.toString();
+    }
+
+    @Test
+    public void testTokenize() {
+        assertEquals(Arrays.asList("hello", "world", "42"), SimHash.tokenize(" Hello, WORLD - 42!"));
+    }
+
+    @Test
+    public void testDistance() {
+        String text = words(0, 300);
+        assertEquals(0, SimHash.distance(SimHash.hash(text), SimHash.hash(text.toUpperCase())));
+        // a session id in a page of 300 words
+        long near = SimHash.hash(text + " sessionid 8f3a2c");
+        assertTrue(SimHash.distance(SimHash.hash(text), near) <= 3);
+        assertTrue(SimHash.distance(SimHash.hash(text), SimHash.hash(words(1000, 1300))) > 10);
+    }
+}
@@ -0,0 +1,53 @@
+package edu.usc.cs.ir.cwork.es;
+
+import edu.usc.cs.ir.cwork.Context;
+import edu.usc.cs.ir.cwork.dedup.Deduplicator;
+import edu.usc.cs.ir.cwork.nutch.NutchDumpPathBuilder;
+import edu.usc.cs.ir.cwork.tika.Parser;
+import org.apache.nutch.metadata.Metadata;
+import org.apache.nutch.protocol.Content;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class EsIndexerTest {
+
+    private static final String HTML = "<html><head><title>Rifles</title></head><body>" +
+            "<p>Used rifles and shotguns for sale, with the scopes and the cases, shipped to" +
+            " any state where the law allows it, call us for the prices of the other models</p>" +
+            "</body></html>";
+
+    private static Content content(String url) {
+        return new Content(url, url, HTML.getBytes(StandardCharsets.UTF_8), "text/html",
+                new Metadata(), Context.getInstance().getConf());
+    }
+
+    @Test
+    public void testLinkDuplicates() throws Exception {
+        NutchDumpPathBuilder pathMapper = new NutchDumpPathBuilder("/data/dump");
+        Parser parser = Parser.getPhase1Parser();
+        Deduplicator dedup = new Deduplicator(Deduplicator.Mode.LINK, 3);
+        String url1 = "http://example.com/rifles";
+        String url2 = "http://mirror.example.com/rifles";
+
+        JSONObject first = EsIndexer.toCDRDoc(content(url1), pathMapper, parser, dedup);
+        String id1 = pathMapper.apply(new URL(url1));
+        assertEquals(id1, first.get("obj_id"));
+        assertFalse(first.has("duplicate_of"));
+
+        // the same bytes, linked before parsing
+        JSONObject link = EsIndexer.toCDRDoc(content(url2), pathMapper, parser, dedup);
+        String id2 = pathMapper.apply(new URL(url2));
+        assertEquals(id2, link.get("obj_id"));
+        assertEquals(id2, link.get("obj_stored_url"));
+        assertEquals(url2, link.get("obj_original_url"));
+        assertEquals(url2, link.get("url"));
+        // names the id of the canonical doc in the index
+        assertEquals(id1, link.get("duplicate_of"));
+        assertFalse(link.has("extracted_text"));
+    }
+}
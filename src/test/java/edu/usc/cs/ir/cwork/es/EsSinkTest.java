@@ -0,0 +1,36 @@
+package edu.usc.cs.ir.cwork.es;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class EsSinkTest {
+
+    @Test
+    public void testGetFailedItems() {
+        JsonObject response = new JsonParser().parse("{\"took\": 3, \"errors\": true, \"items\": [" +
+                "{\"index\": {\"_id\": \"a\", \"status\": 201}}," +
+                "{\"index\": {\"_id\": \"b\", \"status\": 400, \"error\": \"MapperParsingException\"}}," +
+                "{\"index\": {\"_id\": \"c\", \"status\": 200}}," +
+                "{\"index\": {\"_id\": \"d\", \"status\": 429," +
+                " \"error\": \"EsRejectedExecutionException\"}}]}").getAsJsonObject();
+        Map<Integer, Integer> failed = EsSink.getFailedItems(response);
+        assertEquals(2, failed.size());
+        assertEquals(400, (int) failed.get(1));
+        assertEquals(429, (int) failed.get(3));
+        assertFalse(EsSink.isTransientStatus(failed.get(1)));
+        assertTrue(EsSink.isTransientStatus(failed.get(3)));
+        assertTrue(EsSink.isTransientStatus(503));
+    }
+
+    @Test
+    public void testNoFailures() {
+        JsonObject response = new JsonParser().parse("{\"errors\": false, \"items\": [" +
+                "{\"index\": {\"_id\": \"a\", \"status\": 201}}]}").getAsJsonObject();
+        assertTrue(EsSink.getFailedItems(response).isEmpty());
+    }
+}
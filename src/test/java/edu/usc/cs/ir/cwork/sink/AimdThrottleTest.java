@@ -0,0 +1,101 @@
+package edu.usc.cs.ir.cwork.sink;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class AimdThrottleTest {
+
+    @Test
+    public void testFailureHalvesLimitOncePerWindow() {
+        AimdThrottle throttle = new AimdThrottle(1, 8, 1000);
+        throttle.onFailure();
+        assertEquals(4, throttle.getLimit());
+        assertEquals(AimdThrottle.MIN_DELAY, throttle.getDelay());
+        // the batches in flight were sent under the old limit
+        throttle.onFailure();
+        assertEquals(4, throttle.getLimit());
+        for (int i = 0; i < 4; i++) {
+            throttle.onSuccess(10, 10);
+        }
+        throttle.onFailure();
+        assertEquals(2, throttle.getLimit());
+        assertEquals(2, throttle.getNumDecreases());
+    }
+
+    @Test
+    public void testLimitsAreBounded() {
+        AimdThrottle throttle = new AimdThrottle(2, 4, 300);
+        for (int i = 0; i < 10; i++) {
+            for (int j = 0; j < 2; j++) {
+                throttle.onSuccess(10, 10);
+            }
+            throttle.onFailure();
+        }
+        assertEquals(2, throttle.getLimit());
+        assertEquals(300, throttle.getDelay());
+    }
+
+    @Test
+    public void testRecovery() {
+        AimdThrottle throttle = new AimdThrottle(1, 4, 1000);
+        throttle.onFailure();
+        throttle.onSuccess(10, 10);
+        throttle.onSuccess(10, 10);
+        throttle.onFailure();
+        assertEquals(1, throttle.getLimit());
+        assertEquals(200, throttle.getDelay());
+        for (int i = 0; i < 20; i++) {
+            throttle.onSuccess(10, 10);
+        }
+        assertEquals(4, throttle.getLimit());
+        assertEquals(0, throttle.getDelay());
+    }
+
+    @Test
+    public void testSlowdownDecreases() {
+        AimdThrottle throttle = new AimdThrottle(1, 8, 1000);
+        for (int i = 0; i < 10; i++) {
+            throttle.onSuccess(100, 100);
+        }
+        assertEquals(0, throttle.getNumDecreases());
+        for (int i = 0; i < 10; i++) {
+            throttle.onSuccess(100, 2000);
+        }
+        assertTrue(throttle.getNumDecreases() > 0);
+        assertTrue(throttle.getLimit() < 8);
+    }
+
+    @Test
+    public void testFixedLimit() {
+        AimdThrottle throttle = new AimdThrottle(3);
+        throttle.onFailure();
+        throttle.onSuccess(10, 100000);
+        assertEquals(3, throttle.getLimit());
+        assertEquals(0, throttle.getDelay());
+    }
+
+    @Test
+    public void testAcquireBlocksAtLimit() throws Exception {
+        AimdThrottle throttle = new AimdThrottle(2);
+        throttle.acquire();
+        throttle.acquire();
+        CountDownLatch acquired = new CountDownLatch(1);
+        Thread thread = new Thread(() -> {
+            try {
+                throttle.acquire();
+                acquired.countDown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        thread.start();
+        assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+        throttle.release();
+        assertTrue(acquired.await(1, TimeUnit.SECONDS));
+        thread.join();
+    }
+}
@@ -0,0 +1,126 @@
+package edu.usc.cs.ir.cwork.sink;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class AsyncBatchSinkTest {
+
+    private static class ListSink extends AsyncBatchSink<Integer> {
+
+        final List<Integer> received = Collections.synchronizedList(new ArrayList<>());
+        final AtomicInteger active = new AtomicInteger();
+        final AtomicInteger maxActive = new AtomicInteger();
+        boolean closed;
+
+        final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+
+        ListSink(int batchSize, int maxInFlight, BatchListener<Integer> listener) {
+            super("test", batchSize, maxInFlight, listener);
+        }
+
+        ListSink(BatchPolicy policy) {
+            // the doc value is its size
+            super("test", policy, doc -> doc, 1, null);
+        }
+
+        @Override
+        protected void send(List<Integer> batch) throws Exception {
+            int n = active.incrementAndGet();
+            maxActive.accumulateAndGet(n, Math::max);
+            try {
+                Thread.sleep(5);
+                if (batch.contains(-1)) {
+                    throw new IllegalStateException("bad doc");
+                }
+                received.addAll(batch);
+                batchSizes.add(batch.size());
+            } finally {
+                active.decrementAndGet();
+            }
+        }
+
+        @Override
+        protected void onClose() {
+            closed = true;
+        }
+    }
+
+    @Test
+    public void testAllDocsArePosted() throws Exception {
+        ListSink sink = new ListSink(10, 3, null);
+        for (int i = 0; i < 105; i++) {
+            sink.add(i);
+        }
+        sink.close();
+        assertTrue(sink.closed);
+        assertEquals(105, sink.received.size());
+        assertEquals(105, sink.getNumDocs());
+        assertTrue(sink.maxActive.get() <= 3);
+    }
+
+    @Test
+    public void testFlushWaitsForBatches() throws Exception {
+        try (ListSink sink = new ListSink(4, 2, null)) {
+            for (int i = 0; i < 10; i++) {
+                sink.add(i);
+            }
+            sink.flush();
+            assertEquals(10, sink.received.size());
+        }
+    }
+
+    @Test
+    public void testBadDocIsIsolated() throws Exception {
+        List<Integer> failed = Collections.synchronizedList(new ArrayList<>());
+        ListSink sink = new ListSink(5, 2, (batch, e) -> failed.addAll(batch));
+        for (int i = 0; i < 20; i++) {
+            sink.add(i == 7 ? -1 : i);
+        }
+        sink.close();
+        assertEquals(Collections.singletonList(-1), failed);
+        assertEquals(19, sink.getNumDocs());
+        assertEquals(1, sink.getNumFailedDocs());
+        assertEquals(2, sink.getRetrier().getNumSplits());
+    }
+
+    @Test
+    public void testBatchByBytes() throws Exception {
+        ListSink sink = new ListSink(new BatchPolicy(100, 1000, 0));
+        for (int i = 0; i < 10; i++) {
+            sink.add(300);
+        }
+        sink.add(5000);
+        sink.add(10);
+        sink.close();
+        // 3 docs fit in a batch, the large doc goes alone
+        assertEquals(Arrays.asList(3, 3, 3, 1, 1, 1), sink.batchSizes);
+        BatchStats stats = sink.getBatchStats();
+        assertEquals(6, stats.getCount());
+        assertEquals(5000, stats.getMaxBytes());
+        assertEquals(5, stats.getTriggerCount(BatchPolicy.Trigger.BYTES));
+        assertEquals(1, stats.getTriggerCount(BatchPolicy.Trigger.FLUSH));
+        assertEquals(1, stats.docsPercentile(0.5));
+        assertEquals(3, stats.docsPercentile(0.9));
+    }
+
+    @Test
+    public void testBatchByTime() throws Exception {
+        try (ListSink sink = new ListSink(new BatchPolicy(100, 0, 50))) {
+            sink.add(1);
+            sink.add(2);
+            long st = System.currentTimeMillis();
+            while (sink.received.size() < 2 && System.currentTimeMillis() - st < 5000) {
+                Thread.sleep(10);
+            }
+            assertEquals(2, sink.received.size());
+            assertEquals(1, sink.getBatchStats().getTriggerCount(BatchPolicy.Trigger.TIME));
+        }
+    }
+}
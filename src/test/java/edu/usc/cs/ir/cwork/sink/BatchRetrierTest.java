@@ -0,0 +1,104 @@
+package edu.usc.cs.ir.cwork.sink;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.*;
+
+public class BatchRetrierTest {
+
+    private final List<Integer> sent = new ArrayList<>();
+    private final List<Integer> failed = new ArrayList<>();
+    private final BatchListener<Integer> listener = new BatchListener<Integer>() {
+        @Override
+        public void onSuccess(List<Integer> batch, long millis) {
+            sent.addAll(batch);
+        }
+
+        @Override
+        public void onFailure(List<Integer> batch, Exception e) {
+            failed.addAll(batch);
+        }
+    };
+
+    private static List<Integer> range(int n) {
+        return IntStream.range(0, n).boxed().collect(Collectors.toList());
+    }
+
+    @Test
+    public void testBisection() throws Exception {
+        BatchRetrier<Integer> retrier = new BatchRetrier<>(batch -> {
+            if (batch.contains(377)) {
+                throw new IllegalArgumentException("bad doc");
+            }
+        }, BatchRetrier::isIOError);
+        retrier.send(range(1000), listener);
+        assertEquals(Collections.singletonList(377), failed);
+        assertEquals(999, sent.size());
+        // two requests per level of the split
+        assertTrue(retrier.getNumRequests() <= 2 * 11);
+        assertEquals(0, retrier.getNumRetries());
+    }
+
+    @Test
+    public void testTransientErrorsAreRetried() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        BatchRetrier<Integer> retrier = new BatchRetrier<>(batch -> {
+            if (calls.incrementAndGet() <= 2) {
+                throw new IOException("connection refused");
+            }
+        }, BatchRetrier::isIOError);
+        retrier.setBackoff(3, 1, 10);
+        retrier.send(range(10), listener);
+        assertEquals(10, sent.size());
+        assertEquals(2, retrier.getNumRetries());
+        assertEquals(0, retrier.getNumSplits());
+    }
+
+    @Test
+    public void testTransientErrorsAreNotSplit() throws Exception {
+        BatchRetrier<Integer> retrier = new BatchRetrier<>(batch -> {
+            throw new RuntimeException(new IOException("connection refused"));
+        }, BatchRetrier::isIOError);
+        retrier.setBackoff(2, 1, 10);
+        retrier.send(range(10), listener);
+        assertEquals(10, failed.size());
+        assertEquals(3, retrier.getNumRequests());
+        assertEquals(0, retrier.getNumSplits());
+    }
+
+    @Test
+    public void testPartialFailureRetriesItems() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        BatchRetrier<Integer> retrier = new BatchRetrier<>(batch -> {
+            calls.incrementAndGet();
+            Set<Integer> failed = new HashSet<>();
+            for (int i = 0; i < batch.size(); i++) {
+                // 7 is bad, 3 is rejected by a busy node the first time only
+                if (batch.get(i) == 7 || (batch.get(i) == 3 && batch.size() > 1)) {
+                    failed.add(i);
+                }
+            }
+            if (!failed.isEmpty()) {
+                throw new PartialBatchException(failed, false, "failed items");
+            }
+        }, BatchRetrier::isIOError);
+        retrier.send(range(10), listener);
+        assertEquals(Collections.singletonList(7), failed);
+        assertEquals(9, sent.size());
+        assertTrue(sent.contains(3));
+        // the bulk and one request per failed item
+        assertEquals(3, calls.get());
+        assertEquals(2, retrier.getNumItemRetries());
+        assertEquals(0, retrier.getNumSplits());
+    }
+}
@@ -0,0 +1,46 @@
+package edu.usc.cs.ir.cwork.sink;
+
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DeadLetterStoreTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testAppendAndRead() throws Exception {
+        File file = new File(tmp.getRoot(), "dlq/rejected.jsonl");
+        try (DeadLetterStore store = new DeadLetterStore(file, "run1")) {
+            store.write("solr", Arrays.asList(new JSONObject().put("id", "a"),
+                    new JSONObject().put("id", "b")), new IllegalArgumentException("bad field"));
+            assertEquals(2, store.getCount());
+        }
+        // appends to the existing records
+        try (DeadLetterStore store = new DeadLetterStore(file, "run2")) {
+            store.write("elastic", Arrays.asList(new JSONObject().put("id", "c")), new Exception("x"));
+        }
+        List<JSONObject> records = new ArrayList<>();
+        Iterator<JSONObject> it = DeadLetterStore.read(file);
+        while (it.hasNext()) {
+            records.add(it.next());
+        }
+        assertEquals(3, records.size());
+        JSONObject first = records.get(0);
+        assertEquals("solr", first.getString(DeadLetterStore.SINK));
+        assertEquals("run1", first.getString(DeadLetterStore.SOURCE));
+        assertTrue(first.getString(DeadLetterStore.ERROR).contains("bad field"));
+        assertEquals("a", first.getJSONObject(DeadLetterStore.DOC).getString("id"));
+        assertEquals("run2", records.get(2).getString(DeadLetterStore.SOURCE));
+    }
+}
@@ -0,0 +1,89 @@
+package edu.usc.cs.ir.cwork.sink;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FanOutSinkTest {
+
+    /**
+     * Keeps the docs in memory, fails on the docs given
+     */
+    private static class ListSink<T> implements DocSink<T> {
+        final List<T> docs = new ArrayList<>();
+        final List<T> bad;
+        boolean closed = false;
+
+        @SafeVarargs
+        ListSink(T... bad) {
+            this.bad = Arrays.asList(bad);
+        }
+
+        @Override
+        public void add(T doc) throws IOException {
+            if (bad.contains(doc)) {
+                throw new IOException("bad doc " + doc);
+            }
+            docs.add(doc);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            if (!bad.isEmpty()) {
+                throw new IOException("close failed");
+            }
+        }
+    }
+
+    @Test
+    public void testEachSinkGetsItsForm() throws Exception {
+        ListSink<String> strings = new ListSink<>();
+        ListSink<Integer> lengths = new ListSink<>();
+        try (FanOutSink<String> sink = new FanOutSink<>()) {
+            sink.to("strings", strings, String::toUpperCase)
+                    .to("lengths", lengths, s -> s.isEmpty() ? null : s.length());
+            for (String s : Arrays.asList("a", "bb", "", "ccc")) {
+                sink.add(s);
+            }
+        }
+        assertEquals(Arrays.asList("A", "BB", "", "CCC"), strings.docs);
+        assertEquals(Arrays.asList(1, 2, 3), lengths.docs);
+        assertTrue(strings.closed && lengths.closed);
+    }
+
+    @Test
+    public void testFailingSinkDoesntStopOthers() throws Exception {
+        ListSink<String> failing = new ListSink<>("b");
+        ListSink<String> healthy = new ListSink<>();
+        FanOutSink<String> sink = new FanOutSink<String>()
+                .to("failing", failing, s -> s)
+                .to("healthy", healthy, s -> s);
+        sink.add("a");
+        try {
+            sink.add("b");
+            fail("b is bad");
+        } catch (IOException e) {
+            assertEquals("bad doc b", e.getMessage());
+        }
+        sink.add("c");
+        assertEquals(Arrays.asList("a", "c"), failing.docs);
+        assertEquals(Arrays.asList("a", "b", "c"), healthy.docs);
+        try {
+            sink.close();
+            fail("close of failing sink");
+        } catch (IOException e) {
+            assertEquals("close failed", e.getMessage());
+        }
+        assertTrue(healthy.closed);
+    }
+}
@@ -0,0 +1,117 @@
+package edu.usc.cs.ir.cwork.sink;
+
+import org.apache.commons.io.IOUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+public class ShardedJsonLinesSinkTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static JSONObject doc(int i) {
+        JSONObject doc = new JSONObject();
+        doc.put("id", "doc-" + i);
+        doc.put("content", "some text of doc " + i);
+        return doc;
+    }
+
+    @Test
+    public void testShardsRollAndManifest() throws Exception {
+        File dir = new File(tmp.getRoot(), "out");
+        try (ShardedJsonLinesSink sink = new ShardedJsonLinesSink(dir, 3, 2000, true)) {
+            for (int i = 0; i < 1000; i++) {
+                sink.add(doc(i));
+            }
+            sink.flush();
+            assertFalse(new File(dir, ShardedJsonLinesSink.MANIFEST).exists());
+        }
+        JSONObject manifest = ShardedJsonLinesSink.readManifest(dir);
+        assertEquals(1000, manifest.getLong("docs"));
+        assertEquals(3, manifest.getInt("shards"));
+        JSONArray files = manifest.getJSONArray("files");
+        assertTrue(files.length() > 3);
+
+        Set<String> ids = new HashSet<>();
+        Set<Integer> shards = new HashSet<>();
+        long docs = 0;
+        for (int i = 0; i < files.length(); i++) {
+            JSONObject entry = files.getJSONObject(i);
+            File file = new File(dir, entry.getString("file"));
+            assertTrue(file.getName().endsWith(".jsonl.gz"));
+            assertEquals(file.length(), entry.getLong("size"));
+            shards.add(entry.getInt("shard"));
+            try (InputStream in = new GZIPInputStream(new FileInputStream(file))) {
+                byte[] bytes = IOUtils.toByteArray(in);
+                assertEquals(entry.getLong("bytes"), bytes.length);
+                String[] lines = new String(bytes, StandardCharsets.UTF_8).split("\n");
+                assertEquals(entry.getLong("docs"), lines.length);
+                for (String line : lines) {
+                    ids.add(new JSONObject(line).getString("id"));
+                }
+            }
+            docs += entry.getLong("docs");
+        }
+        assertEquals(1000, docs);
+        assertEquals(1000, ids.size());
+        assertEquals(3, shards.size());
+    }
+
+    @Test
+    public void testPlainFilesWithoutRolling() throws Exception {
+        File dir = new File(tmp.getRoot(), "out");
+        try (ShardedJsonLinesSink sink = new ShardedJsonLinesSink(dir, 2, 0, false)) {
+            for (int i = 0; i < 10; i++) {
+                sink.add(doc(i));
+            }
+        }
+        JSONArray files = ShardedJsonLinesSink.readManifest(dir).getJSONArray("files");
+        assertEquals(2, files.length());
+        for (int i = 0; i < files.length(); i++) {
+            assertEquals(5, files.getJSONObject(i).getLong("docs"));
+            assertTrue(files.getJSONObject(i).getString("file").endsWith(".jsonl"));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testExistingOutput() throws Exception {
+        File dir = new File(tmp.getRoot(), "out");
+        new ShardedJsonLinesSink(dir, 1, 0, false).close();
+        new ShardedJsonLinesSink(dir, 1, 0, false);
+    }
+
+    @Test(timeout = 10 * 1000)
+    public void testFlushAfterError() throws Exception {
+        File dir = new File(tmp.getRoot(), "out");
+        // the first file of shard 0 can't be opened
+        assertTrue(new File(dir, "part-00000-00000.jsonl").mkdirs());
+        ShardedJsonLinesSink sink = new ShardedJsonLinesSink(dir, 2, 0, false);
+        sink.add(doc(0));
+        try {
+            sink.flush();
+            fail("the write error should be thrown");
+        } catch (IOException e) {
+            assertNotNull(e.getCause());
+        }
+        try {
+            sink.close();
+            fail("the write error should be thrown");
+        } catch (IOException e) {
+            assertFalse(new File(dir, ShardedJsonLinesSink.MANIFEST).exists());
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package edu.usc.cs.ir.cwork.solr;
+
+import org.apache.solr.common.SolrDocument;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CheckpointTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    /**
+     * Pages of 3 docs, page i is at the cursorMark "mark-i"
+     */
+    private static class Pages implements Iterator<SolrDocument> {
+        private final String prefix;
+        private final int numDocs;
+        private int index;
+        private int last = -1;
+
+        Pages(String prefix, int fromPage, int numDocs) {
+            this.prefix = prefix;
+            this.index = fromPage * 3;
+            this.numDocs = numDocs;
+        }
+
+        Pages(int fromPage, int numDocs) {
+            this("doc-", fromPage, numDocs);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return index < numDocs;
+        }
+
+        @Override
+        public SolrDocument next() {
+            SolrDocument doc = new SolrDocument();
+            doc.setField("id", prefix + index);
+            last = index++;
+            return doc;
+        }
+
+        String position() {
+            return "mark-" + last / 3;
+        }
+    }
+
+    private static List<String> ids(Iterator<SolrDocument> docs, int max) {
+        List<String> ids = new ArrayList<>();
+        while (ids.size() < max && docs.hasNext()) {
+            ids.add((String) docs.next().getFieldValue("id"));
+        }
+        return ids;
+    }
+
+    @Test
+    public void testPositionIsOldestPendingPage() throws IOException {
+        File file = new File(tmp.getRoot(), "checkpoint.json");
+        Checkpoint checkpoint = new Checkpoint(file, "*:*", null);
+        Pages pages = new Pages(0, 10);
+        Iterator<SolrDocument> docs = checkpoint.track(pages, () -> Checkpoint.QUERY_STREAM, pages::position);
+        assertEquals(8, ids(docs, 8).size());
+
+        // doc-1 of the first page is still in flight
+        checkpoint.acked(Arrays.asList("doc-0", "doc-2", "doc-3", "doc-4"));
+        checkpoint.dropped("doc-5");
+        checkpoint.save();
+        assertEquals("mark-0", checkpoint.getPosition(Checkpoint.QUERY_STREAM));
+
+        checkpoint.failed(Collections.singletonList("doc-1"));
+        checkpoint.acked(Arrays.asList("doc-7"));
+        checkpoint.save();
+        // page 1 is done, doc-6 of page 2 is not
+        assertEquals("mark-2", checkpoint.getPosition(Checkpoint.QUERY_STREAM));
+
+        Checkpoint loaded = Checkpoint.load(file);
+        assertEquals("mark-2", loaded.getPosition(Checkpoint.QUERY_STREAM));
+        assertEquals(5, loaded.getAcked());
+        assertEquals(1, loaded.getFailed());
+        assertEquals(1, loaded.getDropped());
+        assertFalse(loaded.isComplete());
+
+        // the resumed run reads from page 2 and skips doc-7
+        Pages resumed = new Pages(2, 10);
+        List<String> rest = ids(loaded.track(resumed, () -> Checkpoint.QUERY_STREAM, resumed::position), 100);
+        assertEquals(Arrays.asList("doc-6", "doc-8", "doc-9"), rest);
+    }
+
+    @Test
+    public void testSkippedIdsSurviveAnotherCrash() throws IOException {
+        File file = new File(tmp.getRoot(), "checkpoint.json");
+        Checkpoint checkpoint = new Checkpoint(file, "*:*", null);
+        Pages pages = new Pages(0, 6);
+        ids(checkpoint.track(pages, () -> Checkpoint.QUERY_STREAM, pages::position), 6);
+        checkpoint.acked(Arrays.asList("doc-0", "doc-2", "doc-5"));
+        checkpoint.save();
+
+        // the second run saves before it reads the page having doc-5
+        Checkpoint second = Checkpoint.load(file);
+        Pages resumed = new Pages(0, 6);
+        assertEquals(Collections.singletonList("doc-1"),
+                ids(second.track(resumed, () -> Checkpoint.QUERY_STREAM, resumed::position), 1));
+        second.acked(Collections.singletonList("doc-1"));
+        second.save();
+
+        Checkpoint third = Checkpoint.load(file);
+        Pages again = new Pages(0, 6);
+        assertEquals(Arrays.asList("doc-3", "doc-4"),
+                ids(third.track(again, () -> Checkpoint.QUERY_STREAM, again::position), 100));
+    }
+
+    @Test
+    public void testStreamsMoveIndependently() throws IOException {
+        Checkpoint checkpoint = new Checkpoint(new File(tmp.getRoot(), "checkpoint.json"), "*:*", "shards:map");
+        Pages a = new Pages("a-", 0, 6);
+        Pages b = new Pages("b-", 0, 6);
+        ids(checkpoint.track(a, () -> "a", a::position), 6);
+        ids(checkpoint.track(b, () -> "b", b::position), 6);
+        checkpoint.acked(Arrays.asList("a-0", "a-1", "a-2", "b-1", "b-2", "b-3"));
+        checkpoint.save();
+        assertEquals("mark-1", checkpoint.getPositions().get("a"));
+        assertEquals("mark-0", checkpoint.getPositions().get("b"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testVerifyQuery() throws IOException {
+        File file = new File(tmp.getRoot(), "checkpoint.json");
+        new Checkpoint(file, "*:*", null).save();
+        Checkpoint.load(file).verify("type:html", null);
+    }
+}
@@ -0,0 +1,71 @@
+package edu.usc.cs.ir.cwork.solr;
+
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.impl.HttpSolrServer;
+import org.apache.solr.common.SolrInputDocument;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Indexes the same synthetic documents into a running solr under each {@link CommitPolicy}
+ * and reports the throughput, the number of commits and the time taken by the final commit.
+ * The documents are deleted after each run. Not a unit test, run it as a main class against
+ * a scratch core:
+ * <pre>
+ *   java -cp target/classes:target/test-classes:... \
+ *      edu.usc.cs.ir.cwork.solr.CommitPolicyBenchmark solrUrl [numDocs] [batch]
+ * </pre>
+ */
+public class CommitPolicyBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: CommitPolicyBenchmark solrUrl [numDocs] [batch]");
+            return;
+        }
+        String solrUrl = args[0];
+        int numDocs = args.length > 1 ? Integer.parseInt(args[1]) : 50000;
+        int batch = args.length > 2 ? Integer.parseInt(args[2]) : 500;
+        List<SolrInputDocument> docs = UpdateTransportBenchmark.createDocs(numDocs, 2000);
+        for (SolrInputDocument doc : docs) {
+            doc.setField("id", "commit-benchmark-" + doc.getFieldValue("id"));
+        }
+        List<CommitPolicy> policies = Arrays.asList(
+                new CommitPolicy(CommitPolicy.Mode.NONE, -1, 0, 0),
+                CommitPolicy.atEnd(),
+                new CommitPolicy(CommitPolicy.Mode.WITHIN, 10 * 1000, 0, 0),
+                new CommitPolicy(CommitPolicy.Mode.SOFT, -1, 0, 5 * 1000),
+                new CommitPolicy(CommitPolicy.Mode.HARD, -1, numDocs / 10, 0));
+
+        System.out.printf("%-40s %10s %10s %8s %12s%n", "policy", "millis", "docs/s", "commits", "final(ms)");
+        for (CommitPolicy policy : policies) {
+            HttpSolrServer solr = new HttpSolrServer(solrUrl);
+            try {
+                long st = System.currentTimeMillis();
+                SolrSink sink = new SolrSink(solr, batch, 2, null);
+                sink.setCommitOnClose(false);
+                sink.setCommitPolicy(policy);
+                for (SolrInputDocument doc : docs) {
+                    sink.add(doc);
+                }
+                sink.close();
+                long indexMillis = System.currentTimeMillis() - st;
+                long commitSt = System.currentTimeMillis();
+                policy.onClose(solr);
+                long commitMillis = System.currentTimeMillis() - commitSt;
+                long millis = Math.max(1, indexMillis + commitMillis);
+                System.out.printf("%-40s %10d %10.0f %8d %12d%n", policy, millis,
+                        numDocs * 1000.0 / millis, policy.getNumCommits(), commitMillis);
+            } finally {
+                cleanUp(solr);
+                solr.shutdown();
+            }
+        }
+    }
+
+    private static void cleanUp(SolrServer solr) throws Exception {
+        solr.deleteByQuery("id:commit-benchmark-*");
+        solr.commit();
+    }
+}
@@ -0,0 +1,101 @@
+package edu.usc.cs.ir.cwork.solr;
+
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.UpdateParams;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CommitPolicyTest {
+
+    /**
+     * Records the commit within of the adds, and the kind of each commit
+     */
+    private static class RecordingServer extends SolrServer {
+
+        final List<Integer> commitWithins = Collections.synchronizedList(new ArrayList<>());
+        final List<String> commits = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public NamedList<Object> request(SolrRequest request) {
+            UpdateRequest update = (UpdateRequest) request;
+            if (update.getAction() == UpdateRequest.ACTION.COMMIT) {
+                commits.add(update.getParams().getBool(UpdateParams.SOFT_COMMIT, false) ? "soft" : "hard");
+            } else {
+                commitWithins.add(update.getCommitWithin());
+            }
+            return new NamedList<>();
+        }
+
+        @Override
+        public void shutdown() {
+        }
+    }
+
+    private static RecordingServer index(CommitPolicy policy, int numDocs) throws Exception {
+        RecordingServer solr = new RecordingServer();
+        try (SolrSink sink = new SolrSink(solr, 10, 1, null)) {
+            sink.setCommitPolicy(policy);
+            for (int i = 0; i < numDocs; i++) {
+                SolrInputDocument doc = new SolrInputDocument();
+                doc.setField("id", "doc-" + i);
+                sink.add(doc);
+            }
+        }
+        return solr;
+    }
+
+    @Test
+    public void testAtEnd() throws Exception {
+        RecordingServer solr = index(CommitPolicy.atEnd(), 100);
+        assertEquals(Collections.singletonList("hard"), solr.commits);
+        assertEquals(10, solr.commitWithins.size());
+        assertTrue(solr.commitWithins.stream().allMatch(w -> w == -1));
+    }
+
+    @Test
+    public void testNone() throws Exception {
+        RecordingServer solr = index(new CommitPolicy(CommitPolicy.Mode.NONE, -1, 0, 0), 100);
+        assertTrue(solr.commits.isEmpty());
+    }
+
+    @Test
+    public void testWithin() throws Exception {
+        RecordingServer solr = index(new CommitPolicy(CommitPolicy.Mode.WITHIN, 5000, 0, 0), 100);
+        assertTrue(solr.commitWithins.stream().allMatch(w -> w == 5000));
+        assertEquals(Collections.singletonList("hard"), solr.commits);
+    }
+
+    @Test
+    public void testPeriodicSoftCommits() throws Exception {
+        CommitPolicy policy = new CommitPolicy(CommitPolicy.Mode.SOFT, -1, 30, 0);
+        RecordingServer solr = index(policy, 100);
+        // after 30, 60 and 90 docs, then the final hard commit
+        assertEquals(4, solr.commits.size());
+        assertEquals("soft", solr.commits.get(0));
+        assertEquals("hard", solr.commits.get(3));
+        assertEquals(4, policy.getNumCommits());
+    }
+
+    @Test
+    public void testIsDue() {
+        CommitPolicy policy = new CommitPolicy(CommitPolicy.Mode.HARD, -1, 1000, 60000);
+        assertFalse(policy.isDue(999, 59999));
+        assertTrue(policy.isDue(1000, 0));
+        assertTrue(policy.isDue(1, 60000));
+        assertFalse(CommitPolicy.atEnd().isDue(1000000, 1000000));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPeriodicNeedsLimit() {
+        new CommitPolicy(CommitPolicy.Mode.SOFT, -1, 0, 0);
+    }
+}
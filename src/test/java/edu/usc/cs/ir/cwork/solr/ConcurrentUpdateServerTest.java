@@ -0,0 +1,177 @@
+package edu.usc.cs.ir.cwork.solr;
+
+import edu.usc.cs.ir.cwork.sink.BatchListener;
+import edu.usc.cs.ir.cwork.sink.DeadLetterStore;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.NamedList;
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ConcurrentUpdateServerTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    /**
+     * Records the requests, fails the batches having a doc with id "bad"
+     */
+    private static class StubServer extends SolrServer {
+
+        final List<Object> added = Collections.synchronizedList(new ArrayList<>());
+        final AtomicInteger active = new AtomicInteger();
+        final AtomicInteger maxActive = new AtomicInteger();
+        volatile int addedAtCommit = -1;
+
+        @Override
+        public NamedList<Object> request(SolrRequest request) throws SolrServerException, IOException {
+            UpdateRequest update = (UpdateRequest) request;
+            if (update.getAction() != null) {
+                addedAtCommit = added.size();
+                return new NamedList<>();
+            }
+            maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(5);
+                for (SolrInputDocument doc : update.getDocuments()) {
+                    if ("bad".equals(doc.getFieldValue("id"))) {
+                        throw new SolrServerException("bad doc");
+                    }
+                }
+                for (SolrInputDocument doc : update.getDocuments()) {
+                    added.add(doc.getFieldValue("id"));
+                }
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            } finally {
+                active.decrementAndGet();
+            }
+            return new NamedList<>();
+        }
+
+        @Override
+        public void shutdown() {
+        }
+    }
+
+    private static List<SolrInputDocument> docs(int from, int to) {
+        List<SolrInputDocument> docs = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            SolrInputDocument doc = new SolrInputDocument();
+            doc.setField("id", i == 13 ? "bad" : String.valueOf(i));
+            docs.add(doc);
+        }
+        return docs;
+    }
+
+    @Test
+    public void testCommitWaitsForQueuedUpdates() throws Exception {
+        StubServer stub = new StubServer();
+        List<SolrInputDocument> failed = Collections.synchronizedList(new ArrayList<>());
+        ConcurrentUpdateServer solr = new ConcurrentUpdateServer(stub, 2, 4);
+        solr.setListener((BatchListener<SolrInputDocument>) (batch, e) -> failed.addAll(batch));
+        for (int i = 0; i < 100; i += 10) {
+            solr.add(docs(i, i + 10));
+        }
+        solr.commit();
+        // only the bad doc is isolated from its batch
+        assertEquals(99, stub.addedAtCommit);
+        assertEquals(1, failed.size());
+        assertEquals("bad", failed.get(0).getFieldValue("id"));
+        assertEquals(99, solr.getNumDocs());
+        assertEquals(1, solr.getNumFailedDocs());
+        assertTrue(stub.maxActive.get() <= 4);
+        solr.shutdown();
+    }
+
+    @Test
+    public void testListenerCanPostFromSender() throws Exception {
+        StubServer stub = new StubServer();
+        ConcurrentUpdateServer solr = new ConcurrentUpdateServer(stub, 1, 1);
+        // posts a replacement of the failed doc, from the only sender thread
+        solr.setListener((BatchListener<SolrInputDocument>) (batch, e) -> {
+            try {
+                SolrInputDocument doc = new SolrInputDocument();
+                doc.setField("id", "fixed");
+                solr.add(doc);
+            } catch (Exception e1) {
+                throw new RuntimeException(e1);
+            }
+        });
+        for (int i = 0; i < 50; i += 10) {
+            solr.add(docs(i, i + 10));
+        }
+        solr.commit();
+        assertEquals(50, stub.addedAtCommit);
+        assertTrue(stub.added.contains("fixed"));
+        solr.shutdown();
+    }
+
+    @Test
+    public void testSinkCountsTheSentDocs() throws Exception {
+        StubServer stub = new StubServer();
+        ConcurrentUpdateServer solr = new ConcurrentUpdateServer(stub, 2, 4);
+        AtomicInteger acked = new AtomicInteger();
+        List<SolrInputDocument> failed = Collections.synchronizedList(new ArrayList<>());
+        SolrSink sink = new SolrSinkOptions().newSink(solr, 10, new BatchListener<SolrInputDocument>() {
+            @Override
+            public void onSuccess(List<SolrInputDocument> batch, long millis) {
+                acked.addAndGet(batch.size());
+            }
+
+            @Override
+            public void onFailure(List<SolrInputDocument> batch, Exception e) {
+                failed.addAll(batch);
+            }
+        });
+        for (SolrInputDocument doc : docs(0, 100)) {
+            sink.add(doc);
+        }
+        sink.close();
+        // each doc is counted once, when solr has taken it
+        assertEquals(99, acked.get());
+        assertEquals(1, failed.size());
+        assertEquals(99, sink.getNumDocs());
+        assertEquals(1, sink.getNumFailedDocs());
+        solr.shutdown();
+    }
+
+    @Test
+    public void testFlushWaitsForTheServer() throws Exception {
+        StubServer stub = new StubServer();
+        ConcurrentUpdateServer solr = new ConcurrentUpdateServer(stub, 2, 4);
+        SolrSink sink = new SolrSinkOptions().newSink(solr, 10, null);
+        // nothing waits for the server while closing, but the flush
+        sink.setCommitPolicy(CommitPolicy.none());
+        File file = tmp.newFile("dead-letters.jsonl");
+        sink.setDeadLetters(new DeadLetterStore(file, "test"));
+        for (SolrInputDocument doc : docs(0, 100)) {
+            sink.add(doc);
+        }
+        sink.flush();
+        assertEquals(99, stub.added.size());
+        assertEquals(99, sink.getNumDocs());
+        assertEquals(1, sink.getNumFailedDocs());
+        sink.close();
+        // the late rejection is written before the store is closed
+        Iterator<JSONObject> letters = DeadLetterStore.read(file);
+        assertEquals("bad", letters.next().getJSONObject(DeadLetterStore.DOC).get("id"));
+        assertFalse(letters.hasNext());
+        solr.shutdown();
+    }
+}
@@ -0,0 +1,125 @@
+package edu.usc.cs.ir.cwork.solr;
+
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.impl.HttpSolrServer;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.NamedList;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads synthetic documents from a running solr by start offset and by cursorMark, and reports
+ * the latency of the pages at increasing depths. The latency of start paging grows with the depth,
+ * as solr collects start + rows docs for every page, while the cursorMark stays flat.
+ * The documents are indexed first and deleted at the end. Not a unit test, run it as a main class
+ * against a scratch core:
+ * <pre>
+ *   java -cp target/classes:target/test-classes:... \
+ *      edu.usc.cs.ir.cwork.solr.DeepPagingBenchmark solrUrl [numDocs] [rows]
+ * </pre>
+ */
+public class DeepPagingBenchmark {
+
+    private static final String QUERY = "id:paging-benchmark-*";
+
+    /**
+     * Records the latency of each request
+     */
+    private static class TimingServer extends SolrServer {
+        private final SolrServer delegate;
+        private final List<Long> micros = new ArrayList<>();
+
+        private TimingServer(SolrServer delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public NamedList<Object> request(SolrRequest request) throws SolrServerException, IOException {
+            long st = System.nanoTime();
+            NamedList<Object> response = delegate.request(request);
+            micros.add((System.nanoTime() - st) / 1000);
+            return response;
+        }
+
+        @Override
+        public void shutdown() {
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: DeepPagingBenchmark solrUrl [numDocs] [rows]");
+            return;
+        }
+        String solrUrl = args[0];
+        int numDocs = args.length > 1 ? Integer.parseInt(args[1]) : 500000;
+        int rows = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        HttpSolrServer solr = new HttpSolrServer(solrUrl);
+        try {
+            index(solr, numDocs);
+            List<Long> byStart = read(solr, 0, rows);
+            List<Long> byCursor = read(solr, -1, rows);
+            System.out.printf("%12s %16s %16s%n", "depth", "start(ms/page)", "cursor(ms/page)");
+            int pages = Math.min(byStart.size(), byCursor.size());
+            int step = Math.max(1, pages / 10);
+            for (int page = 0; page < pages; page += step) {
+                System.out.printf("%12d %16.1f %16.1f%n", (long) page * rows,
+                        average(byStart, page, step), average(byCursor, page, step));
+            }
+        } finally {
+            solr.deleteByQuery(QUERY);
+            solr.commit();
+            solr.shutdown();
+        }
+    }
+
+    private static void index(SolrServer solr, int numDocs) throws Exception {
+        List<SolrInputDocument> batch = new ArrayList<>();
+        for (int i = 0; i < numDocs; i++) {
+            SolrInputDocument doc = new SolrInputDocument();
+            doc.setField("id", String.format("paging-benchmark-%09d", i));
+            doc.setField("title", "Page " + i);
+            batch.add(doc);
+            if (batch.size() == 5000) {
+                solr.add(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            solr.add(batch);
+        }
+        solr.commit();
+    }
+
+    /**
+     * Reads all the docs
+     * @param start 0 to page by start offset, -1 by cursorMark
+     * @return latency of each page in micros
+     */
+    private static List<Long> read(SolrServer solr, int start, int rows) {
+        TimingServer timing = new TimingServer(solr);
+        SolrDocIterator docs = start < 0
+                ? SolrDocIterator.withCursor(timing, QUERY, rows, null, "*", "id")
+                : new SolrDocIterator(timing, QUERY, start, rows, null, "id");
+        long count = 0;
+        while (docs.hasNext()) {
+            docs.next();
+            count++;
+        }
+        System.out.printf("%s : %d docs in %d pages%n", start < 0 ? "cursor" : "start", count, timing.micros.size());
+        return timing.micros;
+    }
+
+    private static double average(List<Long> micros, int from, int n) {
+        long sum = 0;
+        int to = Math.min(micros.size(), from + n);
+        for (int i = from; i < to; i++) {
+            sum += micros.get(i);
+        }
+        return sum / 1000.0 / Math.max(1, to - from);
+    }
+}
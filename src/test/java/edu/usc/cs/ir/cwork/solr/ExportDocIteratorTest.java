@@ -0,0 +1,155 @@
+package edu.usc.cs.ir.cwork.solr;
+
+import org.apache.solr.common.SolrDocument;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static org.junit.Assert.*;
+
+public class ExportDocIteratorTest {
+
+    /**
+     * Reads the rest of the response when closed, like the stream of a pooled connection, unless aborted
+     */
+    private static class TrackedStream extends ByteArrayInputStream {
+        boolean closed = false;
+        boolean aborted = false;
+
+        TrackedStream(String json) {
+            super(json.getBytes(StandardCharsets.UTF_8));
+        }
+
+        void abort() {
+            aborted = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!aborted) {
+                skip(available());
+            }
+            closed = true;
+            super.close();
+        }
+
+        int position() {
+            return pos;
+        }
+    }
+
+    private static ExportDocIterator iterator(TrackedStream stream) throws IOException {
+        return new ExportDocIterator(stream, stream::abort);
+    }
+
+    private static String response(int numDocs, String... extraDocs) {
+        StringBuilder json = new StringBuilder("{\"responseHeader\":{\"status\":0,\"params\":{\"q\":\"*:*\"}},")
+                .append("\"response\":{\"numFound\":").append(numDocs + extraDocs.length).append(",\"docs\":[");
+        for (int i = 0; i < numDocs; i++) {
+            json.append(i > 0 ? "," : "").append(String.format("{\"id\":\"doc-%03d\",\"size\":%d}", i, i * 10));
+        }
+        for (String doc : extraDocs) {
+            json.append(json.charAt(json.length() - 1) == '[' ? "" : ",").append(doc);
+        }
+        return json.append("]}}").toString();
+    }
+
+    private static List<String> ids(ExportDocIterator iterator) {
+        List<String> ids = new ArrayList<>();
+        while (iterator.hasNext()) {
+            ids.add((String) iterator.next().getFieldValue("id"));
+        }
+        return ids;
+    }
+
+    @Test
+    public void testReadsAllDocs() throws IOException {
+        TrackedStream stream = new TrackedStream(response(25));
+        ExportDocIterator iterator = iterator(stream);
+        assertEquals(25, iterator.getNumFound());
+        SolrDocument first = iterator.next();
+        assertEquals("doc-000", first.getFieldValue("id"));
+        assertEquals(0L, first.getFieldValue("size"));
+        List<String> rest = ids(iterator);
+        assertEquals(24, rest.size());
+        assertEquals("doc-024", rest.get(23));
+        assertEquals(25, iterator.getCount());
+        assertTrue(stream.closed);
+        assertFalse(stream.aborted);
+        try {
+            iterator.next();
+            fail("Expected NoSuchElementException");
+        } catch (NoSuchElementException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testNoDocs() throws IOException {
+        TrackedStream stream = new TrackedStream(response(0));
+        ExportDocIterator iterator = iterator(stream);
+        assertFalse(iterator.hasNext());
+        assertEquals(0, iterator.getNumFound());
+        assertTrue(stream.closed);
+    }
+
+    @Test
+    public void testLimit() throws IOException {
+        TrackedStream stream = new TrackedStream(response(25));
+        ExportDocIterator iterator = iterator(stream);
+        iterator.setLimit(10);
+        assertEquals(10, ids(iterator).size());
+        assertTrue(stream.closed);
+        assertTrue(stream.aborted);
+    }
+
+    @Test
+    public void testLimitDoesNotReadTheRest() throws IOException {
+        String json = response(10000);
+        TrackedStream stream = new TrackedStream(json);
+        ExportDocIterator iterator = iterator(stream);
+        iterator.setLimit(25);
+        assertEquals(25, ids(iterator).size());
+        assertTrue(stream.closed);
+        // only the buffered part of the response is read
+        assertTrue(stream.position() < json.length() / 4);
+    }
+
+    @Test
+    public void testCloseEarly() throws IOException {
+        TrackedStream stream = new TrackedStream(response(25));
+        ExportDocIterator iterator = iterator(stream);
+        iterator.next();
+        iterator.close();
+        assertTrue(stream.aborted);
+        assertTrue(stream.closed);
+    }
+
+    @Test
+    public void testExceptionInStream() throws IOException {
+        TrackedStream stream = new TrackedStream(response(3, "{\"EXCEPTION\":\"sort field not docValues\"}"));
+        ExportDocIterator iterator = iterator(stream);
+        int count = 0;
+        try {
+            while (iterator.hasNext()) {
+                iterator.next();
+                count++;
+            }
+            fail("Expected the export error");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage().contains("sort field not docValues"));
+        }
+        // the docs before the error are handed over
+        assertEquals(3, count);
+    }
+
+    @Test(expected = IOException.class)
+    public void testExceptionFirst() throws IOException {
+        iterator(new TrackedStream(response(0, "{\"EXCEPTION\":\"no fl\"}")));
+    }
+}
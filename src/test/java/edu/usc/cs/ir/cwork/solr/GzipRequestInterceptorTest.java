@@ -0,0 +1,49 @@
+package edu.usc.cs.ir.cwork.solr;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.protocol.BasicHttpContext;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+public class GzipRequestInterceptorTest {
+
+    @Test
+    public void testGzipsTheBody() throws Exception {
+        String xml = "<add><doc><field name=\"id\">doc-1</field></doc></add>";
+        HttpPost post = new HttpPost("http://localhost:8983/solr/update");
+        post.setEntity(new StringEntity(xml, ContentType.APPLICATION_XML));
+        new GzipRequestInterceptor().process(post, new BasicHttpContext());
+
+        assertEquals("gzip", post.getEntity().getContentEncoding().getValue());
+        assertEquals(ContentType.APPLICATION_XML.toString(), post.getEntity().getContentType().getValue());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        post.getEntity().writeTo(out);
+        String body = IOUtils.toString(new GZIPInputStream(new ByteArrayInputStream(out.toByteArray())),
+                StandardCharsets.UTF_8);
+        assertEquals(xml, body);
+
+        // not gzipped twice
+        new GzipRequestInterceptor().process(post, new BasicHttpContext());
+        out.reset();
+        post.getEntity().writeTo(out);
+        assertEquals(xml, IOUtils.toString(new GZIPInputStream(new ByteArrayInputStream(out.toByteArray())),
+                StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testNoBody() throws Exception {
+        HttpGet get = new HttpGet("http://localhost:8983/solr/select?q=*:*");
+        new GzipRequestInterceptor().process(get, new BasicHttpContext());
+        assertNull(get.getFirstHeader("Content-Encoding"));
+    }
+}
@@ -0,0 +1,184 @@
+package edu.usc.cs.ir.cwork.solr;
+
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.CursorMarkParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class PartitionedDocIteratorTest {
+
+    /**
+     * Serves the docs of the bucket in the filter query by cursorMark, which is the last id of the page
+     */
+    private static class BucketServer extends SolrServer {
+
+        final int numDocs;
+        final int numBuckets;
+        volatile String failingBucket;
+
+        BucketServer(int numDocs, int numBuckets) {
+            this.numDocs = numDocs;
+            this.numBuckets = numBuckets;
+        }
+
+        static String id(int i) {
+            return String.format("doc-%05d", i);
+        }
+
+        @Override
+        public NamedList<Object> request(SolrRequest request) throws SolrServerException {
+            SolrParams params = request.getParams();
+            String fq = params.get("fq");
+            if (fq.equals(failingBucket)) {
+                throw new SolrServerException("shard is down");
+            }
+            int bucket = Integer.parseInt(fq.substring("bucket:".length()));
+            List<String> ids = new ArrayList<>();
+            for (int i = bucket; i < numDocs; i += numBuckets) {
+                ids.add(id(i));
+            }
+            String cursor = params.get(CursorMarkParams.CURSOR_MARK_PARAM);
+            int start = CursorMarkParams.CURSOR_MARK_START.equals(cursor) ? 0 : ids.indexOf(cursor) + 1;
+            SolrDocumentList page = new SolrDocumentList();
+            page.setNumFound(ids.size());
+            for (int i = start; i < Math.min(ids.size(), start + params.getInt("rows")); i++) {
+                SolrDocument doc = new SolrDocument();
+                doc.setField("id", ids.get(i));
+                page.add(doc);
+            }
+            NamedList<Object> response = new NamedList<>();
+            response.add("response", page);
+            response.add(CursorMarkParams.CURSOR_MARK_NEXT,
+                    page.isEmpty() ? cursor : page.get(page.size() - 1).getFieldValue("id"));
+            return response;
+        }
+
+        @Override
+        public void shutdown() {
+        }
+    }
+
+    private static List<PartitionedDocIterator.Slice> buckets(int n) {
+        List<PartitionedDocIterator.Slice> slices = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            slices.add(PartitionedDocIterator.Slice.filter("bucket:" + i));
+        }
+        return slices;
+    }
+
+    @Test
+    public void testReadsAllSlices() {
+        BucketServer solr = new BucketServer(100, 3);
+        PartitionedDocIterator docs = new PartitionedDocIterator(solr, "*:*", buckets(3), 7, null, null);
+        List<String> ids = new ArrayList<>();
+        while (docs.hasNext()) {
+            ids.add((String) docs.next().getFieldValue("id"));
+        }
+        assertEquals(100, ids.size());
+        assertEquals(100, new HashSet<>(ids).size());
+        assertEquals(100, docs.getNumFound());
+        // the docs of a slice keep their order
+        List<String> bucket1 = new ArrayList<>();
+        for (String id : ids) {
+            if (Integer.parseInt(id.substring(4)) % 3 == 1) {
+                bucket1.add(id);
+            }
+        }
+        assertEquals(BucketServer.id(1), bucket1.get(0));
+        assertEquals(BucketServer.id(97), bucket1.get(bucket1.size() - 1));
+        assertEquals(BucketServer.id(99), docs.getPositions().get("bucket:0"));
+    }
+
+    @Test
+    public void testResume() {
+        BucketServer solr = new BucketServer(100, 3);
+        PartitionedDocIterator docs = new PartitionedDocIterator(solr, "*:*", buckets(3), 5, null, null);
+        Set<String> ids = new HashSet<>();
+        for (int i = 0; i < 42; i++) {
+            ids.add((String) docs.next().getFieldValue("id"));
+        }
+        Map<String, String> positions = docs.getPositions();
+        docs.close();
+
+        PartitionedDocIterator resumed = new PartitionedDocIterator(solr, "*:*", buckets(3), 5, null, positions);
+        int reread = 0;
+        while (resumed.hasNext()) {
+            if (!ids.add((String) resumed.next().getFieldValue("id"))) {
+                reread++;
+            }
+        }
+        assertEquals(100, ids.size());
+        // at most the page being gone through in each slice
+        assertTrue(reread <= 3 * 5);
+    }
+
+    @Test
+    public void testSliceAndPosition() {
+        BucketServer solr = new BucketServer(30, 3);
+        PartitionedDocIterator docs = new PartitionedDocIterator(solr, "*:*", buckets(3), 4, null, null);
+        while (docs.hasNext()) {
+            int i = Integer.parseInt(((String) docs.next().getFieldValue("id")).substring(4));
+            assertEquals("bucket:" + i % 3, docs.getSlice());
+            // the page of the doc starts after the last doc of the page before it
+            int indexInBucket = i / 3;
+            String expected = indexInBucket < 4 ? CursorMarkParams.CURSOR_MARK_START
+                    : BucketServer.id((indexInBucket / 4 * 4 - 1) * 3 + i % 3);
+            assertEquals(expected, docs.getPosition());
+        }
+    }
+
+    @Test
+    public void testSliceError() {
+        BucketServer solr = new BucketServer(100, 3);
+        solr.failingBucket = "bucket:2";
+        PartitionedDocIterator docs = new PartitionedDocIterator(solr, "*:*", buckets(3), 10, null, null);
+        try {
+            while (docs.hasNext()) {
+                docs.next();
+            }
+            fail("the error should be thrown");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage().contains("bucket:2"));
+            assertTrue(e.getCause() instanceof SolrServerException);
+        }
+    }
+
+    @Test
+    public void testMonthSlices() throws Exception {
+        List<PartitionedDocIterator.Slice> slices = PartitionedDocIterator.parseSlices("months:indexedAt:2015-11:3");
+        assertEquals(4, slices.size());
+        assertTrue(slices.get(0).getName().startsWith("indexedAt:["));
+        assertTrue(slices.get(0).getName().endsWith("}"));
+        // contiguous ranges
+        for (int i = 0; i < 2; i++) {
+            String end = slices.get(i).getName().split(" TO ")[1].replace("}", "");
+            String nextStart = slices.get(i + 1).getName().split(" TO ")[0].replace("indexedAt:[", "");
+            assertEquals(end, nextStart);
+        }
+        assertTrue(slices.get(3).getName().startsWith("-indexedAt:["));
+    }
+
+    @Test
+    public void testShardSlices() {
+        ShardMap map = new ShardMap(Arrays.asList(
+                new ShardMap.Shard("shard1", null, "http://host1:8983/solr/core1"),
+                new ShardMap.Shard("shard2", null, "http://host2:8983/solr/core2")));
+        List<PartitionedDocIterator.Slice> slices = PartitionedDocIterator.shardSlices(map);
+        assertEquals("shard2", slices.get(1).getName());
+        assertEquals("host2:8983/solr/core2", slices.get(1).getParams().get("shards"));
+    }
+}
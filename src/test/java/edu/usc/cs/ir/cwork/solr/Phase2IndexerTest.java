@@ -0,0 +1,56 @@
+package edu.usc.cs.ir.cwork.solr;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.solr.common.SolrInputDocument;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class Phase2IndexerTest {
+
+    @Test
+    public void testAtomicUpdate() {
+        SolrInputDocument parsed = new SolrInputDocument();
+        parsed.setField("persons", new String[]{"John Doe", "Jane Roe"});
+        parsed.setField("ner_weapon_name_t_md", "AR-15");
+        parsed.addField("dates", new HashSet<>(Arrays.asList(new Date(0), new Date(1000))));
+
+        SolrInputDocument update = Phase2Indexer.toAtomicUpdate("doc-1", parsed);
+        assertEquals("doc-1", update.getFieldValue("id"));
+        assertEquals(Arrays.asList("John Doe", "Jane Roe"), setValue(update, "persons"));
+        assertEquals("AR-15", setValue(update, "ner_weapon_name_t_md"));
+        assertEquals(2, ((Collection<?>) setValue(update, "dates")).size());
+        // the entities not found are cleared
+        assertTrue(update.containsKey("locations"));
+        assertNull(setValue(update, "locations"));
+        for (String field : update.getFieldNames()) {
+            if (!field.equals("id")) {
+                assertTrue(field, update.getFieldValue(field) instanceof Map);
+            }
+        }
+    }
+
+    @Test
+    public void testDeltaIsSmaller() {
+        SolrInputDocument full = new SolrInputDocument();
+        full.setField("id", "doc-1");
+        full.setField("title", "A listing");
+        full.setField("content", StringUtils.repeat("Some words of a long listing page. ", 500));
+        full.setField("persons", "John Doe");
+        SolrInputDocument parsed = new SolrInputDocument();
+        parsed.setField("persons", "John Doe");
+        SolrInputDocument update = Phase2Indexer.toAtomicUpdate("doc-1", parsed);
+        assertTrue(SolrSink.estimateSize(update) * 10 < SolrSink.estimateSize(full));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object setValue(SolrInputDocument update, String field) {
+        return ((Map<String, Object>) update.getFieldValue(field)).get("set");
+    }
+}
@@ -0,0 +1,128 @@
+package edu.usc.cs.ir.cwork.solr;
+
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class RealTimeGetIteratorTest {
+
+    /**
+     * Serves the docs whose ids are even, the way the real time get handler does
+     */
+    private static class GetServer extends SolrServer {
+
+        final List<SolrRequest> requests = Collections.synchronizedList(new ArrayList<>());
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        volatile String failingId;
+
+        @Override
+        public NamedList<Object> request(SolrRequest request) throws SolrServerException {
+            requests.add(request);
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(20);
+                SolrParams params = request.getParams();
+                String[] ids = params.getParams("id");
+                SolrDocumentList docs = new SolrDocumentList();
+                for (String id : ids) {
+                    if (id.equals(failingId)) {
+                        throw new SolrServerException("get failed");
+                    }
+                    if (Integer.parseInt(id.substring(4)) % 2 == 0) {
+                        SolrDocument doc = new SolrDocument();
+                        doc.setField("id", id);
+                        docs.add(doc);
+                    }
+                }
+                docs.setNumFound(docs.size());
+                NamedList<Object> response = new NamedList<>();
+                if (ids.length == 1) {
+                    response.add("doc", docs.isEmpty() ? null : docs.get(0));
+                } else {
+                    response.add("response", docs);
+                }
+                return response;
+            } catch (InterruptedException e) {
+                throw new SolrServerException(e);
+            } finally {
+                running.decrementAndGet();
+            }
+        }
+
+        @Override
+        public void shutdown() {
+        }
+    }
+
+    private static List<String> ids(int n) {
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            ids.add("doc-" + i);
+        }
+        return ids;
+    }
+
+    @Test
+    public void testFetchesInOrder() {
+        GetServer solr = new GetServer();
+        RealTimeGetIterator docs = new RealTimeGetIterator(solr, ids(95).iterator(), 10, 3, "id", "rank");
+        List<String> found = new ArrayList<>();
+        while (docs.hasNext()) {
+            found.add((String) docs.next().getFieldValue("id"));
+        }
+        assertEquals(48, found.size());
+        for (int i = 0; i < found.size(); i++) {
+            assertEquals("doc-" + 2 * i, found.get(i));
+        }
+        assertEquals(95, docs.getNumRequested());
+        assertEquals(48, docs.getCount());
+        assertEquals(10, solr.requests.size());
+        assertEquals(RealTimeGetIterator.GET_PATH, solr.requests.get(0).getPath());
+        assertEquals("id,rank", solr.requests.get(0).getParams().get("fl"));
+        assertTrue(solr.maxRunning.get() > 1);
+        assertTrue(solr.maxRunning.get() <= 3);
+    }
+
+    @Test
+    public void testSingleId() {
+        GetServer solr = new GetServer();
+        RealTimeGetIterator docs = new RealTimeGetIterator(solr, Arrays.asList("doc-4").iterator());
+        assertTrue(docs.hasNext());
+        assertEquals("doc-4", docs.next().getFieldValue("id"));
+        assertFalse(docs.hasNext());
+        assertFalse(new RealTimeGetIterator(solr, Arrays.asList("doc-5").iterator()).hasNext());
+    }
+
+    @Test
+    public void testError() {
+        GetServer solr = new GetServer();
+        solr.failingId = "doc-42";
+        RealTimeGetIterator docs = new RealTimeGetIterator(solr, ids(100).iterator(), 10, 2);
+        int count = 0;
+        try {
+            while (docs.hasNext()) {
+                docs.next();
+                count++;
+            }
+            fail("the error should be thrown");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof SolrServerException);
+        }
+        // the batches before the failed one are handed over
+        assertEquals(20, count);
+    }
+}
@@ -0,0 +1,112 @@
+package edu.usc.cs.ir.cwork.solr;
+
+import edu.usc.cs.ir.cwork.Context;
+import edu.usc.cs.ir.cwork.nutch.SegContentReader;
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.nutch.metadata.Metadata;
+import org.apache.nutch.protocol.Content;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.common.util.NamedList;
+import org.kohsuke.args4j.CmdLineParser;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Random;
+
+/**
+ * Measures the throughput of {@link SolrIndexer} on a synthetic segment of html pages
+ * for an increasing number of parse threads. The updates go to a server which discards them,
+ * so only the reading and parsing is measured.
+ * Not a unit test, run it as a main class:
+ * <pre>
+ *   java -cp target/classes:target/test-classes:... \
+ *      edu.usc.cs.ir.cwork.solr.SegmentIndexBenchmark [numDocs] [paragraphs] [maxThreads]
+ * </pre>
+ */
+public class SegmentIndexBenchmark {
+
+    private static final String[] WORDS = ("the weapon gun rifle sale price shipping contact seller " +
+            "ammo caliber barrel stock scope condition used new buy offer trade email phone").split(" ");
+
+    /**
+     * A server which acknowledges everything
+     */
+    private static class NullServer extends SolrServer {
+        @Override
+        public NamedList<Object> request(SolrRequest request) {
+            return new NamedList<>();
+        }
+
+        @Override
+        public void shutdown() {
+        }
+    }
+
+    private static String page(Random random, int i, int paragraphs) {
+        StringBuilder sb = new StringBuilder("<html><head><title>Page ").append(i)
+                .append("</title><meta name=\"keywords\" content=\"rifle, scope\"/></head><body>");
+        for (int p = 0; p < paragraphs; p++) {
+            sb.append("<p>");
+            for (int w = 0; w < 80; w++) {
+                sb.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+            }
+            sb.append("<a href=\"http://example.com/page/").append(random.nextInt(1000))
+                    .append("\">link</a></p>");
+        }
+        return sb.append("</body></html>").toString();
+    }
+
+    private static File createSegment(int numDocs, int paragraphs) throws Exception {
+        File dir = Files.createTempDirectory("segment").toFile();
+        Configuration conf = Context.getInstance().getConf();
+        Path data = new Path(new File(dir, "content/part-00000/data").getAbsolutePath());
+        Random random = new Random(0);
+        try (SequenceFile.Writer writer = SequenceFile.createWriter(conf,
+                SequenceFile.Writer.file(data),
+                SequenceFile.Writer.keyClass(Text.class),
+                SequenceFile.Writer.valueClass(Content.class))) {
+            for (int i = 0; i < numDocs; i++) {
+                String url = "http://example.com/page/" + i;
+                byte[] bytes = page(random, i, paragraphs).getBytes(StandardCharsets.UTF_8);
+                writer.append(new Text(url), new Content(url, url, bytes, "text/html", new Metadata(), conf));
+            }
+        }
+        return dir;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int numDocs = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int paragraphs = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int maxThreads = args.length > 2 ? Integer.parseInt(args[2])
+                : Runtime.getRuntime().availableProcessors();
+        File segment = createSegment(numDocs, paragraphs);
+        System.out.printf("%d docs, %d cores%n", numDocs, Runtime.getRuntime().availableProcessors());
+        System.out.printf("%8s %10s %10s %8s%n", "threads", "millis", "docs/s", "speedup");
+
+        double base = 0;
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            SolrIndexer indexer = new SolrIndexer();
+            CmdLineParser parser = new CmdLineParser(indexer);
+            indexer.sinkOptions.addTo(parser);
+            parser.parseArgument("-segs", segment.getPath(), "-url", "http://localhost:8983/solr",
+                    "-threads", String.valueOf(threads), "-timeout", "60000");
+            SegContentReader reader = new SegContentReader(Collections.singletonList(segment.getPath()));
+            long st = System.currentTimeMillis();
+            long count = indexer.index(reader.read(), new NullServer());
+            long millis = Math.max(1, System.currentTimeMillis() - st);
+            double rate = count * 1000.0 / millis;
+            if (threads == 1) {
+                base = rate;
+            }
+            System.out.printf("%8d %10d %10.0f %8.2f%n", threads, millis, rate, rate / base);
+        }
+        FileUtils.deleteDirectory(segment);
+    }
+}
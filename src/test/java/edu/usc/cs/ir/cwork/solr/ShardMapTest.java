@@ -0,0 +1,57 @@
+package edu.usc.cs.ir.cwork.solr;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.solr.common.util.Hash;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ShardMapTest {
+
+    private static ShardMap load(String content) throws Exception {
+        File file = Files.createTempFile("shards", ".txt").toFile();
+        try {
+            FileUtils.write(file, content, StandardCharsets.UTF_8);
+            return ShardMap.load(file);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testEvenRanges() throws Exception {
+        ShardMap map = load("# two cores\nshard1 http://localhost:8983/solr/a\n\nshard2 http://localhost:8984/solr/b\n");
+        List<ShardMap.Shard> shards = map.getShards();
+        assertEquals(2, shards.size());
+        assertEquals("80000000-ffffffff", shards.get(0).getRange().toString());
+        assertEquals("0-7fffffff", shards.get(1).getRange().toString());
+        assertEquals("http://localhost:8984/solr/b", shards.get(1).getLeaderUrl());
+    }
+
+    @Test
+    public void testExplicitRanges() throws Exception {
+        ShardMap map = load("s1 http://a 0-7fffffff\ns2 http://b 80000000-ffffffff\n");
+        for (String id : new String[]{"x", "y", "http://example.com/1.html", "file:/data/2.pdf"}) {
+            int hash = ShardMap.hash(id);
+            assertEquals(hash >= 0 ? "s1" : "s2", map.route(id).getName());
+        }
+    }
+
+    @Test
+    public void testHashIsCompositeId() {
+        String id = "http://example.com/page.html";
+        assertEquals(Hash.murmurhash3_x86_32(id, 0, id.length(), 0), ShardMap.hash(id));
+        // the shard key decides the upper 16 bits, so docs of a key stay together
+        assertEquals(ShardMap.hash("example.com!a") >>> 16, ShardMap.hash("example.com!b") >>> 16);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadLine() throws Exception {
+        load("shard1\n");
+    }
+}
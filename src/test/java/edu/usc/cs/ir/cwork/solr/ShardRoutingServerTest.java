@@ -0,0 +1,170 @@
+package edu.usc.cs.ir.cwork.solr;
+
+import edu.usc.cs.ir.cwork.sink.PartialBatchException;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.cloud.CompositeIdRouter;
+import org.apache.solr.common.cloud.DocRouter;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ShardRoutingServerTest {
+
+    /**
+     * Stands in for a shard leader, records the ids and the commits
+     */
+    private static class StubShard extends SolrServer {
+
+        final List<String> ids = Collections.synchronizedList(new ArrayList<>());
+        final AtomicInteger commits = new AtomicInteger();
+        volatile boolean down = false;
+        volatile String badId;
+
+        @Override
+        public NamedList<Object> request(SolrRequest request) throws SolrServerException, IOException {
+            if (down) {
+                throw new SolrServerException(new IOException("connection refused"));
+            }
+            UpdateRequest update = (UpdateRequest) request;
+            if (update.getAction() != null) {
+                commits.incrementAndGet();
+            } else {
+                for (SolrInputDocument doc : update.getDocuments()) {
+                    if (doc.getFieldValue("id").equals(badId)) {
+                        throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "bad doc " + badId);
+                    }
+                }
+                for (SolrInputDocument doc : update.getDocuments()) {
+                    ids.add(doc.getFieldValue("id").toString());
+                }
+            }
+            return new NamedList<>();
+        }
+
+        @Override
+        public void shutdown() {
+        }
+    }
+
+    private final Map<String, StubShard> stubs = new ConcurrentHashMap<>();
+
+    private ShardMap createMap(int numShards, String urlPrefix) {
+        CompositeIdRouter router = new CompositeIdRouter();
+        List<DocRouter.Range> ranges = router.partitionRange(numShards, router.fullRange());
+        List<ShardMap.Shard> shards = new ArrayList<>();
+        for (int i = 0; i < numShards; i++) {
+            shards.add(new ShardMap.Shard("shard" + (i + 1), ranges.get(i), urlPrefix + i));
+        }
+        return new ShardMap(shards);
+    }
+
+    private ShardRoutingServer createServer(ShardMap map) {
+        return new ShardRoutingServer(map, url -> stubs.computeIfAbsent(url, u -> new StubShard()), null);
+    }
+
+    private static List<SolrInputDocument> docs(int n) {
+        List<SolrInputDocument> docs = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            SolrInputDocument doc = new SolrInputDocument();
+            doc.setField("id", "http://example.com/page/" + i);
+            docs.add(doc);
+        }
+        return docs;
+    }
+
+    @Test
+    public void testDocsGoToTheirLeaders() throws Exception {
+        ShardMap map = createMap(3, "http://stub/");
+        ShardRoutingServer server = createServer(map);
+        try (SolrSink sink = new SolrSink(server, 50, 2, null)) {
+            for (SolrInputDocument doc : docs(300)) {
+                sink.add(doc);
+            }
+        }
+        assertEquals(3, stubs.size());
+        int total = 0;
+        for (ShardMap.Shard shard : map.getShards()) {
+            StubShard stub = stubs.get(shard.getLeaderUrl());
+            assertFalse(stub.ids.isEmpty());
+            for (String id : stub.ids) {
+                assertTrue(shard.getRange().includes(ShardMap.hash(id)));
+            }
+            total += stub.ids.size();
+            // the final commit goes to every core
+            assertEquals(1, stub.commits.get());
+        }
+        assertEquals(300, total);
+        assertEquals(300, server.getNumDocs().values().stream().mapToLong(Long::longValue).sum());
+    }
+
+    @Test
+    public void testFailedShardFailsTheBatchAndRefreshes() throws Exception {
+        ShardMap oldMap = createMap(2, "http://old/");
+        ShardRoutingServer server = createServer(oldMap);
+        server.request(new UpdateRequest().add(docs(10)));
+        stubs.get("http://old/1").down = true;
+        AtomicInteger refreshes = new AtomicInteger();
+        server.setRefresher(() -> {
+            refreshes.incrementAndGet();
+            return createMap(2, "http://new/");
+        });
+        List<SolrInputDocument> docs = docs(10);
+        try {
+            server.request(new UpdateRequest().add(docs));
+            fail("a shard is down");
+        } catch (SolrServerException e) {
+            assertTrue(SolrSink.isTransientError(e));
+            // only the docs of the failed shard are to be retried
+            PartialBatchException partial = PartialBatchException.find(e);
+            assertNotNull(partial);
+            assertTrue(partial.isTransient());
+            assertFalse(partial.getFailed().isEmpty());
+            for (int i = 0; i < docs.size(); i++) {
+                String id = docs.get(i).getFieldValue("id").toString();
+                assertEquals(partial.getFailed().contains(i), oldMap.route(id).getName().equals("shard2"));
+            }
+        }
+        assertEquals(1, refreshes.get());
+        // the retry goes to the new leaders
+        server.request(new UpdateRequest().add(docs(10)));
+        assertEquals(10, stubs.get("http://new/0").ids.size() + stubs.get("http://new/1").ids.size());
+    }
+
+    @Test
+    public void testOnlyTheFailedShardIsRetried() throws Exception {
+        ShardMap map = createMap(2, "http://stub/");
+        ShardRoutingServer server = createServer(map);
+        List<SolrInputDocument> docs = docs(100);
+        String bad = docs.get(42).getFieldValue("id").toString();
+        StubShard badShard = stubs.computeIfAbsent(map.route(bad).getLeaderUrl(), u -> new StubShard());
+        badShard.badId = bad;
+        List<SolrInputDocument> failed = Collections.synchronizedList(new ArrayList<>());
+        try (SolrSink sink = new SolrSink(server, 100, 1, (batch, e) -> failed.addAll(batch))) {
+            for (SolrInputDocument doc : docs) {
+                sink.add(doc);
+            }
+        }
+        assertEquals(1, failed.size());
+        assertEquals(bad, failed.get(0).getFieldValue("id"));
+        // the docs of the other shard were posted once, not again with the halves of the batch
+        StubShard goodShard = stubs.values().stream().filter(stub -> stub != badShard).findFirst().get();
+        assertEquals(new HashSet<>(goodShard.ids).size(), goodShard.ids.size());
+        assertEquals(99, goodShard.ids.size() + badShard.ids.size());
+        assertEquals(new HashSet<>(badShard.ids).size(), badShard.ids.size());
+    }
+}
@@ -0,0 +1,227 @@
+package edu.usc.cs.ir.cwork.solr;
+
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.CursorMarkParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SolrDocIteratorTest {
+
+    /**
+     * Serves the sorted ids by start offset or by a cursorMark, which is the last id of the page
+     */
+    private static class PagingServer extends SolrServer {
+
+        final List<String> ids = new ArrayList<>();
+        final List<SolrParams> requests = Collections.synchronizedList(new ArrayList<>());
+        volatile int failAt = -1;
+
+        PagingServer(int numDocs) {
+            for (int i = 0; i < numDocs; i++) {
+                ids.add(String.format("doc-%05d", i));
+            }
+        }
+
+        @Override
+        public NamedList<Object> request(SolrRequest request) throws SolrServerException {
+            SolrParams params = request.getParams();
+            requests.add(params);
+            if (requests.size() == failAt) {
+                throw new SolrServerException("solr is down");
+            }
+            String cursor = params.get(CursorMarkParams.CURSOR_MARK_PARAM);
+            int rows = params.getInt("rows", 10);
+            int start = params.getInt("start", 0);
+            if (cursor != null) {
+                start = CursorMarkParams.CURSOR_MARK_START.equals(cursor) ? 0 : ids.indexOf(cursor) + 1;
+            }
+            SolrDocumentList page = new SolrDocumentList();
+            page.setNumFound(ids.size());
+            page.setStart(start);
+            for (int i = start; i < Math.min(ids.size(), start + rows); i++) {
+                SolrDocument doc = new SolrDocument();
+                doc.setField("id", ids.get(i));
+                page.add(doc);
+            }
+            NamedList<Object> response = new NamedList<>();
+            response.add("response", page);
+            if (cursor != null) {
+                response.add(CursorMarkParams.CURSOR_MARK_NEXT,
+                        page.isEmpty() ? cursor : page.get(page.size() - 1).getFieldValue("id"));
+            }
+            return response;
+        }
+
+        @Override
+        public void shutdown() {
+        }
+    }
+
+    private static List<String> readIds(SolrDocIterator iterator) {
+        List<String> ids = new ArrayList<>();
+        while (iterator.hasNext()) {
+            ids.add((String) iterator.next().getFieldValue("id"));
+        }
+        return ids;
+    }
+
+    private static SolrDocIterator cursor(PagingServer solr, String sort) {
+        return SolrDocIterator.withCursor(solr, "*:*", 10, sort, CursorMarkParams.CURSOR_MARK_START);
+    }
+
+    @Test
+    public void testCursor() {
+        PagingServer solr = new PagingServer(25);
+        SolrDocIterator iterator = cursor(solr, null);
+        assertEquals(25, iterator.getNumFound());
+        assertEquals(solr.ids, readIds(iterator));
+        // the last page is known by the cursor staying put
+        assertEquals(4, solr.requests.size());
+        for (SolrParams params : solr.requests) {
+            assertNull(params.get("start"));
+            assertEquals("id asc", params.get("sort"));
+        }
+        assertEquals("doc-00024", iterator.getCursorMark());
+    }
+
+    @Test
+    public void testCursorSort() {
+        PagingServer solr = new PagingServer(25);
+        readIds(cursor(solr, "indexedAt asc"));
+        assertEquals("indexedAt asc, id asc", solr.requests.get(0).get("sort"));
+
+        solr.requests.clear();
+        readIds(cursor(solr, "id desc"));
+        assertEquals("id desc", solr.requests.get(0).get("sort"));
+    }
+
+    @Test
+    public void testStartByDefault() {
+        PagingServer solr = new PagingServer(25);
+        SolrDocIterator iterator = new SolrDocIterator(solr, "*:*", 0, 10, "indexedAt asc");
+        assertEquals(solr.ids, readIds(iterator));
+        // the sort is left as it is
+        for (SolrParams params : solr.requests) {
+            assertNull(params.get(CursorMarkParams.CURSOR_MARK_PARAM));
+            assertEquals("indexedAt asc", params.get("sort"));
+        }
+        assertEquals(Integer.valueOf(20), solr.requests.get(2).getInt("start"));
+        assertNull(iterator.getCursorMark());
+        assertNull(new SolrDocIterator(solr, "*:*").getCursorMark());
+    }
+
+    @Test
+    public void testQueryNext() {
+        PagingServer solr = new PagingServer(25);
+        SolrDocIterator iterator = new SolrDocIterator(solr, "*:*", 0, 10, null);
+        iterator.next();
+        SolrDocumentList next = iterator.queryNext();
+        assertEquals("doc-00010", next.get(0).getFieldValue("id"));
+        // the iterator goes on from where it was
+        assertEquals(solr.ids.subList(1, 25), readIds(iterator));
+
+        iterator = cursor(solr, null);
+        assertEquals("doc-00010", iterator.queryNext().get(0).getFieldValue("id"));
+        assertEquals(solr.ids, readIds(iterator));
+    }
+
+    @Test
+    public void testPosition() {
+        PagingServer solr = new PagingServer(25);
+        SolrDocIterator iterator = cursor(solr, null);
+        List<String> positions = new ArrayList<>();
+        while (iterator.hasNext()) {
+            iterator.next();
+            positions.add(iterator.getPosition());
+        }
+        assertEquals("*", positions.get(0));
+        assertEquals("*", positions.get(9));
+        assertEquals("doc-00009", positions.get(10));
+        assertEquals("doc-00019", positions.get(24));
+
+        // reading from a position gives its page again
+        SolrDocIterator resumed = SolrDocIterator.withCursor(solr, "*:*", 10, null, positions.get(10));
+        assertEquals(solr.ids.subList(10, 25), readIds(resumed));
+    }
+
+    @Test
+    public void testStartOffset() {
+        PagingServer solr = new PagingServer(25);
+        SolrDocIterator iterator = new SolrDocIterator(solr, "*:*", 5, 10, null);
+        assertEquals(solr.ids.subList(5, 25), readIds(iterator));
+        assertEquals(2, solr.requests.size());
+        assertNull(iterator.getCursorMark());
+    }
+
+    @Test
+    public void testLimit() {
+        PagingServer solr = new PagingServer(25);
+        SolrDocIterator iterator = new SolrDocIterator(solr, "*:*", 0, 10, null);
+        iterator.setLimit(12);
+        assertEquals(solr.ids.subList(0, 12), readIds(iterator));
+    }
+
+    @Test
+    public void testResumeFromCursor() {
+        PagingServer solr = new PagingServer(25);
+        SolrDocIterator iterator = SolrDocIterator.withCursor(solr, "*:*", 10, null, "doc-00009");
+        assertEquals(solr.ids.subList(10, 25), readIds(iterator));
+    }
+
+    @Test
+    public void testPrefetch() throws Exception {
+        PagingServer solr = new PagingServer(95);
+        SolrDocIterator iterator = cursor(solr, null);
+        iterator.setPrefetch(1);
+        Thread.sleep(200);
+        // the current page, the queued one and the one waiting to be queued
+        assertEquals(3, solr.requests.size());
+        assertEquals(solr.ids, readIds(iterator));
+        assertEquals(95, iterator.getNumFound());
+        assertEquals(11, solr.requests.size());
+
+        PagingServer byStart = new PagingServer(95);
+        iterator = new SolrDocIterator(byStart, "*:*", 0, 10, null);
+        iterator.setPrefetch(2);
+        assertEquals(byStart.ids, readIds(iterator));
+        assertEquals(10, byStart.requests.size());
+    }
+
+    @Test
+    public void testPrefetchError() {
+        PagingServer solr = new PagingServer(95);
+        solr.failAt = 3;
+        SolrDocIterator iterator = new SolrDocIterator(solr, "*:*", 0, 10, null);
+        iterator.setPrefetch(2);
+        int count = 0;
+        try {
+            while (iterator.hasNext()) {
+                iterator.next();
+                count++;
+            }
+            fail("the error should be thrown");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof SolrServerException);
+        }
+        // the pages before the error are read
+        assertEquals(20, count);
+    }
+
+    @Test
+    public void testIdTieBreaker() {
+        assertEquals("id asc", SolrDocIterator.withIdTieBreaker(null));
+        assertEquals("lastModified desc, id asc", SolrDocIterator.withIdTieBreaker("lastModified desc"));
+        assertEquals("boost desc,id desc", SolrDocIterator.withIdTieBreaker("boost desc,id desc"));
+    }
+}
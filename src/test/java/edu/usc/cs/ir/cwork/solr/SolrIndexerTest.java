@@ -0,0 +1,138 @@
+package edu.usc.cs.ir.cwork.solr;
+
+import edu.usc.cs.ir.cwork.Context;
+import edu.usc.cs.ir.cwork.sink.DeadLetterStore;
+import org.apache.commons.math3.util.Pair;
+import org.apache.nutch.metadata.Metadata;
+import org.apache.nutch.protocol.Content;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.NamedList;
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SolrIndexerTest {
+
+    /**
+     * Records the ids of the docs added
+     */
+    private static class RecordingServer extends SolrServer {
+
+        final List<Object> added = Collections.synchronizedList(new ArrayList<>());
+        volatile String badId;
+
+        @Override
+        public NamedList<Object> request(SolrRequest request) {
+            UpdateRequest update = (UpdateRequest) request;
+            if (update.getDocuments() != null) {
+                for (SolrInputDocument doc : update.getDocuments()) {
+                    if (doc.getFieldValue("id").equals(badId)) {
+                        throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "bad doc");
+                    }
+                }
+                for (SolrInputDocument doc : update.getDocuments()) {
+                    added.add(doc.getFieldValue("id"));
+                }
+            }
+            return new NamedList<>();
+        }
+
+        @Override
+        public void shutdown() {
+        }
+    }
+
+    /**
+     * Fails like a parser missing a class on every fifth record
+     */
+    private static class FailingIndexer extends SolrIndexer {
+        @Override
+        public ContentBean createBean(Content content, boolean reparse) {
+            if (content.getUrl().endsWith("0") || content.getUrl().endsWith("5")) {
+                throw new NoClassDefFoundError("org/apache/tika/parser/Missing");
+            }
+            ContentBean bean = new ContentBean();
+            bean.setId(content.getUrl());
+            bean.setContentType(content.getContentType());
+            return bean;
+        }
+    }
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static SolrIndexer newIndexer(String... args) throws CmdLineException {
+        SolrIndexer indexer = new FailingIndexer();
+        CmdLineParser parser = new CmdLineParser(indexer);
+        indexer.sinkOptions.addTo(parser);
+        List<String> allArgs = new ArrayList<>(Arrays.asList("-segs", "segs.txt",
+                "-url", "http://localhost:8983/solr", "-threads", "2", "-queue", "2", "-batch", "7"));
+        allArgs.addAll(Arrays.asList(args));
+        parser.parseArgument(allArgs);
+        return indexer;
+    }
+
+    private static Iterator<Pair<String, Content>> records(int n) {
+        List<Pair<String, Content>> recs = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            String url = "http://example.com/page/" + i;
+            recs.add(new Pair<>(url, new Content(url, url, "<html/>".getBytes(), "text/html",
+                    new Metadata(), Context.getInstance().getConf())));
+        }
+        return recs.iterator();
+    }
+
+    @Test(timeout = 60 * 1000)
+    public void testParserError() throws Exception {
+        SolrIndexer indexer = newIndexer();
+        RecordingServer solr = new RecordingServer();
+        assertEquals(32, indexer.index(records(40), solr));
+        List<Object> expected = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            if (i % 5 != 0) {
+                expected.add("http://example.com/page/" + i);
+            }
+        }
+        // the beans keep the order of the records
+        assertEquals(expected, solr.added);
+    }
+
+    @Test(timeout = 60 * 1000)
+    public void testRejectedDocs() throws Exception {
+        RecordingServer solr = new RecordingServer();
+        solr.badId = "http://example.com/page/12";
+        try {
+            newIndexer().index(records(40), solr);
+            fail("the rejection should stop the run without dead letters");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof SolrException);
+        }
+
+        // the rejected doc goes to the dead letters, and the run goes on
+        File deadLetters = tmp.newFile("dead-letters.jsonl");
+        solr = new RecordingServer();
+        solr.badId = "http://example.com/page/12";
+        SolrIndexer indexer = newIndexer("-deadLetters", deadLetters.getPath());
+        assertEquals(32, indexer.index(records(40), solr));
+        assertEquals(31, solr.added.size());
+        Iterator<JSONObject> letters = DeadLetterStore.read(deadLetters);
+        assertEquals(solr.badId, letters.next().getJSONObject(DeadLetterStore.DOC).get("id"));
+        assertFalse(letters.hasNext());
+    }
+}
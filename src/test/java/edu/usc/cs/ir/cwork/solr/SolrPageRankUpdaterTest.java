@@ -4,18 +4,28 @@ import edu.usc.cs.ir.cwork.Main;
 import edu.usc.cs.ir.cwork.graph.Graph;
 import edu.usc.cs.ir.cwork.graph.Vertex;
 import edu.usc.cs.ir.cwork.relevance.PageRanker;
+import org.apache.commons.math3.util.Pair;
 import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrRequest;
 import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.impl.HttpSolrServer;
 import org.apache.solr.client.solrj.request.CoreAdminRequest;
 import org.apache.solr.client.solrj.response.CoreAdminResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.util.NamedList;
 import org.junit.Test;
 
 import java.io.IOException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
 
 public class SolrPageRankUpdaterTest {
 
@@ -37,6 +47,71 @@ public class SolrPageRankUpdaterTest {
 
     }
 
+    @Test
+    public void testSameRank() {
+        assertTrue(SolrPageRankUpdater.sameRank(0.25, 0.25));
+        assertTrue(SolrPageRankUpdater.sameRank(0.1f, 0.1));
+        assertFalse(SolrPageRankUpdater.sameRank(0.1, 0.2));
+        assertFalse(SolrPageRankUpdater.sameRank(null, 0.1));
+    }
+
+    /**
+     * Serves the docs whose ids are even, with the rank 0.5
+     */
+    private static class RankServer extends SolrServer {
+
+        final AtomicInteger requests = new AtomicInteger();
+
+        @Override
+        public NamedList<Object> request(SolrRequest request) {
+            requests.incrementAndGet();
+            SolrDocumentList docs = new SolrDocumentList();
+            for (String id : request.getParams().getParams("id")) {
+                if (Integer.parseInt(id.substring(4)) % 2 == 0) {
+                    SolrDocument doc = new SolrDocument();
+                    doc.setField("id", id);
+                    doc.setField("rank", 0.5f);
+                    docs.add(doc);
+                }
+            }
+            NamedList<Object> response = new NamedList<>();
+            response.add("response", docs);
+            return response;
+        }
+
+        @Override
+        public void shutdown() {
+        }
+    }
+
+    @Test
+    public void testChangedRanks() {
+        List<Pair<String, Double>> ranks = new ArrayList<>();
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 1050; i++) {
+            // the ranks of every fourth doc change
+            double rank = i % 4 == 0 ? 0.25 : 0.5;
+            ranks.add(SolrPageRankUpdater.parseRank("doc-" + i + "\t" + rank));
+            if (i % 4 == 0) {
+                expected.add("doc-" + i);
+            }
+        }
+        RankServer solr = new RankServer();
+        SolrPageRankUpdater.ChangedRanks changed =
+                new SolrPageRankUpdater.ChangedRanks(solr, ranks.iterator(), 3, "rank");
+        List<String> found = new ArrayList<>();
+        while (changed.hasNext()) {
+            Pair<String, Double> rank = changed.next();
+            assertEquals(0.25, rank.getValue(), 0.0);
+            found.add(rank.getKey());
+        }
+        assertEquals(expected, found);
+        // the odd ids aren't in solr, the others keep their rank
+        assertEquals(1050 - expected.size(), changed.getSkipped());
+        // one stream of gets over all the ids
+        assertEquals(11, solr.requests.get());
+    }
+
     public Graph createGraph(){
         Vertex v1 = new Vertex("v1", 0.0);
         Vertex v2 = new Vertex("v2", 0.0);
@@ -0,0 +1,40 @@
+package edu.usc.cs.ir.cwork.solr;
+
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrInputDocument;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class SolrSinkTest {
+
+    @Test
+    public void testJsonRoundTrip() {
+        SolrInputDocument doc = new SolrInputDocument();
+        doc.setField("id", "file:/a.html");
+        doc.setField("persons", Arrays.asList("x", "y"));
+        doc.setField("pr", Collections.singletonMap("set", 0.5));
+        doc.setField("dates", new Date(0));
+        JSONObject json = new JSONObject(SolrSink.toJsonDoc(doc).toString());
+        SolrInputDocument back = SolrSink.fromJsonDoc(json);
+        assertEquals("file:/a.html", back.getFieldValue("id"));
+        assertEquals(Arrays.asList("x", "y"), back.getFieldValues("persons"));
+        assertEquals(0.5, ((Map<?, ?>) back.getFieldValue("pr")).get("set"));
+        assertEquals("1970-01-01T00:00:00Z", back.getFieldValue("dates"));
+    }
+
+    @Test
+    public void testTransientErrors() {
+        assertTrue(SolrSink.isTransientError(new SolrServerException(new IOException("refused"))));
+        assertTrue(SolrSink.isTransientError(new SolrException(SolrException.ErrorCode.SERVICE_UNAVAILABLE, "busy")));
+        assertFalse(SolrSink.isTransientError(new SolrException(SolrException.ErrorCode.BAD_REQUEST, "bad field")));
+    }
+}
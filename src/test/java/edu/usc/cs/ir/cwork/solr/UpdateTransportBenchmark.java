@@ -0,0 +1,132 @@
+package edu.usc.cs.ir.cwork.solr;
+
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.solr.client.solrj.beans.DocumentObjectBinder;
+import org.apache.solr.client.solrj.request.JavaBinUpdateRequestCodec;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrInputDocument;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compares the bytes on the wire and the client CPU time of the xml and javabin
+ * update formats, with and without gzip, on batches of synthetic {@link ContentBean}s.
+ * Not a unit test, run it as a main class:
+ * <pre>
+ *   java -cp target/classes:target/test-classes:... \
+ *      edu.usc.cs.ir.cwork.solr.UpdateTransportBenchmark [numDocs] [contentChars] [rounds]
+ * </pre>
+ */
+public class UpdateTransportBenchmark {
+
+    private interface Format {
+        void write(UpdateRequest request, OutputStream out) throws IOException;
+    }
+
+    private static final String[] WORDS = ("the weapon gun rifle sale price shipping contact seller " +
+            "ammo caliber barrel stock scope condition used new buy offer trade email phone").split(" ");
+
+    private static String text(Random random, int chars) {
+        StringBuilder sb = new StringBuilder(chars + 16);
+        while (sb.length() < chars) {
+            sb.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+        }
+        return sb.toString();
+    }
+
+    static List<SolrInputDocument> createDocs(int numDocs, int contentChars) {
+        Random random = new Random(0);
+        DocumentObjectBinder binder = new DocumentObjectBinder();
+        List<SolrInputDocument> docs = new ArrayList<>();
+        for (int i = 0; i < numDocs; i++) {
+            ContentBean bean = new ContentBean();
+            bean.setId("file:/data/dump/" + i + ".html");
+            bean.setUrl("http://example.com/page/" + i);
+            bean.setTitle(text(random, 60));
+            bean.setContent(text(random, contentChars));
+            bean.setContentType("text/html; charset=UTF-8");
+            Map<String, Object> md = new HashMap<>();
+            for (int j = 0; j < 40; j++) {
+                md.put("Meta-Key-" + j, text(random, 30));
+            }
+            bean.setMetadata(md);
+            Set<String> persons = new HashSet<>();
+            Set<String> outlinks = new HashSet<>();
+            for (int j = 0; j < 20; j++) {
+                persons.add(text(random, 12).trim());
+                outlinks.add("http://example.com/page/" + random.nextInt(100000));
+            }
+            bean.setPersons(persons);
+            bean.setOutlinks(outlinks);
+            Set<Date> dates = new HashSet<>();
+            dates.add(new Date(1400000000000L + i));
+            bean.setDates(dates);
+            docs.add(binder.toSolrInputDocument(bean));
+        }
+        return docs;
+    }
+
+    private static void run(String name, Format format, UpdateRequest request,
+                            int rounds) throws IOException {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        // warm up
+        for (int i = 0; i < 3; i++) {
+            format.write(request, new NullOutputStream());
+        }
+        long bytes = 0;
+        long cpu = bean.getCurrentThreadCpuTime();
+        for (int i = 0; i < rounds; i++) {
+            CountingOutputStream out = new CountingOutputStream(new NullOutputStream());
+            format.write(request, out);
+            bytes = out.getByteCount();
+        }
+        double cpuMillis = (bean.getCurrentThreadCpuTime() - cpu) / 1e6 / rounds;
+        System.out.printf("%-14s bytes=%,12d  cpu/batch=%8.2f ms%n", name, bytes, cpuMillis);
+    }
+
+    private static Format gzip(Format format) {
+        return (request, out) -> {
+            GZIPOutputStream gzip = new GZIPOutputStream(out);
+            format.write(request, gzip);
+            gzip.finish();
+        };
+    }
+
+    public static void main(String[] args) throws IOException {
+        int numDocs = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int contentChars = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+        UpdateRequest request = new UpdateRequest();
+        request.add(createDocs(numDocs, contentChars));
+        System.out.printf("Batch of %d docs, %d chars of content each, %d rounds%n",
+                numDocs, contentChars, rounds);
+
+        Format xml = (req, out) -> {
+            Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+            req.writeXML(writer);
+            writer.flush();
+        };
+        Format javabin = (req, out) -> new JavaBinUpdateRequestCodec().marshal(req, out);
+        run("xml", xml, request, rounds);
+        run("javabin", javabin, request, rounds);
+        run("xml+gzip", gzip(xml), request, rounds);
+        run("javabin+gzip", gzip(javabin), request, rounds);
+    }
+}
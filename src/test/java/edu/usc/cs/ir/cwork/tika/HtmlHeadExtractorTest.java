@@ -0,0 +1,80 @@
+package edu.usc.cs.ir.cwork.tika;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.tika.metadata.Metadata;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class HtmlHeadExtractorTest {
+
+    private static final String BODY = "<body>" + StringUtils.repeat("<p>Some text of the page</p>", 5000)
+            + "</body></html>";
+
+    private static class CountingStream extends ByteArrayInputStream {
+        CountingStream(String html, Charset charset) {
+            super(html.getBytes(charset));
+        }
+
+        int position() {
+            return pos;
+        }
+    }
+
+    @Test
+    public void testTitleAndMeta() throws IOException {
+        String html = "<!DOCTYPE html>\n<html><head>\n" +
+                "<!-- <title>Not this</title> -->\n" +
+                "<meta name=\"description\" content=\"Guns &amp; ammo for sale\">\n" +
+                "<META property='og:type' content='article' />\n" +
+                "<script>var s = '<title>Nor this</title>';</script>\n" +
+                "<TITLE>\n  Used   Rifles &ndash; Listing </TITLE>\n" +
+                "<meta http-equiv=refresh content=30>\n" +
+                "</head>" + BODY;
+        CountingStream stream = new CountingStream(html, StandardCharsets.UTF_8);
+        Metadata md = new HtmlHeadExtractor().extract(stream);
+        assertEquals("Used Rifles – Listing", md.get("title"));
+        assertEquals("Guns & ammo for sale", md.get("description"));
+        assertEquals("article", md.get("og:type"));
+        assertEquals("30", md.get("refresh"));
+        // the body isn't read
+        assertTrue(stream.position() < 16 * 1024);
+    }
+
+    @Test
+    public void testCharset() throws IOException {
+        String html = "<html><head><meta http-equiv=\"Content-Type\" content=\"text/html; charset=ISO-8859-1\">" +
+                "<title>Café façade</title></head>" + BODY;
+        Metadata md = new HtmlHeadExtractor().extract(new CountingStream(html, StandardCharsets.ISO_8859_1));
+        assertEquals("Café façade", md.get("title"));
+        assertEquals("ISO-8859-1", md.get(Metadata.CONTENT_ENCODING));
+
+        String utf8 = "<html><head><title>Café 武器</title><meta charset=\"utf-8\"></head>" + BODY;
+        assertEquals("Café 武器",
+                new HtmlHeadExtractor().extract(new CountingStream(utf8, StandardCharsets.UTF_8)).get("title"));
+    }
+
+    @Test
+    public void testMaxBytes() throws IOException {
+        // no head, the title is in the body
+        String html = "<html>" + StringUtils.repeat("<p>text</p>", 1000) + BODY;
+        CountingStream stream = new CountingStream(html, StandardCharsets.UTF_8);
+        Metadata md = new HtmlHeadExtractor(4096).extract(stream);
+        assertNull(md.get("title"));
+        assertEquals(4096, stream.position());
+    }
+
+    @Test
+    public void testNoHead() throws IOException {
+        HtmlHeadExtractor extractor = new HtmlHeadExtractor();
+        assertNull(extractor.extract(new CountingStream("", StandardCharsets.UTF_8)).get("title"));
+        // the extractor is reused, the buffer of the last page doesn't leak in
+        Metadata md = extractor.extract(new CountingStream("<title>Short</title>", StandardCharsets.UTF_8));
+        assertEquals("Short", md.get("title"));
+    }
+}
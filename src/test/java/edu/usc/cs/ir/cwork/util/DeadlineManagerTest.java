@@ -0,0 +1,84 @@
+package edu.usc.cs.ir.cwork.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DeadlineManagerTest {
+
+    @Test
+    public void testFixed() throws Exception {
+        DeadlineManager manager = new DeadlineManager(1500);
+        for (int i = 0; i < 50; i++) {
+            DeadlineManager.Deadline deadline = manager.start("text/html", 1024);
+            assertEquals(1500, deadline.getTimeout());
+            assertEquals(DeadlineManager.Policy.FIXED, deadline.getPolicy());
+            deadline.finished();
+        }
+        manager.start("text/html", 1024).cancelled();
+        assertEquals(51, manager.getTaskCount(DeadlineManager.Policy.FIXED));
+        assertEquals(1, manager.getCancelCount(DeadlineManager.Policy.FIXED));
+        assertEquals(0, manager.getTaskCount(DeadlineManager.Policy.ADAPTIVE));
+    }
+
+    @Test
+    public void testAdaptive() throws Exception {
+        DeadlineManager manager = new DeadlineManager(15000, 100, 60000);
+        manager.setMinSamples(5);
+        for (int i = 0; i < 5; i++) {
+            DeadlineManager.Deadline deadline = manager.start("text/html; charset=UTF-8", 2048);
+            assertEquals(DeadlineManager.Policy.FIXED, deadline.getPolicy());
+            deadline.finished();
+        }
+        // fast html pages get the lower bound
+        DeadlineManager.Deadline deadline = manager.start("text/html", 1024);
+        assertEquals(DeadlineManager.Policy.ADAPTIVE, deadline.getPolicy());
+        assertEquals(100, deadline.getTimeout());
+        deadline.cancelled();
+        deadline.finished(); // ignored, it was already cancelled
+        assertEquals(1, manager.getCancelCount(DeadlineManager.Policy.ADAPTIVE));
+
+        // no samples yet for this type
+        deadline = manager.start("application/pdf", 10 * 1024 * 1024);
+        assertEquals(DeadlineManager.Policy.FIXED, deadline.getPolicy());
+        assertEquals(15000, deadline.getTimeout());
+
+        // a size bucket larger than the learnt ones gets the fixed timeout, not the one of small pages
+        deadline = manager.start("text/html", 10 * 1024 * 1024);
+        assertEquals(DeadlineManager.Policy.FIXED, deadline.getPolicy());
+        assertEquals(15000, deadline.getTimeout());
+
+        // an unseen size bucket smaller than the learnt ones falls back to the type
+        for (int i = 0; i < 5; i++) {
+            manager.start("text/plain", 64 * 1024).finished();
+        }
+        deadline = manager.start("text/plain", 1024);
+        assertEquals(DeadlineManager.Policy.ADAPTIVE, deadline.getPolicy());
+        assertEquals(100, deadline.getTimeout());
+    }
+
+    @Test
+    public void testSlowTypeKeepsItsDeadline() throws Exception {
+        DeadlineManager manager = new DeadlineManager(100, 10, 60000);
+        manager.setMinSamples(5);
+        for (int i = 0; i < 5; i++) {
+            manager.start("application/pdf", 1024).cancelled();
+        }
+        // the type deadline is above the fixed timeout, a larger pdf isn't cut shorter
+        DeadlineManager.Deadline deadline = manager.start("application/pdf", 10 * 1024 * 1024);
+        assertEquals(DeadlineManager.Policy.ADAPTIVE, deadline.getPolicy());
+        assertEquals(300, deadline.getTimeout());
+    }
+
+    @Test
+    public void testSizeBucket() throws Exception {
+        assertEquals(-1, DeadlineManager.sizeBucket(-1));
+        assertEquals(0, DeadlineManager.sizeBucket(0));
+        assertEquals(0, DeadlineManager.sizeBucket(4 * 1024 - 1));
+        assertEquals(1, DeadlineManager.sizeBucket(4 * 1024));
+        assertEquals(1, DeadlineManager.sizeBucket(16 * 1024 - 1));
+        assertEquals(2, DeadlineManager.sizeBucket(16 * 1024));
+        assertEquals("text/html", DeadlineManager.normalize("Text/HTML; charset=UTF-8"));
+        assertEquals(DeadlineManager.UNKNOWN_TYPE, DeadlineManager.normalize(null));
+    }
+}
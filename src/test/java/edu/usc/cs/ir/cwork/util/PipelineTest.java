@@ -0,0 +1,207 @@
+package edu.usc.cs.ir.cwork.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.*;
+
+public class PipelineTest {
+
+    private static List<Integer> range(int n) {
+        return IntStream.range(0, n).boxed().collect(Collectors.toList());
+    }
+
+    @Test
+    public void testUnordered() throws Exception {
+        List<String> result = Collections.synchronizedList(new ArrayList<>());
+        Pipeline.Stats stats = Pipeline.from(range(100).iterator())
+                .queueSize(5)
+                .then("square", 4, i -> i * i)
+                .then("odd", 2, i -> i % 2 == 1 ? i : null)
+                .then("str", 3, String::valueOf)
+                .to("collect", 2, result::add);
+        assertEquals(100, stats.getSourceCount());
+        assertEquals(50, result.size());
+        assertTrue(result.contains("9801"));
+        assertEquals(100, stats.getStages().get(1).getIn());
+        assertEquals(50, stats.getStages().get(1).getOut());
+    }
+
+    @Test
+    public void testOrdered() throws Exception {
+        Random random = new Random(1);
+        List<Integer> result = new ArrayList<>();
+        Pipeline.from(range(200).iterator())
+                .queueSize(3)
+                .ordered(true)
+                .then("slow", 8, i -> {
+                    Thread.sleep(random.nextInt(5));
+                    if (i % 7 == 0) {
+                        throw new IllegalStateException("bad " + i);
+                    }
+                    return i;
+                })
+                .to("collect", 1, result::add);
+        List<Integer> expected = range(200).stream().filter(i -> i % 7 != 0).collect(Collectors.toList());
+        assertEquals(expected, result);
+    }
+
+    @Test
+    public void testBackpressure() throws Exception {
+        AtomicInteger produced = new AtomicInteger();
+        AtomicInteger maxAhead = new AtomicInteger();
+        AtomicInteger consumed = new AtomicInteger();
+        Iterator<Integer> source = new Iterator<Integer>() {
+            @Override
+            public boolean hasNext() {
+                return produced.get() < 50;
+            }
+
+            @Override
+            public Integer next() {
+                int ahead = produced.incrementAndGet() - consumed.get();
+                maxAhead.accumulateAndGet(ahead, Math::max);
+                return produced.get();
+            }
+        };
+        Pipeline.from(source)
+                .queueSize(2)
+                .then("pass", 1, i -> i)
+                .to("slow", 1, i -> {
+                    Thread.sleep(2);
+                    consumed.incrementAndGet();
+                });
+        assertEquals(50, consumed.get());
+        // two queues, two workers and the one source is holding
+        assertTrue("source ran ahead by " + maxAhead.get(), maxAhead.get() <= 2 * 2 + 2 + 1);
+    }
+
+    @Test
+    public void testDeadlines() throws Exception {
+        DeadlineManager deadlines = new DeadlineManager(100);
+        List<Integer> timedOut = Collections.synchronizedList(new ArrayList<>());
+        List<Integer> result = Collections.synchronizedList(new ArrayList<>());
+        Pipeline.Stats stats = Pipeline.from(range(6).iterator())
+                .listener(new Pipeline.Listener() {
+                    @Override
+                    public void onTimeout(String stage, Object item) {
+                        timedOut.add((Integer) item);
+                    }
+                })
+                .then("sleep", 3, i -> {
+                    Thread.sleep(i == 3 ? 60 * 1000 : 1);
+                    return i;
+                }, i -> deadlines.start("text/plain", i))
+                .to("collect", 1, result::add);
+        assertEquals(Collections.singletonList(3), timedOut);
+        assertEquals(5, result.size());
+        assertEquals(1, stats.getStages().get(0).getTimeouts());
+        assertEquals(1, deadlines.getCancelCount(DeadlineManager.Policy.FIXED));
+        assertTrue(stats.getElapsedMillis() < 30 * 1000);
+    }
+
+    @Test
+    public void testDropped() throws Exception {
+        DeadlineManager deadlines = new DeadlineManager(100);
+        List<Object> timedOut = Collections.synchronizedList(new ArrayList<>());
+        List<Object> dropped = Collections.synchronizedList(new ArrayList<>());
+        List<Integer> result = Collections.synchronizedList(new ArrayList<>());
+        Pipeline.from(range(8).iterator())
+                .listener(new Pipeline.Listener() {
+                    @Override
+                    public void onError(String stage, Object item, Throwable e) {
+                    }
+
+                    @Override
+                    public void onTimeout(String stage, Object item) {
+                        timedOut.add(item);
+                    }
+
+                    @Override
+                    public void onDropped(String stage, Object item) {
+                        dropped.add(stage + ":" + item);
+                    }
+                })
+                .then("sleep", 4, i -> {
+                    try {
+                        Thread.sleep(i == 2 || i == 3 ? 60 * 1000 : 1);
+                    } catch (InterruptedException e) {
+                        if (i == 3) {
+                            return -i; // a partial result
+                        }
+                        throw e;
+                    }
+                    return i;
+                }, i -> deadlines.start("text/plain", i))
+                .then("even", 2, i -> i % 2 == 0 ? i : null)
+                .to("collect", 1, i -> {
+                    if (i == 4) {
+                        throw new IllegalStateException("bad " + i);
+                    }
+                    result.add(i);
+                });
+        Collections.sort(result);
+        assertEquals(Arrays.asList(0, 6), result);
+        assertEquals(2, timedOut.size());
+        // the partial result of 3 goes on, and is dropped later as it is odd
+        Set<Object> expected = new HashSet<>(Arrays.asList("sleep:2", "even:1", "even:-3", "even:5",
+                "even:7", "collect:4"));
+        assertEquals(expected, new HashSet<>(dropped));
+        assertEquals(expected.size(), dropped.size());
+    }
+
+    private static Pipeline.Stats runWithErrors(boolean ordered, List<Integer> result, List<Object> failed)
+            throws InterruptedException {
+        return Pipeline.from(range(50).iterator())
+                .queueSize(2)
+                .ordered(ordered)
+                .listener(new Pipeline.Listener() {
+                    @Override
+                    public void onError(String stage, Object item, Throwable e) {
+                        failed.add(item);
+                    }
+                })
+                .then("fail", 2, i -> {
+                    if (i % 10 == 3) {
+                        throw new StackOverflowError();
+                    } else if (i % 10 == 7) {
+                        throw new NoClassDefFoundError("Missing");
+                    }
+                    return i;
+                })
+                .to("collect", 1, result::add);
+    }
+
+    @Test(timeout = 30 * 1000)
+    public void testErrorsUnordered() throws Exception {
+        List<Integer> result = Collections.synchronizedList(new ArrayList<>());
+        List<Object> failed = Collections.synchronizedList(new ArrayList<>());
+        Pipeline.Stats stats = runWithErrors(false, result, failed);
+        assertEquals(40, result.size());
+        assertEquals(10, failed.size());
+        assertEquals(10, stats.getStages().get(0).getErrors());
+    }
+
+    @Test(timeout = 30 * 1000)
+    public void testErrorsOrdered() throws Exception {
+        List<Integer> result = new ArrayList<>();
+        List<Object> failed = Collections.synchronizedList(new ArrayList<>());
+        Pipeline.Stats stats = runWithErrors(true, result, failed);
+        List<Integer> expected = range(50).stream().filter(i -> i % 10 != 3 && i % 10 != 7)
+                .collect(Collectors.toList());
+        assertEquals(expected, result);
+        assertEquals(10, failed.size());
+        assertEquals(10, stats.getStages().get(0).getErrors());
+    }
+}